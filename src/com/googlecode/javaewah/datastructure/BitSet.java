@@ -5,6 +5,16 @@ import java.util.Arrays;
 /**
  * This is an optimized version of Java's BitSet.
  *
+ * A bitset has two representations: dense, an array of words, and sparse,
+ * a sorted array of the positions of the bits set (as the array
+ * containers of Roaring bitmaps). A sparse bitset becomes dense as soon as
+ * its positions take more memory than the words would (see SPARSE_RATIO),
+ * and compress() makes a dense bitset sparse if it is sparse enough. All
+ * the operations work on both representations, and on a mix of them,
+ * without converting the operands; only the operations that would produce
+ * a dense result (OR of a dense bitset into a sparse one...) make the
+ * bitset dense.
+ *
  * @author Daniel Lemire
  * @since 0.8.0
  **/
@@ -22,28 +32,262 @@ public final class BitSet implements Cloneable {
             throw new NegativeArraySizeException(
                 "negative number of bits: " + sizeinbits);
         this.data = new long[(sizeinbits + 63) / 64];
+        this.nbWords = this.data.length;
+    }
+
+    /**
+     * Construct a bitset with the specified number of bits (initially all
+     * false), sparse or dense. A sparse bitset becomes dense by itself when
+     * too many bits are set.
+     *
+     * @param sizeinbits
+     *                the size in bits
+     * @param sparse
+     *                true to start with the sparse representation
+     */
+    public BitSet(final int sizeinbits, boolean sparse) {
+        if (sizeinbits < 0)
+            throw new NegativeArraySizeException(
+                "negative number of bits: " + sizeinbits);
+        this.nbWords = (sizeinbits + 63) / 64;
+        if (sparse) {
+            this.positions = new int[4];
+        } else {
+            this.data = new long[this.nbWords];
+        }
+    }
+
+    /**
+     * Construct a view of nbWords consecutive words of an array that may be
+     * shared with other bitsets (see BloomFilterArena): the changes made
+     * through the view are written to the array and the other way around.
+     * A view never caches its cardinality, and its modification count only
+     * sees the changes made through this view. A view cannot be resized,
+     * its clone is a plain bitset.
+     *
+     * @param data
+     *                the array holding the words
+     * @param offset
+     *                index in data of the first word of the view
+     * @param nbWords
+     *                number of words of the view
+     */
+    public BitSet(long[] data, int offset, int nbWords) {
+        if (offset < 0 || nbWords < 0 || offset + nbWords > data.length)
+            throw new IllegalArgumentException("words " + offset + " to "
+                                               + (offset + nbWords) + " out of an array of "
+                                               + data.length);
+        this.data = data;
+        this.offset = offset;
+        this.nbWords = nbWords;
+        this.isView = true;
+    }
+
+    /**
+     * @return true if this bitset is a view of a shared array
+     */
+    public boolean isView() {
+        return isView;
+    }
+
+    /**
+     * @return true if this bitset has the sparse representation
+     */
+    public boolean isSparse() {
+        return positions != null;
+    }
+
+    /**
+     * Switch to the sparse representation if few enough bits are set (see
+     * SPARSE_RATIO). A view stays dense.
+     *
+     * @return true if the bitset is sparse
+     */
+    public boolean compress() {
+        if (positions != null)
+            return true;
+        if (isView)
+            return false;
+        final int card = cardinality();
+        if (card > maxSparse())
+            return false;
+        int[] newpositions = new int[Math.max(4, card)];
+        int n = 0;
+        for (int k = 0; k < nbWords; ++k) {
+            for (long w = data[k]; w != 0; w &= w - 1)
+                newpositions[n++] = k * 64 + Long.numberOfTrailingZeros(w);
+        }
+        positions = newpositions;
+        nbPositions = n;
+        data = null;
+        return true;
+    }
+
+    /**
+     * Switch to the dense representation, for a bitset that will get many
+     * bits set
+     */
+    public void decompress() {
+        if (positions != null)
+            densify();
+    }
+
+    private void densify() {
+        long[] newdata = new long[nbWords];
+        for (int j = 0; j < nbPositions; ++j)
+            newdata[positions[j] >>> 6] |= 1l << positions[j];
+        cachedCardinality = nbPositions;
+        data = newdata;
+        positions = null;
+        nbPositions = 0;
+    }
+
+    // the largest number of positions of a sparse bitset
+    private int maxSparse() {
+        return nbWords * SPARSE_RATIO;
+    }
+
+    // index of the first position at least i in a sparse bitset
+    private int lowerBound(int i) {
+        int low = 0;
+        int high = nbPositions;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (positions[middle] < i)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    // number of positions of the sparse bitset set in the other bitset
+    private int sparseAndCardinality(BitSet bs) {
+        int sum = 0;
+        if (bs.positions == null) {
+            for (int j = 0; j < nbPositions; ++j) {
+                final int p = positions[j];
+                if ((bs.data[bs.offset + (p >>> 6)] & (1l << p)) != 0)
+                    sum++;
+            }
+            return sum;
+        }
+        // a merge without branches on the positions, which are hard to
+        // predict
+        int j1 = 0;
+        int j2 = 0;
+        while (j1 < nbPositions && j2 < bs.nbPositions) {
+            final int p1 = positions[j1];
+            final int p2 = bs.positions[j2];
+            sum += p1 == p2 ? 1 : 0;
+            j1 += p1 <= p2 ? 1 : 0;
+            j2 += p2 <= p1 ? 1 : 0;
+        }
+        return sum;
     }
 
     public int andcardinality(BitSet bs) {
-        if (data.length != bs.data.length)
+        if (nbWords != bs.nbWords)
             throw new IllegalArgumentException(
                 "incompatible bitsets");
+        if (positions != null)
+            return sparseAndCardinality(bs);
+        if (bs.positions != null)
+            return bs.sparseAndCardinality(this);
         int sum = 0;
-        for (int k = 0; k < data.length; ++k) {
-            sum += Long.bitCount(data[k] & bs.data[k]);
+        for (int k = 0; k < nbWords; ++k) {
+            sum += Long.bitCount(data[offset + k] & bs.data[bs.offset + k]);
         }
         return sum;
     }
 
+    /**
+     * Compute bitwise AND. The bitsets may have different lengths: the bits
+     * of bs beyond its length are taken as false.
+     *
+     * @param bs
+     *                other bitset
+     */
+    public void and(BitSet bs) {
+        if (positions != null) {
+            int n = 0;
+            for (int j = 0; j < nbPositions; ++j) {
+                final int p = positions[j];
+                if (p < bs.nbWords * 64 && bs.get(p))
+                    positions[n++] = p;
+            }
+            if (n != nbPositions)
+                modificationCount++;
+            nbPositions = n;
+            return;
+        }
+        if (bs.positions != null) {
+            int j = 0;
+            for (int k = 0; k < nbWords; ++k) {
+                long w = 0;
+                for (; j < bs.nbPositions && bs.positions[j] < (k + 1) * 64; ++j)
+                    w |= 1l << bs.positions[j];
+                data[offset + k] &= w;
+            }
+        } else {
+            final int common = Math.min(nbWords, bs.nbWords);
+            for (int k = 0; k < common; ++k)
+                data[offset + k] &= bs.data[bs.offset + k];
+            Arrays.fill(data, offset + common, offset + nbWords, 0);
+        }
+        cachedCardinality = -1;
+        modificationCount++;
+    }
+
+    /**
+     * Compute bitwise AND NOT: clear the bits set in bs. The bitsets may
+     * have different lengths: the bits of bs beyond its length are taken as
+     * false.
+     *
+     * @param bs
+     *                other bitset
+     */
+    public void andNot(BitSet bs) {
+        if (positions != null) {
+            int n = 0;
+            for (int j = 0; j < nbPositions; ++j) {
+                final int p = positions[j];
+                if (p >= bs.nbWords * 64 || !bs.get(p))
+                    positions[n++] = p;
+            }
+            if (n != nbPositions)
+                modificationCount++;
+            nbPositions = n;
+            return;
+        }
+        if (bs.positions != null) {
+            for (int j = 0; j < bs.nbPositions && bs.positions[j] < nbWords * 64; ++j)
+                data[offset + (bs.positions[j] >>> 6)] &= ~(1l << bs.positions[j]);
+        } else {
+            final int common = Math.min(nbWords, bs.nbWords);
+            for (int k = 0; k < common; ++k)
+                data[offset + k] &= ~bs.data[bs.offset + k];
+        }
+        cachedCardinality = -1;
+        modificationCount++;
+    }
+
     /**
      * Compute the number of bits set to 1
      *
      * @return the number of bits
      */
     public int cardinality() {
+        if (positions != null)
+            return nbPositions;
+        if (cachedCardinality >= 0)
+            return cachedCardinality;
         int sum = 0;
-        for (long l : this.data)
-            sum += Long.bitCount(l);
+        for (int k = 0; k < nbWords; ++k)
+            sum += Long.bitCount(this.data[offset + k]);
+        // the shared words of a view may change behind its back
+        if (!isView)
+            cachedCardinality = sum;
         return sum;
     }
 
@@ -51,7 +295,15 @@ public final class BitSet implements Cloneable {
      * Reset all bits to false
      */
     public void clear() {
-        Arrays.fill(this.data, 0);
+        if (positions != null) {
+            nbPositions = 0;
+            modificationCount++;
+            return;
+        }
+        Arrays.fill(this.data, offset, offset + nbWords, 0);
+        if (!isView)
+            cachedCardinality = 0;
+        modificationCount++;
     }
 
     @Override
@@ -59,7 +311,13 @@ public final class BitSet implements Cloneable {
         BitSet b;
         try {
             b = (BitSet) super.clone();
-            b.data = Arrays.copyOf(this.data, this.data.length);
+            if (positions != null) {
+                b.positions = positions.clone();
+                return b;
+            }
+            b.data = Arrays.copyOfRange(this.data, offset, offset + nbWords);
+            b.offset = 0;
+            b.isView = false;
             return b;
         } catch (CloneNotSupportedException e) {
             return null;
@@ -70,7 +328,18 @@ public final class BitSet implements Cloneable {
     public boolean equals(Object o) {
         if (!(o instanceof BitSet))
             return false;
-        return Arrays.equals(data, ((BitSet) o).data);
+        final BitSet bs = (BitSet) o;
+        if (nbWords != bs.nbWords)
+            return false;
+        if (positions != null || bs.positions != null) {
+            final int card = cardinality();
+            return card == bs.cardinality() && card == andcardinality(bs);
+        }
+        for (int k = 0; k < nbWords; ++k) {
+            if (data[offset + k] != bs.data[bs.offset + k])
+                return false;
+        }
+        return true;
     }
 
     /**
@@ -79,17 +348,49 @@ public final class BitSet implements Cloneable {
      * @return value of the bit
      */
     public boolean get(final int i) {
-        return (this.data[i / 64] & (1l << (i % 64))) != 0;
+        if (positions != null) {
+            final int j = lowerBound(i);
+            return j < nbPositions && positions[j] == i;
+        }
+        if (isView && (i < 0 || i >= nbWords * 64))
+            throw new ArrayIndexOutOfBoundsException(i);
+        return (this.data[offset + i / 64] & (1l << (i % 64))) != 0;
         //1l << (i % 64)除了第i位都刷成0，若第i位与是1则与完的值非0，否则为0
     }
     //用boolean类型返回第i位的内容
     public long getWord(int i) {
-        return data[i];
+        if (positions != null) {
+            long w = 0;
+            for (int j = lowerBound(i * 64); j < nbPositions
+                    && positions[j] < (i + 1) * 64; ++j)
+                w |= 1l << positions[j];
+            return w;
+        }
+        // the words after a view belong to the next filter of the arena
+        if (isView && (i < 0 || i >= nbWords))
+            throw new ArrayIndexOutOfBoundsException(i);
+        return data[offset + i];
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(data);
+        // same as Arrays.hashCode on the words
+        int hash = 1;
+        if (positions != null) {
+            int j = 0;
+            for (int k = 0; k < nbWords; ++k) {
+                long w = 0;
+                for (; j < nbPositions && positions[j] < (k + 1) * 64; ++j)
+                    w |= 1l << positions[j];
+                hash = 31 * hash + (int) (w ^ (w >>> 32));
+            }
+            return hash;
+        }
+        for (int k = 0; k < nbWords; ++k) {
+            final long w = data[offset + k];
+            hash = 31 * hash + (int) (w ^ (w >>> 32));
+        }
+        return hash;
     }
 
     /**
@@ -98,7 +399,17 @@ public final class BitSet implements Cloneable {
      * @return the size in bits.
      */
     public int length() {
-        return this.data.length * 64;
+        return this.nbWords * 64;
+    }
+
+    /**
+     * Return a counter that changes whenever the content of the bitset may
+     * have changed, so that values derived from the bitset can be cached
+     *
+     * @return the modification count
+     */
+    public int getModificationCount() {
+        return modificationCount;
     }
 
     /**
@@ -110,20 +421,24 @@ public final class BitSet implements Cloneable {
      * @return next set bit or -1
      */
     public int nextSetBit(final int i) {
+        if (positions != null) {
+            final int j = lowerBound(i);
+            return j < nbPositions ? positions[j] : -1;
+        }
         int x = i / 64;
-        if (x >= this.data.length)
+        if (x >= this.nbWords)
             return -1;
-        long w = this.data[x];
+        long w = this.data[offset + x];
         w >>>= (i % 64);
         if (w != 0) {
             return i + Long.numberOfTrailingZeros(w);
         }
         ++x;
-        for (; x < this.data.length; ++x) {
-            if (this.data[x] != 0) {
+        for (; x < this.nbWords; ++x) {
+            if (this.data[offset + x] != 0) {
                 return x
                        * 64
-                       + Long.numberOfTrailingZeros(this.data[x]);
+                       + Long.numberOfTrailingZeros(this.data[offset + x]);
             }
         }
         return -1;
@@ -139,20 +454,27 @@ public final class BitSet implements Cloneable {
      */
     //当BitSet作为arryb的时候，从第index=i的地方，开始查找第一个没被占用的BF位的index值，全被占用返回-1
     public int nextUnsetBit(final int i) {
+        if (positions != null) {
+            int candidate = i;
+            for (int j = lowerBound(i); j < nbPositions
+                    && positions[j] == candidate; ++j)
+                candidate++;
+            return candidate < nbWords * 64 ? candidate : -1;
+        }
         int x = i / 64;
-        if (x >= this.data.length)
+        if (x >= this.nbWords)
             return -1;
-        long w = ~this.data[x];
+        long w = ~this.data[offset + x];
         w >>>= (i % 64);
         if (w != 0) {
             return i + Long.numberOfTrailingZeros(w);
         }
         ++x;
-        for (; x < this.data.length; ++x) {
-            if (this.data[x] != ~0) {
+        for (; x < this.nbWords; ++x) {
+            if (this.data[offset + x] != ~0) {
                 return x
                        * 64
-                       + Long.numberOfTrailingZeros(~this.data[x]);
+                       + Long.numberOfTrailingZeros(~this.data[offset + x]);
             }
         }
         return -1;
@@ -165,33 +487,223 @@ public final class BitSet implements Cloneable {
      *                other bitset
      */
     public void or(BitSet bs) {
-        if (data.length != bs.data.length)
+        if (nbWords != bs.nbWords)
+            throw new IllegalArgumentException(
+                "incompatible bitsets");
+        if (positions != null) {
+            if (bs.positions == null) {
+                densify();
+            } else {
+                orSparse(bs);
+                return;
+            }
+        }
+        if (bs.positions != null) {
+            for (int j = 0; j < bs.nbPositions; ++j)
+                data[offset + (bs.positions[j] >>> 6)] |= 1l << bs.positions[j];
+            cachedCardinality = -1;
+            modificationCount++;
+            return;
+        }
+        for (int k = 0; k < nbWords; ++k) {
+            data[offset + k] |= bs.data[bs.offset + k];
+        }
+        cachedCardinality = -1;
+        modificationCount++;
+    }
+
+    /**
+     * Compute bitwise OR, assumes that both bitsets have the same length.
+     * The indexes of the words that were modified are set in changedWords.
+     *
+     * @param bs
+     *                other bitset
+     * @param changedWords
+     *                bitset with one bit per word of this bitset
+     */
+    public void or(BitSet bs, BitSet changedWords) {
+        if (nbWords != bs.nbWords)
+            throw new IllegalArgumentException(
+                "incompatible bitsets");
+        if (positions != null)
+            densify();
+        if (bs.positions != null) {
+            for (int j = 0; j < bs.nbPositions; ++j) {
+                final int k = bs.positions[j] >>> 6;
+                final long w = data[offset + k] | (1l << bs.positions[j]);
+                if (w != data[offset + k]) {
+                    data[offset + k] = w;
+                    changedWords.set(k);
+                }
+            }
+            cachedCardinality = -1;
+            modificationCount++;
+            return;
+        }
+        for (int k = 0; k < nbWords; ++k) {
+            final long w = data[offset + k] | bs.data[bs.offset + k];
+            if (w != data[offset + k]) {
+                data[offset + k] = w;
+                changedWords.set(k);
+            }
+        }
+        cachedCardinality = -1;
+        modificationCount++;
+    }
+
+    /**
+     * Compute bitwise OR on a subset of the words only, assumes that both
+     * bitsets have the same length.
+     *
+     * @param bs
+     *                other bitset
+     * @param words
+     *                bitset with one bit per word, the words to OR
+     * @return true if this bitset was modified
+     */
+    public boolean orWords(BitSet bs, BitSet words) {
+        if (nbWords != bs.nbWords)
+            throw new IllegalArgumentException(
+                "incompatible bitsets");
+        if (positions != null)
+            densify();
+        boolean changed = false;
+        for (int k = words.nextSetBit(0); k >= 0; k = words.nextSetBit(k + 1)) {
+            final long w = data[offset + k] | bs.getWord(k);
+            if (w != data[offset + k]) {
+                data[offset + k] = w;
+                changed = true;
+            }
+        }
+        if (changed) {
+            cachedCardinality = -1;
+            modificationCount++;
+        }
+        return changed;
+    }
+
+    /**
+     * Compute the bitwise OR of this bitset with the other bitset folded
+     * to the length of this one: word k of the other bitset is ORed into
+     * word k modulo the number of words of this bitset, which has to be a
+     * power of two.
+     *
+     * @param bs
+     *                other bitset, at least as long as this one
+     */
+    public void orFolded(BitSet bs) {
+        if (nbWords > bs.nbWords
+                || Integer.bitCount(nbWords) != 1)
+            throw new IllegalArgumentException(
+                "incompatible bitsets");
+        final int mask = nbWords - 1;
+        if (positions != null)
+            densify();
+        if (bs.positions != null) {
+            for (int j = 0; j < bs.nbPositions; ++j)
+                data[offset + ((bs.positions[j] >>> 6) & mask)] |= 1l << bs.positions[j];
+        } else {
+            for (int k = 0; k < bs.nbWords; ++k) {
+                data[offset + (k & mask)] |= bs.data[bs.offset + k];
+            }
+        }
+        cachedCardinality = -1;
+        modificationCount++;
+    }
+
+    /**
+     * Compute bitwise OR on a subset of the words of the other bitset,
+     * folded to the length of this one (see orFolded).
+     *
+     * @param bs
+     *                other bitset, at least as long as this one
+     * @param words
+     *                bitset with one bit per word of bs, the words to OR
+     * @return true if this bitset was modified
+     */
+    public boolean orWordsFolded(BitSet bs, BitSet words) {
+        if (nbWords > bs.nbWords
+                || Integer.bitCount(nbWords) != 1)
             throw new IllegalArgumentException(
                 "incompatible bitsets");
-        for (int k = 0; k < data.length; ++k) {
-            data[k] |= bs.data[k];
+        final int mask = nbWords - 1;
+        if (positions != null)
+            densify();
+        boolean changed = false;
+        for (int k = words.nextSetBit(0); k >= 0; k = words.nextSetBit(k + 1)) {
+            final long w = data[offset + (k & mask)] | bs.getWord(k);
+            if (w != data[offset + (k & mask)]) {
+                data[offset + (k & mask)] = w;
+                changed = true;
+            }
+        }
+        if (changed) {
+            cachedCardinality = -1;
+            modificationCount++;
         }
+        return changed;
     }
 
     public int orcardinality(BitSet bs) {
-        if (data.length != bs.data.length)
+        if (nbWords != bs.nbWords)
             throw new IllegalArgumentException(
                 "incompatible bitsets");
+        if (positions != null || bs.positions != null)
+            return cardinality() + bs.cardinality() - andcardinality(bs);
         int sum = 0;
-        for (int k = 0; k < data.length; ++k) {
-            sum += Long.bitCount(data[k] | bs.data[k]);
+        for (int k = 0; k < nbWords; ++k) {
+            sum += Long.bitCount(data[offset + k] | bs.data[bs.offset + k]);
         }
         return sum;
     }
 
-    public void removeWord(int i) {
-        long[] newdata = new long[data.length - 1];
-        if (i == 0) {
-            System.arraycopy(data, 1, newdata, 0, i - 1);
+    /**
+     * OR of two sparse bitsets, by merging their positions
+     */
+    private void orSparse(BitSet bs) {
+        int[] merged = new int[nbPositions + bs.nbPositions];
+        int n = 0;
+        int j1 = 0;
+        int j2 = 0;
+        while (j1 < nbPositions && j2 < bs.nbPositions) {
+            final int p1 = positions[j1];
+            final int p2 = bs.positions[j2];
+            if (p1 <= p2) {
+                merged[n++] = p1;
+                j1++;
+                if (p1 == p2)
+                    j2++;
+            } else {
+                merged[n++] = p2;
+                j2++;
+            }
         }
-        System.arraycopy(data, 0, newdata, 0, i - 1);
-        System.arraycopy(data, i, newdata, i - 1, data.length - i);
-        data = newdata;
+        while (j1 < nbPositions)
+            merged[n++] = positions[j1++];
+        while (j2 < bs.nbPositions)
+            merged[n++] = bs.positions[j2++];
+        if (n != nbPositions)
+            modificationCount++;
+        positions = merged;
+        nbPositions = n;
+        if (n > maxSparse())
+            densify();
+    }
+
+    /**
+     * Overwrite a whole 64-bit word
+     *
+     * @param i
+     *                index of the word
+     * @param w
+     *                new value of the word
+     */
+    public void setWord(int i, long w) {
+        if (positions != null)
+            densify();
+        data[offset + i] = w;
+        cachedCardinality = -1;
+        modificationCount++;
     }
 
     /**
@@ -201,7 +713,18 @@ public final class BitSet implements Cloneable {
      *                new number of bits
      */
     public void resize(int sizeinbits) {
+        if (isView)
+            throw new UnsupportedOperationException("cannot resize a view");
+        if (positions != null) {
+            this.nbWords = (sizeinbits + 63) / 64;
+            this.nbPositions = lowerBound(this.nbWords * 64);
+            modificationCount++;
+            return;
+        }
         this.data = Arrays.copyOf(this.data, (sizeinbits + 63) / 64);
+        this.nbWords = this.data.length;
+        cachedCardinality = -1;
+        modificationCount++;
     }
 
     /**
@@ -211,7 +734,34 @@ public final class BitSet implements Cloneable {
      *                index of the bit
      */
     public void set(final int i) {
-        this.data[i / 64] |= (1l << (i % 64));
+        if (positions != null) {
+            if (i < 0 || i >= nbWords * 64)
+                throw new ArrayIndexOutOfBoundsException(i);
+            final int j = lowerBound(i);
+            if (j < nbPositions && positions[j] == i)
+                return;
+            if (nbPositions == maxSparse()) {
+                densify();
+            } else {
+                if (nbPositions == positions.length)
+                    positions = Arrays.copyOf(positions,
+                                              Math.min(maxSparse(), 2 * nbPositions));
+                System.arraycopy(positions, j, positions, j + 1, nbPositions
+                                 - j);
+                positions[j] = i;
+                nbPositions++;
+                modificationCount++;
+                return;
+            }
+        }
+        final long w = this.data[offset + i / 64];
+        final long nw = w | (1l << (i % 64));
+        if (nw != w) {
+            this.data[offset + i / 64] = nw;
+            if (cachedCardinality >= 0)
+                cachedCardinality++;
+            modificationCount++;
+        }
     }
 
     /**
@@ -234,20 +784,94 @@ public final class BitSet implements Cloneable {
      *                index of the bit
      */
     public void unset(final int i) {
-        this.data[i / 64] &= ~(1l << (i % 64));
+        if (positions != null) {
+            final int j = lowerBound(i);
+            if (j < nbPositions && positions[j] == i) {
+                System.arraycopy(positions, j + 1, positions, j, nbPositions
+                                 - j - 1);
+                nbPositions--;
+                modificationCount++;
+            }
+            return;
+        }
+        final long w = this.data[offset + i / 64];
+        final long nw = w & ~(1l << (i % 64));
+        if (nw != w) {
+            this.data[offset + i / 64] = nw;
+            if (cachedCardinality >= 0)
+                cachedCardinality--;
+            modificationCount++;
+        }
     }
 
     public int xorcardinality(BitSet bs) {
-        if (data.length != bs.data.length)
+        if (nbWords != bs.nbWords)
             throw new IllegalArgumentException(
                 "incompatible bitsets");
+        if (positions != null || bs.positions != null)
+            return cardinality() + bs.cardinality() - 2 * andcardinality(bs);
         int sum = 0;
-        for (int k = 0; k < data.length; ++k) {
-            sum += Long.bitCount(data[k] ^ bs.data[k]);
+        for (int k = 0; k < nbWords; ++k) {
+            sum += Long.bitCount(data[offset + k] ^ bs.data[bs.offset + k]);
         }
         return sum;
     }
 
+    /**
+     * Compute the number of bits set in this XOR bs, in a single pass that
+     * stops as soon as the count exceeds maxCount.
+     *
+     * @param bs
+     *                other bitset
+     * @param maxCount
+     *                bound on the count
+     * @return the number of bits set in the XOR, or a partial count larger
+     *         than maxCount
+     */
+    public int xorcardinality(BitSet bs, int maxCount) {
+        if (nbWords != bs.nbWords)
+            throw new IllegalArgumentException(
+                "incompatible bitsets");
+        if (maxCount == Integer.MAX_VALUE || positions != null
+                || bs.positions != null)
+            return xorcardinality(bs);
+        int sum = 0;
+        for (int k = 0; k < nbWords; ++k) {
+            sum += Long.bitCount(data[offset + k] ^ bs.data[bs.offset + k]);
+            if (sum > maxCount)
+                return sum;
+        }
+        return sum;
+    }
+
+    /**
+     * A sparse bitset holds at most SPARSE_RATIO positions per word: 2
+     * positions (2 * 32 bits) take the memory of one word.
+     */
+    public static final int SPARSE_RATIO = 2;
+
+    // the words of a dense bitset, null if the bitset is sparse
     private long[] data;
 
+    // the positions of the bits set of a sparse bitset, in increasing order,
+    // are positions[0] to positions[nbPositions - 1]; null if the bitset is
+    // dense
+    private int[] positions = null;
+
+    private int nbPositions = 0;
+
+    // the words of this bitset are data[offset] to data[offset + nbWords - 1]
+    private int offset = 0;
+
+    private int nbWords;
+
+    // true if data may be shared with other bitsets
+    private boolean isView = false;
+
+    // number of bits set, -1 if it has to be computed again
+    private int cachedCardinality = -1;
+
+    // incremented whenever the content may have changed
+    private int modificationCount = 0;
+
 }
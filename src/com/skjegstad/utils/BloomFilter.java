@@ -16,9 +16,11 @@
 package com.skjegstad.utils;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import com.googlecode.javaewah.datastructure.BitSet;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import mvm.provenance.Hasher;
 
 /**
@@ -86,8 +88,7 @@ public final class BloomFilter<E> implements Serializable {
         numberOfAddedElements = 0;
         this.bitset = new BitSet(bitSetSize);
         // AC: add an ID for every BloomFilter created
-        lastID++;
-        this.id = lastID;
+        this.id = newID();
         // AC: set the metric used
         this.metric = metric;
     }
@@ -141,6 +142,78 @@ public final class BloomFilter<E> implements Serializable {
         this.bitset = filterData;
         this.numberOfAddedElements = actualNumberOfFilterElements;
     }
+
+    /**
+     * Construct a folded copy of a Bloom filter (see fold)
+     */
+    private BloomFilter(final BloomFilter<E> filter, int foldedSize) {
+        this.h = filter.h;
+        this.expectedNumberOfFilterElements = filter.expectedNumberOfFilterElements;
+        this.k = filter.k;
+        this.bitsPerElement = filter.bitsPerElement;
+        this.bitSetSize = foldedSize;
+        this.foldMask = foldedSize - 1;
+        this.numberOfAddedElements = filter.count();
+        this.bitset = new BitSet(foldedSize);
+        this.bitset.orFolded(filter.bitset);
+        this.id = newID();
+        this.metric = filter.metric;
+    }
+
+    /**
+     * Construct a view of a filter stored in an arena (see
+     * BloomFilterArena.get): the bits, the ID and the number of added
+     * elements are read from and written to the arena, the other fields
+     * come from the prototype of the arena.
+     */
+    BloomFilter(final BloomFilter<E> prototype, BloomFilterArena<E> arena,
+                int slot, BitSet bits) {
+        this.h = prototype.h;
+        this.expectedNumberOfFilterElements = prototype.expectedNumberOfFilterElements;
+        this.k = prototype.k;
+        this.bitsPerElement = prototype.bitsPerElement;
+        this.bitSetSize = prototype.bitSetSize;
+        this.metric = prototype.metric;
+        this.bitset = bits;
+        this.arena = arena;
+        this.slot = slot;
+    }
+
+    /**
+     * Returns a copy of this Bloom filter folded to a smaller size: bit i
+     * of the folded filter is the OR of the bits j of this filter with j
+     * modulo foldedSize equal to i, and the hashed positions are reduced
+     * modulo foldedSize. The folded filter answers contains() for all the
+     * elements of this filter, with a higher false positive probability.
+     * The folded copy is never a counting filter.
+     *
+     * @param foldedSize
+     *                a power of two, at least 64 and at most the size of
+     *                this filter
+     * @return the folded Bloom filter
+     */
+    public BloomFilter<E> fold(int foldedSize) {
+        if (Integer.bitCount(foldedSize) != 1 || foldedSize < 64
+                || foldedSize > bitSetSize)
+            throw new IllegalArgumentException("Cannot fold a Bloom filter of size "
+                                               + bitSetSize + " to " + foldedSize);
+        return new BloomFilter<E>(this, foldedSize);
+    }
+
+    /**
+     * @return true if this Bloom filter was obtained by folding (see fold)
+     */
+    public boolean isFolded() {
+        return foldMask != -1;
+    }
+
+    /**
+     * @return the mask to apply to the hashed positions, all ones if the
+     *         filter is not folded
+     */
+    public int getFoldMask() {
+        return foldMask;
+    }
     /**
      * Adds an object to the Bloom filter. The output from the object's
      * toString() method is used as input to the hash functions.
@@ -150,10 +223,43 @@ public final class BloomFilter<E> implements Serializable {
      */
     public void add(E element) {
         for (int x = 0; x < k; x++) {
-            final int hashvalue = h.hash(element, x);
+            final int hashvalue = h.hash(element, x) & foldMask;
+            if (dirtyWords != null && !bitset.get(hashvalue))
+                dirtyWords.set(hashvalue / 64);
             bitset.set(hashvalue);
+            if (counters != null && counters[hashvalue] != Character.MAX_VALUE)
+                counters[hashvalue]++;
         }
-        numberOfAddedElements++;
+        setCount(count() + 1);
+    }
+
+    /**
+     * Removes an element from a counting Bloom filter (see setCounting). The
+     * bits whose counter drops to zero are cleared. Removing an element that
+     * was never added may remove other elements from the filter.
+     *
+     * @param element
+     *                is an element to remove from the Bloom filter.
+     * @return false if the element was not in the Bloom filter
+     */
+    public boolean remove(E element) {
+        if (counters == null)
+            throw new IllegalStateException(
+                "Only a counting Bloom filter supports removal");
+        if (!contains(element))
+            return false;
+        for (int x = 0; x < k; x++) {
+            final int hashvalue = h.hash(element, x);
+            // a saturated counter is never decremented
+            if (counters[hashvalue] != Character.MAX_VALUE
+                    && counters[hashvalue] != 0 && --counters[hashvalue] == 0) {
+                bitset.unset(hashvalue);
+                if (dirtyWords != null)
+                    dirtyWords.set(hashvalue / 64);
+            }
+        }
+        setCount(count() - 1);
+        return true;
     }
     /**
      * Adds all elements from a Collection to the Bloom filter.
@@ -169,8 +275,157 @@ public final class BloomFilter<E> implements Serializable {
      * Sets all bits to false in the Bloom filter.
      */
     public void clear() {
+        if (dirtyWords != null) {
+            for (int i = bitset.nextSetBit(0); i >= 0; i = bitset
+                    .nextSetBit((i / 64 + 1) * 64))
+                dirtyWords.set(i / 64);
+        }
         bitset.clear();
-        numberOfAddedElements = 0;
+        if (counters != null)
+            Arrays.fill(counters, (char) 0);
+        setCount(0);
+    }
+
+    /**
+     * Switch the bit set of this filter to the sparse representation if
+     * few enough bits are set (see BitSet.compress). contains, orBloomFilter
+     * and the distances work on sparse filters, which become dense by
+     * themselves when too many bits are set.
+     *
+     * @return true if the bit set is sparse
+     */
+    public boolean compress() {
+        return bitset.compress();
+    }
+
+    /**
+     * Turn the counting mode on or off. A counting Bloom filter keeps a
+     * small (16-bit, saturating) counter per bit, so that elements can be
+     * removed. When a counting filter is the value of an index node, the
+     * counter of a bit is the number of children having that bit (see
+     * orBloomFilter). The counting mode can only be turned on when the
+     * filter is empty.
+     *
+     * @param counting
+     */
+    public void setCounting(boolean counting) {
+        if (!counting) {
+            counters = null;
+        } else if (counters == null) {
+            if (bitset.nextSetBit(0) >= 0)
+                throw new IllegalStateException(
+                    "The counting mode can only be set on an empty Bloom filter");
+            if (isFolded())
+                throw new IllegalStateException(
+                    "A folded Bloom filter cannot be counting");
+            if (arena != null)
+                throw new IllegalStateException(
+                    "A Bloom filter stored in an arena cannot be counting");
+            counters = new char[bitset.length()];
+        }
+    }
+
+    /**
+     * @return true if this is a counting Bloom filter
+     */
+    public boolean isCounting() {
+        return counters != null;
+    }
+
+    /**
+     * Return the counter of a bit, for a counting Bloom filter
+     *
+     * @param bit
+     * @return the counter
+     */
+    public int getCounter(int bit) {
+        return counters[bit];
+    }
+
+    /**
+     * Increment the counter of a bit of a counting Bloom filter, setting the
+     * bit.
+     *
+     * @param bit
+     * @return true if the bit was not set before
+     */
+    public boolean incrementCounter(int bit) {
+        if (counters[bit] == Character.MAX_VALUE)
+            return false;
+        if (counters[bit]++ != 0)
+            return false;
+        bitset.set(bit);
+        if (dirtyWords != null)
+            dirtyWords.set(bit / 64);
+        return true;
+    }
+
+    /**
+     * Decrement the counter of a bit of a counting Bloom filter, clearing
+     * the bit when the counter drops to zero.
+     *
+     * @param bit
+     * @return true if the bit was cleared
+     */
+    public boolean decrementCounter(int bit) {
+        if (counters[bit] == Character.MAX_VALUE || counters[bit] == 0)
+            return false;
+        if (--counters[bit] != 0)
+            return false;
+        bitset.unset(bit);
+        if (dirtyWords != null)
+            dirtyWords.set(bit / 64);
+        return true;
+    }
+
+    /**
+     * Overwrite the counter of a bit of a counting Bloom filter, the bit is
+     * set if and only if the counter is not zero.
+     *
+     * @param bit
+     * @param value
+     */
+    public void setCounter(int bit, int value) {
+        counters[bit] = (char) Math.min(value, Character.MAX_VALUE);
+        setBit(bit, value != 0);
+    }
+
+    /**
+     * Start (or stop) tracking which 64-bit words of the bit set changed
+     * since the last call to clearDirtyWords(). The indexes use this delta
+     * to propagate an update without walking the whole filter. They only
+     * read it: the same filter may be held by several indexes, so the
+     * caller clears it once all of them are updated. Changes made directly
+     * on the BitSet returned by getBitSet() are not tracked.
+     *
+     * @param track
+     *                whether to track the changed words
+     */
+    public void setDirtyWordTracking(boolean track) {
+        if (!track)
+            dirtyWords = null;
+        else if (dirtyWords == null)
+            dirtyWords = new BitSet(bitset.length() / 64);
+    }
+
+    /**
+     * Return the words changed since the last call to clearDirtyWords(), as
+     * a bitset with one bit per word of getBitSet(), or null if the changes
+     * are not tracked.
+     *
+     * @return the dirty words, or null
+     */
+    public BitSet getDirtyWords() {
+        return dirtyWords;
+    }
+
+    /**
+     * Forget the changed words, once all the indexes holding this filter
+     * have been updated (an index never clears them itself)
+     */
+    public void clearDirtyWords() {
+        if (dirtyWords != null)
+            dirtyWords.clear();
     }
     /**
     * Compute the distance between this filter and the one received as
@@ -184,13 +439,96 @@ public final class BloomFilter<E> implements Serializable {
     * @author Adina Crainiceanu
     */
     public double computeDistance(BloomFilter<E> filter) {
+        return computeDistance(filter, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+    * Compute the distance between this filter and the one received as
+    * param, giving up as soon as it is known to be larger than bound.
+    * The three metrics only depend on the number of bits set in each
+    * filter (cached by the bitsets) and on the number of bits set in
+    * their XOR: with AND = (count1 + count2 - XOR) / 2 and OR = AND + XOR,
+    * each distance grows with XOR. So a single pass counts the XOR, and
+    * stops once the count is too large for the distance to be at most
+    * bound.
+    *
+    * @param filter
+    * @param bound
+    *
+    * @return the distance, or Double.POSITIVE_INFINITY if it is larger than
+    *         bound
+    */
+    public double computeDistance(BloomFilter<E> filter, double bound) {
+
+        assert bitSetSize == filter.size() : "Different size bitsets in computeDistance: "
+        + bitSetSize + " and " + filter.size();
 
+        final boolean hamming = this.metric != 2 && this.metric != 3;
+        // the Hamming distance does not need the cardinalities
+        final int count1 = hamming ? 0 : this.bitset.cardinality();
+        final int count2 = hamming ? 0 : filter.bitset.cardinality();
+        final int sum = count1 + count2;
+        // largest XOR count for which the distance can be at most bound
+        // (rounded up, the exact distance is computed below)
+        double maxXOR;
+        if (bound == Double.POSITIVE_INFINITY || hamming)
+            maxXOR = bound;
+        else if (this.metric == 2)
+            maxXOR = bound >= 2 ? Double.POSITIVE_INFINITY : bound * sum
+                     / (2 - bound);
+        else
+            maxXOR = sum - 2 * Math.sqrt((double) count1 * count2)
+                     * (1 - bound);
+        final int countXOR = this.bitset.xorcardinality(filter.bitset,
+                             !(maxXOR < Integer.MAX_VALUE - 1) ? Integer.MAX_VALUE
+                             : (int) Math.floor(maxXOR) + 1);
+        if (countXOR > maxXOR + 1)
+            return Double.POSITIVE_INFINITY;
+        if (hamming)
+            return countXOR;
+
+        final int countAND = (sum - countXOR) / 2;
         if (this.metric == 2)
-            return computeJaccardDistance(filter);
-        else if (this.metric == 3)
-            return computeCosineDistance(filter);
-        return computeHammingDistance(filter);
+            return computeJaccardDistance(countAND, countAND + countXOR);
+        return computeCosineDistance(countAND, count1, count2);
+    }
 
+    /**
+     * Compute 1- the Cosine similarity from the bit counts Cosine
+     * similarity = ab/norm(a)*norm(b)
+     *
+     * @param countAND
+     * @param count1
+     * @param count2
+     * @return 1- cosine similarity
+     * @author Adina Crainiceanu
+     */
+    private static double computeCosineDistance(int countAND, int count1,
+            int count2) {
+        double distance = 0;
+        if (count1 > 0 || count2 > 0) {
+            distance = 1.0 - countAND
+                       / (Math.sqrt(count1) * Math.sqrt(count2));
+        }
+        return distance;
+    }
+
+    /**
+     * Compute the Jaccard distance from the bit counts Jaccard distance = 1
+     * - Jaccard similarity = 1 - size of intersection/size of union =
+     * cardinality(A xor B)/ cardinality (A or B)
+     *
+     * @param countAND
+     * @param countOR
+     * @return Jaccard distance
+     * @author Adina Crainiceanu
+     */
+    private static double computeJaccardDistance(int countAND, int countOR) {
+        double distance = 0;
+        if (countOR > 0) {
+            distance = 1.0 - (double) countAND / countOR;
+        }
+        return distance;
     }
     /**
     * Returns true if the element could have been inserted into the Bloom
@@ -205,7 +543,7 @@ public final class BloomFilter<E> implements Serializable {
     public boolean contains(E element) {
         // String valString = element.toString();
         for (int x = 0; x < k; x++) {
-            final int hash = h.hash(element, x);
+            final int hash = h.hash(element, x) & foldMask;
             if (!bitset.get(hash))
                 return false;
         }
@@ -235,9 +573,18 @@ public final class BloomFilter<E> implements Serializable {
      * @return number of elements added to the Bloom filter.
      */
     public int count() {
+        if (arena != null)
+            return arena.getCount(slot);
         return this.numberOfAddedElements;
     }
 
+    private void setCount(int count) {
+        if (arena != null)
+            arena.setCount(slot, count);
+        else
+            this.numberOfAddedElements = count;
+    }
+
     /**
      * Compares the contents of two instances to see if they are equal.
      *
@@ -334,7 +681,7 @@ public final class BloomFilter<E> implements Serializable {
      * @return number of bits per element.
      */
     public double getBitsPerElement() {
-        return this.bitSetSize / (double) numberOfAddedElements;
+        return this.bitSetSize / (double) count();
     }
 
     /**
@@ -367,7 +714,7 @@ public final class BloomFilter<E> implements Serializable {
      * @return probability of false positives.
      */
     public double getFalsePositiveProbability() {
-        return getFalsePositiveProbability(numberOfAddedElements);
+        return getFalsePositiveProbability(count());
     }
 
     /**
@@ -435,6 +782,8 @@ public final class BloomFilter<E> implements Serializable {
      * Get the id
      */
     public int getID() {
+        if (arena != null)
+            return arena.getID(slot);
         return this.id;
     }
 
@@ -489,18 +838,35 @@ public final class BloomFilter<E> implements Serializable {
      * @param filter
      */
     public void orBloomFilter(BloomFilter<E> filter) {
+        // a folded filter absorbs larger filters by folding them
+        if (isFolded() && filter.size() > bitSetSize) {
+            this.bitset.orFolded(filter.getBitSet());
+            setCount(count() + filter.count());
+            return;
+        }
         // sanity check: Bloom filters should be of same length
         assert bitSetSize == filter.size() : "Different size bitsets in orBloomFIlter: "
         + bitSetSize + " and " + filter.size();
 
+        // a counting filter counts, for each bit, the filters ORed into it
+        if (counters != null) {
+            final BitSet other = filter.getBitSet();
+            for (int i = other.nextSetBit(0); i >= 0; i = other.nextSetBit(i + 1))
+                incrementCounter(i);
+            setCount(count() + filter.count());
+            return;
+        }
         // compute the or
-        this.bitset.or(filter.getBitSet());
-        this.numberOfAddedElements += filter.count();
+        if (dirtyWords != null)
+            this.bitset.or(filter.getBitSet(), dirtyWords);
+        else
+            this.bitset.or(filter.getBitSet());
+        setCount(count() + filter.count());
 
     }
 
     public static void resetLastID() {
-        lastID = 0;
+        lastID.set(0);
     }
 
     /**
@@ -512,7 +878,15 @@ public final class BloomFilter<E> implements Serializable {
      *                If true, the bit is set. If false, the bit is cleared.
      */
     public void setBit(int bit, boolean value) {
+        if (dirtyWords != null && bitset.get(bit) != value)
+            dirtyWords.set(bit / 64);
         bitset.set(bit, value);
+        if (counters != null) {
+            if (!value)
+                counters[bit] = 0;
+            else if (counters[bit] == 0)
+                counters[bit] = 1;
+        }
     }
 
     /**
@@ -521,6 +895,8 @@ public final class BloomFilter<E> implements Serializable {
      * @param id
      */
     public void setID(int id) {
+        if (arena != null)
+            arena.setID(slot, id);
         this.id = id;
     }
 
@@ -542,7 +918,7 @@ public final class BloomFilter<E> implements Serializable {
      */
     @Override
     public String toString() {
-        return "ID:" + id + ":" + bitset.cardinality() + ":"
+        return "ID:" + getID() + ":" + bitset.cardinality() + ":"
                + bitSetSize; // + ":" + bitset.toString();
     }
 
@@ -557,98 +933,31 @@ public final class BloomFilter<E> implements Serializable {
     // return bitset.get(bit);
     // }
 
-    /**
-     * Compute 1- the Cosine similarity to the param filter Cosine
-     * similarity = ab/norm(a)*norm(b)
-     *
-     * @param filter
-     * @return 1- cosine similarity to the received Bloom filter
-     * @author Adina Crainiceanu
-     */
-    private double computeCosineDistance(BloomFilter<E> filter) {
-
-        assert bitSetSize == filter.size() : "Different size bitsets in computeCosineDistance: "
-        + bitSetSize + " and " + filter.size();
-
-        double distance = 0;
-        // find the max index that is not 0
-        int maxLength = this.bitset.length();
-        BitSet otherBitSet = filter.getBitSet();
-        if (otherBitSet.length() > maxLength) {
-            maxLength = otherBitSet.length();
-        }
-        // compute the cardinalities
-        int countAND = this.bitset.andcardinality(filter.bitset);
-        int count1 = this.bitset.cardinality();
-        int count2 = filter.bitset.cardinality();
-
-        // compute distance
-        if (count1 > 0 || count2 > 0) {
-            distance = 1.0 - countAND
-                       / (Math.sqrt(count1) * Math.sqrt(count2));
-        }
-        return distance;
+    public static int getLastID() {
+        return lastID.get();
     }
 
-    /**
-     * Compute the Hamming distance between this filter and the one given as
-     * param. Hamming distance = number of positions with different value.
-     * To compute Hamming distance, we XOR the two bitsets and take the sum
-     * or all 1s
-     *
-     * @param filter
-     * @return Hamming distance between this bloom filter and the received
-     *         Bloom filter
-     * @author Adina Crainiceanu
-     */
-    private int computeHammingDistance(BloomFilter<E> filter) {
 
-        assert bitSetSize == filter.size() : "Different size bitsets in computeHammingDistance: "
-        + bitSetSize + " and " + filter.size();
-
-        return this.bitset.xorcardinality(filter.getBitSet());
+    public static void incrementLastID() {
+        lastID.incrementAndGet();
     }
 
     /**
-     * Compute the Jaccard distance to the param filter Jaccard distance = 1
-     * - Jaccard similarity = 1 - size of intersection/size of union =
-     * cardinality(A xor B)/ cardinality (A or B)
-     *
-     * @param filter
-     * @return Jaccard distance to the received Bloom filter
-     * @author Adina Crainiceanu
+     * Return a new ID, never returned before since the last resetLastID.
+     * Safe to call from several threads.
      */
-    private double computeJaccardDistance(BloomFilter<E> filter) {
-
-        assert bitSetSize == filter.size() : "Different size bitsets in computeJaccardDistance: "
-        + bitSetSize + " and " + filter.size();
-
-        double distance = 0;
-        // find the max index that is not 0
-        int maxLength = this.bitset.length();
-        BitSet otherBitSet = filter.getBitSet();
-        if (otherBitSet.length() > maxLength) {
-            maxLength = otherBitSet.length();
-        }
-        int countAND = this.bitset.andcardinality(filter.bitset);
-        int countOR = this.bitset.orcardinality(filter.bitset);
-
-        if (countOR > 0) {
-            distance = 1.0 - (double) countAND / countOR;
-        }
-        return distance;
+    public static int newID() {
+        return lastID.incrementAndGet();
     }
 
-    public static int getLastID() {
-        return lastID;
-    }
+    private BitSet bitset;
 
+    // per-bit counters of a counting Bloom filter, null otherwise
+    private char[] counters = null;
 
-    public static void incrementLastID() {
-        lastID++;
-    }
-
-    private BitSet bitset;
+    // one bit per word of bitset, set when the word changed since the last
+    // index sync; null when the changes are not tracked
+    private BitSet dirtyWords = null;
 
     private int bitSetSize;
 
@@ -660,7 +969,8 @@ public final class BloomFilter<E> implements Serializable {
 
     public  Hasher h;
 
-    private static int lastID = 0;
+    // the filters created concurrently get distinct IDs
+    private static final AtomicInteger lastID = new AtomicInteger();
 
     private static final long serialVersionUID = 1L;// D. Lemire: this was
     // missing
@@ -677,5 +987,16 @@ public final class BloomFilter<E> implements Serializable {
     // everything else Hamming
     private int metric = 1;
 
+    // positions are reduced with this mask in a folded filter (see fold),
+    // all ones otherwise
+    private int foldMask = -1;
+
+    // the arena holding the bits, the ID and the count of this filter, null
+    // if the filter is stored in its own fields (see BloomFilterArena)
+    private BloomFilterArena<E> arena = null;
+
+    // index of this filter in the arena
+    private int slot;
+
 
 }
@@ -0,0 +1,202 @@
+package com.skjegstad.utils;
+
+import java.util.Arrays;
+
+import com.googlecode.javaewah.datastructure.BitSet;
+
+/**
+ * Storage for many Bloom filters of the same geometry (size, number of hash
+ * functions, hasher, metric): the bits of the filters are stored one after
+ * the other in large long arrays (chunks), and their IDs and counts in int
+ * arrays, instead of one BloomFilter object and one BitSet per filter.
+ *
+ * The filters are accessed through views (see get): a view is a
+ * BloomFilter whose bitset is a view of the words of the filter in its
+ * chunk, so that add, contains, getBitSet, setID... read and write the
+ * arena directly. Views are cheap to create and can be dropped after use;
+ * several views of the same filter see the same content.
+ *
+ * The chunks are never reallocated, so a view stays valid when the arena
+ * grows. Allocating filters is safe from several threads, and the IDs of
+ * new filters come from the same thread-safe allocator as BloomFilter (see
+ * BloomFilter.newID). As with BloomFilter, a given filter should only be
+ * modified by one thread at a time.
+ *
+ * @param <E>
+ *                Object type that is to be inserted into the Bloom filters
+ */
+public final class BloomFilterArena<E> {
+
+    // number of words per chunk when the number of filters per chunk is
+    // not given
+    private static final int DEFAULT_CHUNK_WORDS = 1 << 20;
+
+    /**
+     * Create an arena for filters of the same geometry as the prototype,
+     * with chunks of about a million words
+     *
+     * @param prototype
+     *                a Bloom filter giving the geometry of the filters,
+     *                neither folded nor counting; its content is ignored
+     */
+    public BloomFilterArena(BloomFilter<E> prototype) {
+        this(prototype, Math.max(1, DEFAULT_CHUNK_WORDS
+                                 / Math.max(1, prototype.getBitSet().length() / 64)));
+    }
+
+    /**
+     * Create an arena for filters of the same geometry as the prototype
+     *
+     * @param prototype
+     *                a Bloom filter giving the geometry of the filters,
+     *                neither folded nor counting; its content is ignored
+     * @param filtersPerChunk
+     *                number of filters in each chunk
+     */
+    public BloomFilterArena(BloomFilter<E> prototype, int filtersPerChunk) {
+        if (prototype.isFolded() || prototype.isCounting())
+            throw new IllegalArgumentException(
+                "The prototype of an arena can be neither folded nor counting");
+        if (filtersPerChunk < 1)
+            throw new IllegalArgumentException("Bad number of filters per chunk: "
+                                               + filtersPerChunk);
+        this.nbWords = prototype.getBitSet().length() / 64;
+        if ((long) filtersPerChunk * this.nbWords > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Chunks of " + filtersPerChunk
+                                               + " filters are too large");
+        this.prototype = prototype;
+        this.filtersPerChunk = filtersPerChunk;
+    }
+
+    /**
+     * Allocate an empty Bloom filter with a new ID
+     *
+     * @return a view of the new filter
+     */
+    public BloomFilter<E> newBloomFilter() {
+        final int slot = allocate(BloomFilter.newID());
+        return get(slot);
+    }
+
+    /**
+     * Allocate a copy of a Bloom filter: the bits, the ID and the count are
+     * copied
+     *
+     * @param bf
+     *                a Bloom filter with the geometry of this arena
+     * @return a view of the copy
+     */
+    public BloomFilter<E> copyOf(BloomFilter<E> bf) {
+        if (bf.size() != this.prototype.size()
+                || bf.getBitSet().length() != this.nbWords * 64)
+            throw new IllegalArgumentException("Bloom filter of size " + bf.size()
+                                               + " in an arena of filters of size "
+                                               + this.prototype.size());
+        final int slot = allocate(bf.getID());
+        final long[] chunk = this.words[slot / this.filtersPerChunk];
+        final int offset = (slot % this.filtersPerChunk) * this.nbWords;
+        final BitSet bits = bf.getBitSet();
+        for (int w = 0; w < this.nbWords; w++) {
+            chunk[offset + w] = bits.getWord(w);
+        }
+        setCount(slot, bf.count());
+        return get(slot);
+    }
+
+    /**
+     * Return a view of a filter of this arena
+     *
+     * @param slot
+     *                index of the filter, between 0 and size() - 1, in the
+     *                order of allocation
+     * @return a Bloom filter reading and writing the arena
+     */
+    public BloomFilter<E> get(int slot) {
+        if (slot < 0 || slot >= this.size)
+            throw new IndexOutOfBoundsException("No filter " + slot + " in an arena of "
+                                                + this.size);
+        final BitSet bits = new BitSet(this.words[slot / this.filtersPerChunk],
+                                       (slot % this.filtersPerChunk) * this.nbWords, this.nbWords);
+        return new BloomFilter<E>(this.prototype, this, slot, bits);
+    }
+
+    /**
+     * @return the number of filters allocated in this arena
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the number of bytes used by the chunks, IDs and counts
+     */
+    public long getMemoryUsage() {
+        final long[][] chunks = this.words;
+        long bytes = 0;
+        for (long[] chunk : chunks) {
+            bytes += chunk.length * 8l + this.filtersPerChunk * 8l;
+        }
+        return bytes;
+    }
+
+    int getID(int slot) {
+        return this.ids[slot / this.filtersPerChunk][slot % this.filtersPerChunk];
+    }
+
+    void setID(int slot, int id) {
+        this.ids[slot / this.filtersPerChunk][slot % this.filtersPerChunk] = id;
+    }
+
+    int getCount(int slot) {
+        return this.counts[slot / this.filtersPerChunk][slot
+                % this.filtersPerChunk];
+    }
+
+    void setCount(int slot, int count) {
+        this.counts[slot / this.filtersPerChunk][slot % this.filtersPerChunk] = count;
+    }
+
+    /**
+     * Return the slot of a new empty filter with the given ID, adding a
+     * chunk if needed
+     */
+    private synchronized int allocate(int id) {
+        final int slot = this.size;
+        final int chunk = slot / this.filtersPerChunk;
+        if (chunk == this.words.length) {
+            // copied before being published, the readers see either array
+            // with all the chunks they can reach
+            long[][] newWords = Arrays.copyOf(this.words, chunk + 1);
+            int[][] newIds = Arrays.copyOf(this.ids, chunk + 1);
+            int[][] newCounts = Arrays.copyOf(this.counts, chunk + 1);
+            newWords[chunk] = new long[this.filtersPerChunk * this.nbWords];
+            newIds[chunk] = new int[this.filtersPerChunk];
+            newCounts[chunk] = new int[this.filtersPerChunk];
+            this.ids = newIds;
+            this.counts = newCounts;
+            this.words = newWords;
+        }
+        this.ids[chunk][slot % this.filtersPerChunk] = id;
+        this.size = slot + 1;
+        return slot;
+    }
+
+    // gives the geometry of the filters
+    private final BloomFilter<E> prototype;
+
+    // number of words of each filter
+    private final int nbWords;
+
+    private final int filtersPerChunk;
+
+    // filter i is stored in chunk i / filtersPerChunk, at index i %
+    // filtersPerChunk; the arrays of chunks are replaced by longer copies,
+    // never modified
+    private volatile long[][] words = new long[0][];
+    private volatile int[][] ids = new int[0][];
+    private volatile int[][] counts = new int[0][];
+
+    // number of filters allocated
+    private volatile int size = 0;
+
+}
@@ -7,10 +7,21 @@
 package mvm.provenance;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
+import com.googlecode.javaewah.datastructure.BitSet;
 import com.skjegstad.utils.*;
 
 /**
@@ -28,6 +39,40 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
     private List<BloomFilter<E>> bfList;
     private boolean splitFull;
 
+    // if true, the value of every non-leaf node is a counting Bloom filter
+    // holding, for each bit, the number of children having that bit, so
+    // that deletes decrement counters instead of recomputing ORs
+    private boolean counting;
+
+    // if larger than 1, the values of the nodes above the parents of the
+    // leaves are folded (see BloomFilter.fold): each level is foldFactor
+    // times smaller than the level below, down to 64 bits
+    private int foldFactor = 1;
+
+    // if true, a node that overflows is split into two groups of similar
+    // children (see distanceSplitOrder) instead of by list position
+    private boolean distanceSplit = false;
+
+    // if true, some of the leaves of an overflowing leaf-parent are
+    // inserted again from the root before resorting to a split
+    private boolean forcedReinsert = false;
+
+    // true while leaves are being inserted again, so that an overflow
+    // during a reinsertion causes a split
+    private boolean reinserting = false;
+
+    // breaks ties between equally close children during inserts
+    private Random random = new Random(0);
+
+    // if positive, inserts rank the children by sketches of this size,
+    // and compare exactly only the nbReranked best ones
+    private int sketchSize = 0;
+    private int nbReranked = 0;
+
+    // if true, the leaf filters are stored sparse when they are sparse
+    // enough (see BitSet)
+    private boolean sparseLeaves = false;
+
     @Override
     public Set<Integer> getIDs() {
         return idMap.keySet();
@@ -38,14 +83,36 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
      */
     public BloomFilterIndex(int order, BloomFilter<E> sampleFilter,
                             boolean splitFull) {
+        this(order, sampleFilter, splitFull, false);
+    }
+
+    /**
+     * Constructs an empty Bloom Filter Index with just the root, in
+     * counting mode or not
+     */
+    public BloomFilterIndex(int order, BloomFilter<E> sampleFilter,
+                            boolean splitFull, boolean counting) {
+        this(order, sampleFilter, splitFull, counting, 1);
+    }
+
+    /**
+     * Constructs an empty Bloom Filter Index with just the root, where the
+     * upper levels hold filters folded by the given factor (a power of two,
+     * 1 for no folding). Folding cannot be combined with the counting mode.
+     */
+    public BloomFilterIndex(int order, BloomFilter<E> sampleFilter,
+                            boolean splitFull, boolean counting, int foldFactor) {
+        checkFolding(counting, foldFactor);
+        this.foldFactor = foldFactor;
         root = null;
         this.order = order;
         this.idMap = new Hashtable<Integer, BFINode<E>>();
         this.bfList = new ArrayList<BloomFilter<E>>();
         this.splitFull = splitFull;
+        this.counting = counting;
 
         // initialize the BFI with a root with an all-zero bloom filter
-        BloomFilter<E> zeroFilter = createZeroBloomFilter(sampleFilter);
+        BloomFilter<E> zeroFilter = createNodeFilter(sampleFilter);
         this.root = new BFINode<E>(zeroFilter, this.order,
                                    this.splitFull);
     }
@@ -57,11 +124,189 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
      */
     public BloomFilterIndex(List<BloomFilter<E>> bfList, int order,
                             boolean splitFull, InsDelUpdateStatistics stat) {
+        this(bfList, order, splitFull, false, stat);
+    }
+
+    /**
+     * Constructs a Bloom Filter Index for the Bloom Filters received as
+     * param, in counting mode or not
+     *
+     */
+    public BloomFilterIndex(List<BloomFilter<E>> bfList, int order,
+                            boolean splitFull, boolean counting,
+                            InsDelUpdateStatistics stat) {
+        this(bfList, order, splitFull, counting, 1, stat);
+    }
+
+    /**
+     * Constructs a Bloom Filter Index for the Bloom Filters received as
+     * param, where the upper levels hold filters folded by the given factor
+     * (a power of two, 1 for no folding)
+     *
+     */
+    public BloomFilterIndex(List<BloomFilter<E>> bfList, int order,
+                            boolean splitFull, boolean counting, int foldFactor,
+                            InsDelUpdateStatistics stat) {
+        this(bfList, order, splitFull, counting, foldFactor, null, stat);
+    }
+
+    /**
+     * Constructs a Bloom Filter Index for the Bloom Filters received as
+     * param, using the given pool (if not null) to sort the filters and to
+     * compute the values of the nodes in parallel. The index is the same
+     * as the one built without a pool.
+     *
+     */
+    public BloomFilterIndex(List<BloomFilter<E>> bfList, int order,
+                            boolean splitFull, boolean counting, int foldFactor,
+                            ForkJoinPool pool, InsDelUpdateStatistics stat) {
+        checkFolding(counting, foldFactor);
+        this.foldFactor = foldFactor;
         this.order = order;
         this.splitFull = splitFull;
+        this.counting = counting;
         this.idMap = new Hashtable<Integer, BFINode<E>>();
-        this.bfList = bulkLoad(bfList, stat);
+        this.bfList = bulkLoad(bfList, pool, stat);
+
+    }
 
+    /**
+     * Return true if the non-leaf nodes keep per-bit child counts
+     *
+     * @return
+     */
+    public boolean isCounting() {
+        return this.counting;
+    }
+
+    /**
+     * Choose how an overflowing node is split during inserts: by position
+     * in the children list (the default), or into two groups of children
+     * with small unions, picked using the distance metric of the filters
+     *
+     * @param distanceSplit
+     */
+    public void setDistanceSplit(boolean distanceSplit) {
+        this.distanceSplit = distanceSplit;
+    }
+
+    /**
+     * Return true if overflowing nodes are split using the distance metric
+     *
+     * @return
+     */
+    public boolean isDistanceSplit() {
+        return this.distanceSplit;
+    }
+
+    /**
+     * Seed the random generator used to break ties between equally close
+     * children during inserts
+     *
+     * @param seed
+     */
+    public void setRandomSeed(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Route inserts using sketches: each node caches a one-permutation
+     * MinHash sketch of its value (sketchSize ranges, kept up to date
+     * lazily as the value changes), the children are ranked by the
+     * similarity of their sketches with the new filter, and only the
+     * nbReranked best ones are compared exactly (none if nbReranked is 1
+     * or less). A sketchSize of 0 turns sketches off.
+     *
+     * @param sketchSize
+     * @param nbReranked
+     */
+    public void setSketchRouting(int sketchSize, int nbReranked) {
+        if (sketchSize < 0)
+            throw new IllegalArgumentException("Negative sketch size");
+        this.sketchSize = sketchSize;
+        this.nbReranked = nbReranked;
+    }
+
+    /**
+     * Turn on or off the sparse representation of the leaf filters (see
+     * BitSet.compress): the filters of the leaves with few bits set take
+     * less memory, at the price of slower comparisons with the new
+     * filters during inserts. The leaves already in the index are
+     * converted.
+     *
+     * @param sparseLeaves
+     */
+    public void setSparseLeaves(boolean sparseLeaves) {
+        this.sparseLeaves = sparseLeaves;
+        for (BFINode<E> leaf : this.idMap.values()) {
+            if (sparseLeaves) {
+                leaf.value.compress();
+            } else {
+                leaf.value.getBitSet().decompress();
+            }
+        }
+    }
+
+    /**
+     * Turn on or off the forced reinsertion on overflow, in the style of
+     * the R*-tree: when a parent of leaves overflows during an insert, the
+     * leaves that contribute the most bits of their own to its value are
+     * removed and inserted again from the root, and the parent is split
+     * only if it overflows again.
+     *
+     * @param forcedReinsert
+     */
+    public void setForcedReinsert(boolean forcedReinsert) {
+        this.forcedReinsert = forcedReinsert;
+    }
+
+    /**
+     * Return true if overflowing parents of leaves first reinsert some of
+     * their leaves
+     *
+     * @return
+     */
+    public boolean isForcedReinsert() {
+        return this.forcedReinsert;
+    }
+
+    /**
+     * Return the factor by which each upper level of the tree is folded
+     *
+     * @return
+     */
+    public int getFoldFactor() {
+        return this.foldFactor;
+    }
+
+    /**
+     * Return the total number of bits in the values of the non-leaf nodes,
+     * that is, the memory used by the index on top of the indexed filters
+     *
+     * @return
+     */
+    public long getNodeFilterBits() {
+        return getNodeFilterBits(this.root);
+    }
+
+    private long getNodeFilterBits(BFINode<E> node) {
+        if (node.isLeaf()) {
+            return 0;
+        }
+        long bits = node.value.size();
+        for (BFINode<E> child : node.children) {
+            bits += getNodeFilterBits(child);
+        }
+        return bits;
+    }
+
+    private static void checkFolding(boolean counting, int foldFactor) {
+        if (foldFactor < 1 || Integer.bitCount(foldFactor) != 1)
+            throw new IllegalArgumentException(
+                "The fold factor must be a power of two: " + foldFactor);
+        if (counting && foldFactor > 1)
+            throw new IllegalArgumentException(
+                "Folding is not supported in counting mode");
     }
 
     /**
@@ -151,11 +396,311 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
                      + id);
             return -1;
         }
-        updateValueToTheRoot(node, newBloomFilter, stat);
+        // if the filter tracks its changed words, only propagate those
+        BitSet dirty = newBloomFilter.getDirtyWords();
+        if (this.counting) {
+            if (node.value != newBloomFilter) {
+                node.value.orBloomFilter(newBloomFilter);
+            }
+            // the parent needs to recount the changed words of its
+            // children, the new bits are then propagated as usual
+            if (node.parent != null) {
+                int[] gained = recountWords(node.parent, dirty, stat);
+                addChildBits(node.parent.parent, gained, gained.length,
+                             stat);
+            }
+        } else if (dirty != null) {
+            updateWordsToTheRoot(node, newBloomFilter, dirty, stat);
+        } else {
+            updateValueToTheRoot(node, newBloomFilter, stat);
+        }
         return 0;
 
     }
 
+    /**
+     * Add an element to the Bloom filter with the given ID, and set its k
+     * bits in the ancestors of the leaf, up to the first ancestor where the
+     * bits are already set. This costs O(k * height) instead of the
+     * O(filter size) of updateIndex.
+     */
+    @Override
+    public int addElement(int id, E element, InsDelUpdateStatistics stat) {
+        BFINode<E> node = this.idMap.get(id);
+        if (node == null) {
+            System.err
+            .println("ERROR: Cound not find node with ID "
+                     + id);
+            return -1;
+        }
+        final Hasher h = node.value.getHasher();
+        final int[] positions = new int[node.value.getK()];
+        for (int x = 0; x < positions.length; x++) {
+            positions[x] = h.hash(element, x);
+        }
+        if (this.counting) {
+            // only the bits new to the leaf are counted by the parent
+            int nbNew = unsetPositions(node.value.getBitSet(), positions,
+                                       positions.length);
+            node.value.add(element);
+            stat.nbBFAccessed++;
+            addChildBits(node.parent, positions, nbNew, stat);
+            return 0;
+        }
+        node.value.add(element);
+        stat.nbBFAccessed++;
+        setBitsToTheRoot(node.parent, positions, positions.length, stat);
+        return 0;
+    }
+
+    /**
+     * Batched version of addElement: the bits of all the elements are
+     * propagated together
+     */
+    @Override
+    public int addElements(int id, Collection<? extends E> elements,
+                           InsDelUpdateStatistics stat) {
+        BFINode<E> node = this.idMap.get(id);
+        if (node == null) {
+            System.err
+            .println("ERROR: Cound not find node with ID "
+                     + id);
+            return -1;
+        }
+        final Hasher h = node.value.getHasher();
+        final int k = node.value.getK();
+        int[] positions = new int[elements.size() * k];
+        int nbPositions = 0;
+        for (E element : elements) {
+            for (int x = 0; x < k; x++) {
+                positions[nbPositions++] = h.hash(element, x);
+            }
+        }
+        if (this.counting) {
+            // only the bits new to the leaf are counted by the parent
+            nbPositions = unsetPositions(node.value.getBitSet(),
+                                         positions, nbPositions);
+        }
+        for (E element : elements) {
+            node.value.add(element);
+        }
+        stat.nbBFAccessed++;
+        if (this.counting) {
+            addChildBits(node.parent, positions, nbPositions, stat);
+        } else {
+            setBitsToTheRoot(node.parent, positions, nbPositions, stat);
+        }
+        return 0;
+    }
+
+    /**
+     * Set the given bits in the current node and its ancestors. Since the
+     * value of a node contains the values of its children, we can stop at
+     * the first node where all the bits are already set.
+     *
+     * @param current
+     * @param positions
+     * @param nbPositions
+     *                number of positions to use in the array
+     */
+    private void setBitsToTheRoot(BFINode<E> current, int[] positions,
+                                  int nbPositions, InsDelUpdateStatistics stat) {
+        while (current != null) {
+            final BitSet bs = current.value.getBitSet();
+            final int mask = current.value.getFoldMask();
+            boolean changed = false;
+            for (int x = 0; x < nbPositions; x++) {
+                if (!bs.get(positions[x] & mask)) {
+                    bs.set(positions[x] & mask);
+                    changed = true;
+                }
+            }
+            stat.nbBFAccessed++;
+            if (!changed) {
+                return;
+            }
+            current = current.parent;
+        }
+    }
+
+    /**
+     * Remove an element from the Bloom filter with the given ID, which has
+     * to be a counting Bloom filter, in a counting index. The bits cleared
+     * in the leaf are removed from the child counts of its ancestors, up to
+     * the first ancestor where no bit was cleared.
+     *
+     * @return 0 on success, 1 if the element was not in the filter, -1 if the
+     *         ID is not in the index
+     */
+    public int removeElement(int id, E element, InsDelUpdateStatistics stat) {
+        if (!this.counting) {
+            throw new IllegalStateException(
+                "Removing elements requires a counting index");
+        }
+        BFINode<E> node = this.idMap.get(id);
+        if (node == null) {
+            System.err
+            .println("ERROR: Cound not find node with ID "
+                     + id);
+            return -1;
+        }
+        final Hasher h = node.value.getHasher();
+        final int[] positions = new int[node.value.getK()];
+        for (int x = 0; x < positions.length; x++) {
+            positions[x] = h.hash(element, x);
+        }
+        if (!node.value.remove(element)) {
+            return 1;
+        }
+        stat.nbBFAccessed++;
+        int nbCleared = unsetPositions(node.value.getBitSet(), positions,
+                                       positions.length);
+        removeChildBits(node.parent, positions, nbCleared, stat);
+        return 0;
+    }
+
+    /**
+     * Move to the front of the array the distinct positions that are not
+     * set in the bitset, in increasing order. Sorting first makes the
+     * duplicates adjacent, so a batch of positions is not scanned once per
+     * position.
+     *
+     * @return the number of such positions
+     */
+    private static int unsetPositions(BitSet bs, int[] positions,
+                                      int nbPositions) {
+        Arrays.sort(positions, 0, nbPositions);
+        int nb = 0;
+        int previous = -1;
+        for (int x = 0; x < nbPositions; x++) {
+            final int p = positions[x];
+            if (p != previous && !bs.get(p)) {
+                positions[nb++] = p;
+            }
+            previous = p;
+        }
+        return nb;
+    }
+
+    /**
+     * Return the positions of the bits set in the bitset
+     */
+    private static int[] setPositions(BitSet bs) {
+        int[] positions = new int[bs.cardinality()];
+        int nb = 0;
+        for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i + 1)) {
+            positions[nb++] = i;
+        }
+        return positions;
+    }
+
+    /**
+     * Counting mode: a child of the parent node gained the given bits.
+     * Increment the counters of the parent, and propagate to the ancestors
+     * the bits that were not set in the parent. The positions array is
+     * overwritten.
+     *
+     * @param parent
+     * @param positions
+     * @param nbPositions
+     */
+    private void addChildBits(BFINode<E> parent, int[] positions,
+                              int nbPositions, InsDelUpdateStatistics stat) {
+        while (parent != null && nbPositions > 0) {
+            int nbNew = 0;
+            for (int x = 0; x < nbPositions; x++) {
+                if (parent.value.incrementCounter(positions[x])) {
+                    positions[nbNew++] = positions[x];
+                }
+            }
+            stat.nbBFAccessed++;
+            nbPositions = nbNew;
+            parent = parent.parent;
+        }
+    }
+
+    /**
+     * Counting mode: a child of the parent node lost the given bits (or was
+     * removed). Decrement the counters of the parent, and propagate to the
+     * ancestors the bits that got cleared in the parent. The positions array
+     * is overwritten.
+     *
+     * @param parent
+     * @param positions
+     * @param nbPositions
+     */
+    private void removeChildBits(BFINode<E> parent, int[] positions,
+                                 int nbPositions, InsDelUpdateStatistics stat) {
+        while (parent != null && nbPositions > 0) {
+            int nbCleared = 0;
+            for (int x = 0; x < nbPositions; x++) {
+                if (parent.value.decrementCounter(positions[x])) {
+                    positions[nbCleared++] = positions[x];
+                }
+            }
+            stat.nbBFAccessed++;
+            nbPositions = nbCleared;
+            parent = parent.parent;
+        }
+    }
+
+    /**
+     * Counting mode: recount, from the children, the counters of the given
+     * words of the node (all the words if null). Children may only have
+     * gained bits.
+     *
+     * @return the positions of the bits that were not set in the node
+     */
+    private int[] recountWords(BFINode<E> node, BitSet words,
+                               InsDelUpdateStatistics stat) {
+        final BitSet bs = node.value.getBitSet();
+        final int nbWords = bs.length() / 64;
+        int[] gained = new int[64];
+        int nbGained = 0;
+        for (int w = (words == null ? 0 : words.nextSetBit(0)); w >= 0
+                && w < nbWords; w = (words == null ? w + 1 : words
+                                     .nextSetBit(w + 1))) {
+            long union = 0;
+            for (BFINode<E> child : node.children) {
+                union |= child.value.getBitSet().getWord(w);
+            }
+            while (union != 0) {
+                final int bit = w * 64 + Long.numberOfTrailingZeros(union);
+                union &= union - 1;
+                int count = 0;
+                for (BFINode<E> child : node.children) {
+                    if (child.value.getBitSet().get(bit)) {
+                        count++;
+                    }
+                }
+                if (node.value.getCounter(bit) == 0) {
+                    if (nbGained == gained.length) {
+                        gained = Arrays.copyOf(gained, 2 * nbGained);
+                    }
+                    gained[nbGained++] = bit;
+                }
+                node.value.setCounter(bit, count);
+            }
+        }
+        stat.nbBFAccessed += node.children.size() + 1;
+        return Arrays.copyOf(gained, nbGained);
+    }
+
+    /**
+     * Counting mode: recompute the values, and so the counters, of all the
+     * nodes of the subtree
+     */
+    private void recomputeSubtree(BFINode<E> node,
+                                  InsDelUpdateStatistics stat) {
+        if (node.isLeaf()) {
+            return;
+        }
+        for (BFINode<E> child : node.children) {
+            recomputeSubtree(child, stat);
+        }
+        node.recomputeValue(stat);
+    }
+
     /**
      * Delete the Bloom filter with the given ID from the index
      */
@@ -222,7 +767,12 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
         // check if underflow at the parent
         if (!node.needMerge()) {
             // no underflow, update values
-            recomputeValueToTheRoot(node, stat);
+            if (this.counting) {
+                int[] positions = setPositions(childNode.value.getBitSet());
+                removeChildBits(node, positions, positions.length, stat);
+            } else {
+                recomputeValueToTheRoot(node, stat);
+            }
         } else {
             // try to re-distribute
             // get a sibling of the node
@@ -258,7 +808,20 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
                 redistribute(node, sibling, isRightSibling,
                              stat);
             } else {
+                BitSet before = this.counting ? sibling.value.getBitSet()
+                                .clone() : null;
                 merge(node, sibling, isRightSibling, stat);
+                if (this.counting) {
+                    // the parent counts the bits the sibling gained
+                    BitSet gained = sibling.value.getBitSet().clone();
+                    for (int w = 0; w < gained.length() / 64; w++) {
+                        gained.setWord(w, gained.getWord(w)
+                                       & ~before.getWord(w));
+                    }
+                    int[] positions = setPositions(gained);
+                    addChildBits(node.parent, positions, positions.length,
+                                 stat);
+                }
                 // delete the node
                 deleteNode(node, stat);
 
@@ -370,69 +933,668 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
     }
 
     /**
-     * Bulk load a Bloom Filter Index. It changes the root field.
+     * Bulk load a Bloom Filter Index. It changes the root field.
+     */
+    private List<BloomFilter<E>> bulkLoad(List<BloomFilter<E>> mbfList,
+                                          ForkJoinPool pool, InsDelUpdateStatistics stat) {
+        if(mbfList.size()>0) {
+            BloomFilter<E> base = mbfList.get(0);
+            for(BloomFilter<E> c : mbfList) {
+                if(c.h != base.h) throw new RuntimeException("You need to use the same hasher throughout!");
+            }
+        }
+        // "sort" the received list of Bloom filters according to some
+        // metric
+        ArrayList<BloomFilter<E>> copy = new ArrayList<BloomFilter<E>>(mbfList);
+        mbfList = sort(copy, pool);
+
+        // without splitFull, splits depend on the values, so the tree can
+        // only be built by inserting to the right
+        if (pool != null && this.splitFull) {
+            bulkLoadByLevel(mbfList, pool, stat);
+            return mbfList;
+        }
+
+        // keep pointer to right-most leaf
+        BFINode<E> rightmost;
+
+        // initialize the BFI with a root with an all-zero bloom filter
+        BloomFilter<E> sampleFilter = mbfList.get(0);
+        BloomFilter<E> zeroFilter = createNodeFilter(sampleFilter);
+        this.root = new BFINode<E>(zeroFilter, this.order,
+                                   this.splitFull);
+        rightmost = this.root;
+
+        // insert each Bloomfilter in the rightmost leaf
+        // if needed, split
+        BFINode<E> current;
+        for (BloomFilter<E> bf : mbfList) {
+            // create a BFINode for this BloomFilter
+            current = new BFINode<E>(bf, this.order, this.splitFull);
+
+            // insert the ID - node mapping into the hashtable
+            this.idMap.put(bf.getID(), current);
+
+            // insert it into the rightmost leaf
+            rightmost = insertRight(true, rightmost, current,
+                                    rightmost, stat);
+
+        }
+
+        // the leaves were ORed into all their ancestors, fix the counters
+        if (this.counting) {
+            recomputeSubtree(this.root, stat);
+        }
+
+        return mbfList;
+    }
+
+    /**
+     * Build the tree over the sorted filters level by level: the nodes of
+     * each level are cut in the same groups as insertRight and splitRight
+     * would (see groupSizes), and the values of the new parents are
+     * computed in parallel. It changes the root field.
+     */
+    private void bulkLoadByLevel(List<BloomFilter<E>> sorted,
+                                 ForkJoinPool pool, InsDelUpdateStatistics stat) {
+        ArrayList<BFINode<E>> level = new ArrayList<BFINode<E>>(sorted.size());
+        for (BloomFilter<E> bf : sorted) {
+            BFINode<E> leaf = new BFINode<E>(bf, this.order, this.splitFull);
+            this.idMap.put(bf.getID(), leaf);
+            level.add(leaf);
+        }
+
+        int nbLevels = 0;
+        int nbNodes = 0;
+        BloomFilter<E> sampleFilter = sorted.get(0);
+        do {
+            int[] sizes = groupSizes(level.size(), this.order);
+            ArrayList<BFINode<E>> parents = new ArrayList<BFINode<E>>(
+                sizes.length);
+            int from = 0;
+            for (int size : sizes) {
+                // the parents of the leaves are not folded
+                BloomFilter<E> zeroFilter = nbLevels == 0 ? createNodeFilter(sampleFilter)
+                                            : createParentFilter(sampleFilter);
+                BFINode<E> parent = new BFINode<E>(zeroFilter, this.order,
+                                                   this.splitFull);
+                parent.children = new ArrayList<BFINode<E>>(level.subList(
+                                      from, from + size));
+                for (BFINode<E> child : parent.children) {
+                    child.parent = parent;
+                }
+                stat.nbBFNodesAccessed += 2 * size;
+                stat.nbBFAccessed += size + 1;
+                parents.add(parent);
+                from += size;
+            }
+            pool.invoke(new RecomputeValues<E>(parents, 0, parents.size()));
+            sampleFilter = parents.get(0).value;
+            nbLevels++;
+            nbNodes += parents.size();
+            level = parents;
+        } while (level.size() > 1);
+
+        this.root = level.get(0);
+        // every node but the first of each level came from a split
+        stat.nbSplits += nbNodes - nbLevels;
+    }
+
+    /**
+     * Return the number of children of each of the parents of nbNodes
+     * nodes appended one by one to the right: a node splits when it gets
+     * 2 * order + 1 children and keeps the first order + 1, so all the
+     * parents but the last one have order + 1 children, and the last one
+     * has between order and 2 * order children (or all the nodes if there
+     * are at most 2 * order)
+     */
+    static int[] groupSizes(int nbNodes, int order) {
+        if (nbNodes <= 2 * order) {
+            return new int[] { nbNodes };
+        }
+        int nbFull = (nbNodes - order) / (order + 1);
+        int[] sizes = new int[nbFull + 1];
+        Arrays.fill(sizes, order + 1);
+        sizes[nbFull] = nbNodes - nbFull * (order + 1);
+        return sizes;
+    }
+
+    /**
+     * Recompute the values of a range of nodes of the same level, forking
+     * for large ranges
+     */
+    private static class RecomputeValues<EL> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // number of nodes below which the values are computed in place
+        private static final int THRESHOLD = 16;
+
+        private final List<BFINode<EL>> nodes;
+        private final int from;
+        private final int to;
+
+        RecomputeValues(List<BFINode<EL>> nodes, int from, int to) {
+            this.nodes = nodes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                // the statistics were counted by the caller
+                InsDelUpdateStatistics ignored = new InsDelUpdateStatistics();
+                for (int i = from; i < to; i++) {
+                    nodes.get(i).recomputeValue(ignored);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RecomputeValues<EL>(nodes, from, middle),
+                      new RecomputeValues<EL>(nodes, middle, to));
+        }
+    }
+
+    /**
+     * Search for an object in the BFI and return the matching Bloom filters
+     *
+     * @param o
+     * @return
+     */
+    public ArrayList<BloomFilter<E>> searchBloomFilters(E o,
+            SearchStatistics stat) {
+        return findMatches(this.root, o, stat);
+    }
+
+    @Override
+    public List<Integer> search(E o, SearchStatistics stat) {
+        ArrayList<BloomFilter<E>> x = searchBloomFilters(o, stat);
+        ArrayList<Integer> ans = new ArrayList<Integer>(x.size());
+        for (BloomFilter<E> bf : x) {
+            ans.add( bf.getID());
+        }
+        return ans;
+    }
+
+    /**
+     * Only the subtrees holding allowed leaves are searched: the allowed
+     * leaves and their ancestors are marked first, so that the cost of the
+     * search follows the number of allowed IDs, not the size of the index
+     */
+    @Override
+    public List<Integer> search(E o, IdSet allowed, SearchStatistics stat) {
+        ArrayList<Integer> ans = new ArrayList<Integer>();
+        Set<BFINode<E>> marked = Collections
+                                 .newSetFromMap(new IdentityHashMap<BFINode<E>, Boolean>());
+        for (IntIterator it = allowed.iterator(); it.hasNext();) {
+            // stop at the first ancestor marked by another leaf
+            for (BFINode<E> node = idMap.get(it.next()); node != null
+                    && marked.add(node); node = node.parent) {
+            }
+        }
+        if (!marked.isEmpty()) {
+            findMatches(this.root, this.root.value.getHasher().hashAll(o),
+                        marked, ans, stat);
+        }
+        return ans;
+    }
+
+    /**
+     * Add to ans the IDs of the marked leaves below the node having all the
+     * given bits, going down only into the marked children
+     */
+    private void findMatches(BFINode<E> node, int[] positions,
+                             Set<BFINode<E>> marked, List<Integer> ans,
+                             SearchStatistics stat) {
+        stat.nbBFChecks++;
+        if (!hasAll(node.value, positions)) {
+            return;
+        }
+        if (node.isLeaf()) {
+            ans.add(node.value.getID());
+            return;
+        }
+        for (int i = 0; i < node.children.size(); i++) {
+            final BFINode<E> child = node.children.get(i);
+            if (marked.contains(child)) {
+                findMatches(child, positions, marked, ans, stat);
+            }
+        }
+    }
+
+    /**
+     * The tree is searched depth first as in search, going down to the next
+     * matching leaf as the IDs are pulled
+     */
+    @Override
+    public IntIterator searchIterator(E o, final SearchStatistics stat) {
+        final int[] positions = this.root.value.getHasher().hashAll(o);
+        // the nodes being visited, from the root down
+        final ArrayList<BFINode<E>> path = new ArrayList<BFINode<E>>();
+        stat.nbBFChecks++;
+        if (!this.idMap.isEmpty() && hasAll(this.root.value, positions)) {
+            path.add(this.root);
+        }
+        final int height = getHeight();
+        return new IntIterator() {
+            // the index of the next child to visit of each node of path
+            private int[] next = new int[height + 1];
+
+            // true if id is the ID of the next matching leaf
+            private boolean found = false;
+            private int id;
+
+            @Override
+            public boolean hasNext() {
+                while (!this.found && !path.isEmpty()) {
+                    final int d = path.size() - 1;
+                    final BFINode<E> node = path.get(d);
+                    if (node.isLeaf() || this.next[d] >= node.children.size()) {
+                        path.remove(d);
+                        continue;
+                    }
+                    final BFINode<E> child = node.children.get(this.next[d]++);
+                    stat.nbBFChecks++;
+                    if (!hasAll(child.value, positions)) {
+                        continue;
+                    }
+                    if (child.isLeaf()) {
+                        this.id = child.value.getID();
+                        this.found = true;
+                        continue;
+                    }
+                    path.add(child);
+                    if (d + 1 == this.next.length) {
+                        this.next = Arrays.copyOf(this.next, this.next.length * 2);
+                    }
+                    this.next[d + 1] = 0;
+                }
+                return this.found;
+            }
+
+            @Override
+            public int next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                this.found = false;
+                return this.id;
+            }
+        };
+    }
+
+    /**
+     * The tree is searched depth first as in search, keeping the nodes
+     * being visited from the root down; the cursor holds the index of the
+     * next child to visit of each of them, from which the nodes are found
+     * again when resuming
+     */
+    @Override
+    public PartialResult search(E o, long deadline, int[] cursor,
+                                SearchStatistics stat) {
+        ArrayList<Integer> ans = new ArrayList<Integer>();
+        final int[] positions = this.root.value.getHasher().hashAll(o);
+        ArrayList<BFINode<E>> path = new ArrayList<BFINode<E>>();
+        int[] next;
+        if (cursor == null) {
+            stat.nbBFChecks++;
+            if (this.idMap.isEmpty() || !hasAll(this.root.value, positions)) {
+                return new PartialResult(ans, null);
+            }
+            path.add(this.root);
+            next = new int[getHeight() + 1];
+        } else {
+            next = Arrays.copyOf(cursor, Math.max(cursor.length,
+                                                  getHeight() + 1));
+            // the child being visited of each node is the one before next
+            for (BFINode<E> node = this.root; node != null;) {
+                path.add(node);
+                final int d = path.size() - 1;
+                node = d + 1 < cursor.length && !node.isLeaf()
+                       && next[d] >= 1 && next[d] <= node.children.size() ? node.children
+                       .get(next[d] - 1) : null;
+            }
+        }
+        int steps = 0;
+        while (!path.isEmpty()) {
+            final int d = path.size() - 1;
+            if (PartialResult.isLate(++steps, deadline)) {
+                return new PartialResult(ans, Arrays.copyOf(next, d + 1));
+            }
+            final BFINode<E> node = path.get(d);
+            if (node.isLeaf() || next[d] >= node.children.size()) {
+                path.remove(d);
+                continue;
+            }
+            final BFINode<E> child = node.children.get(next[d]++);
+            stat.nbBFChecks++;
+            if (!hasAll(child.value, positions)) {
+                continue;
+            }
+            if (child.isLeaf()) {
+                ans.add(child.value.getID());
+                continue;
+            }
+            path.add(child);
+            if (d + 1 == next.length) {
+                next = Arrays.copyOf(next, next.length * 2);
+            }
+            next[d + 1] = 0;
+        }
+        return new PartialResult(ans, null);
+    }
+
+    /**
+     * Same as search: the leaves are found one by one anyway
+     */
+    @Override
+    public IdSet searchIds(E o, SearchStatistics stat) {
+        return IdSet.of(search(o, stat));
+    }
+
+    @Override
+    public int count(E o, SearchStatistics stat) {
+        return countMatches(this.root, this.root.value.getHasher().hashAll(o),
+                            stat);
+    }
+
+    /**
+     * Return the number of leaves below the node having all the given bits
+     */
+    private int countMatches(BFINode<E> node, int[] positions,
+                             SearchStatistics stat) {
+        stat.nbBFChecks++;
+        if (!hasAll(node.value, positions)) {
+            return 0;
+        }
+        if (node.isLeaf()) {
+            return 1;
+        }
+        int count = 0;
+        for (int i = 0; i < node.children.size(); i++) {
+            count += countMatches(node.children.get(i), positions, stat);
+        }
+        return count;
+    }
+
+    @Override
+    public List<Integer> searchLimit(E o, int limit, SearchStatistics stat) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Bad limit: " + limit);
+        }
+        ArrayList<Integer> ans = new ArrayList<Integer>();
+        if (limit > 0) {
+            findMatches(this.root, this.root.value.getHasher().hashAll(o),
+                        limit, ans, stat);
+        }
+        return ans;
+    }
+
+    @Override
+    public int searchFirst(E o, SearchStatistics stat) {
+        List<Integer> ans = searchLimit(o, 1, stat);
+        return ans.isEmpty() ? -1 : ans.get(0);
+    }
+
+    @Override
+    public boolean anyMatch(E o, SearchStatistics stat) {
+        return !searchLimit(o, 1, stat).isEmpty();
+    }
+
+    /**
+     * Add to ans the IDs of the leaves below the node having all the given
+     * bits, and stop going down the tree once ans holds limit IDs
+     */
+    private void findMatches(BFINode<E> node, int[] positions, int limit,
+                             List<Integer> ans, SearchStatistics stat) {
+        stat.nbBFChecks++;
+        if (!hasAll(node.value, positions)) {
+            return;
+        }
+        if (node.isLeaf()) {
+            ans.add(node.value.getID());
+            return;
+        }
+        for (int i = 0; i < node.children.size() && ans.size() < limit; i++) {
+            findMatches(node.children.get(i), positions, limit, ans, stat);
+        }
+    }
+
+    @Override
+    public List<Integer> searchAll(Collection<? extends E> keys,
+                                   SearchStatistics stat) {
+        ArrayList<Integer> ans = new ArrayList<Integer>();
+        if (keys.isEmpty()) {
+            return ans;
+        }
+        // the positions of all the keys, hashed once for the whole tree
+        final int[] positions = this.root.value.getHasher().hashAll(keys);
+        findAllMatches(this.root, positions, ans, stat);
+        return ans;
+    }
+
+    @Override
+    public List<Integer> searchAny(Collection<? extends E> keys,
+                                   SearchStatistics stat) {
+        ArrayList<Integer> ans = new ArrayList<Integer>();
+        if (keys.isEmpty()) {
+            return ans;
+        }
+        final int[][] positions = this.root.value.getHasher().hashEach(keys);
+        final int[] alive = new int[positions.length];
+        for (int i = 0; i < alive.length; i++) {
+            alive[i] = i;
+        }
+        findAnyMatches(this.root, positions, alive, alive.length, ans, stat);
+        return ans;
+    }
+
+    /**
+     * Add to ans the IDs of the leaves below the node having all the given
+     * bits, skipping a subtree as soon as one bit is missing
+     */
+    private void findAllMatches(BFINode<E> node, int[] positions,
+                                List<Integer> ans, SearchStatistics stat) {
+        stat.nbBFChecks++;
+        if (!hasAll(node.value, positions)) {
+            return;
+        }
+        if (node.isLeaf()) {
+            ans.add(node.value.getID());
+            return;
+        }
+        for (int i = 0; i < node.children.size(); i++) {
+            findAllMatches(node.children.get(i), positions, ans, stat);
+        }
+    }
+
+    /**
+     * Add to ans the IDs of the leaves below the node matching at least one
+     * of the keys alive[0 .. nbAlive - 1]; only the keys matching a node
+     * are tested below it
+     */
+    private void findAnyMatches(BFINode<E> node, int[][] positions,
+                                int[] alive, int nbAlive, List<Integer> ans,
+                                SearchStatistics stat) {
+        stat.nbBFChecks++;
+        if (node.isLeaf()) {
+            for (int i = 0; i < nbAlive; i++) {
+                if (hasAll(node.value, positions[alive[i]])) {
+                    ans.add(node.value.getID());
+                    return;
+                }
+            }
+            return;
+        }
+        final int[] matching = new int[nbAlive];
+        int nbMatching = 0;
+        for (int i = 0; i < nbAlive; i++) {
+            if (hasAll(node.value, positions[alive[i]])) {
+                matching[nbMatching++] = alive[i];
+            }
+        }
+        if (nbMatching == 0) {
+            return;
+        }
+        for (int i = 0; i < node.children.size(); i++) {
+            findAnyMatches(node.children.get(i), positions, matching,
+                           nbMatching, ans, stat);
+        }
+    }
+
+    /**
+     * Find the k indexed Bloom filters closest to the probe, as measured by
+     * probe.computeDistance, using the tree as a metric index: the nodes are
+     * visited best first, by a lower bound of the distance from the probe to
+     * the leaves below them, and the search stops once the bound of the
+     * next node is larger than the distance of the k-th closest leaf found.
+     *
+     * A node filter is the union of the leaves below it, so a bit of the
+     * probe missing from the node is missing from all these leaves. With
+     * missing such bits out of the q bits of the probe, the distance to
+     * each leaf is at least missing for the Hamming distance, missing / q
+     * for the Jaccard distance (the intersection has at most q - missing
+     * bits, the union at least q) and 1 - sqrt((q - missing) / q) for the
+     * cosine distance (with i bits in the intersection, the leaf has at
+     * least i bits, so the similarity is at most sqrt(i / q)).
+     *
+     * @param probe
+     *                an unfolded Bloom filter of the size of the indexed
+     *                filters, whose metric is used
+     * @param k
+     *                number of filters to return
+     * @param stat
+     *                nbBFChecks counts the nodes whose bound or distance is
+     *                computed
+     * @return the IDs of the (at most) k closest filters, by increasing
+     *         distance, ties broken by increasing ID
+     */
+    public List<Integer> searchNearest(BloomFilter<E> probe, int k,
+                                       SearchStatistics stat) {
+        if (k < 0) {
+            throw new IllegalArgumentException("Bad number of neighbours: " + k);
+        }
+        if (probe.isFolded()) {
+            throw new IllegalArgumentException("The probe cannot be folded");
+        }
+        ArrayList<Integer> ans = new ArrayList<Integer>();
+        if (k == 0 || this.idMap.isEmpty()) {
+            return ans;
+        }
+        // the k closest leaves found so far, the farthest first
+        PriorityQueue<Neighbour<E>> nearest = new PriorityQueue<Neighbour<E>>(
+            k + 1, Collections.reverseOrder());
+        // the nodes to visit, the smallest bound first
+        PriorityQueue<Neighbour<E>> toVisit = new PriorityQueue<Neighbour<E>>();
+        final int probeCount = probe.getBitSet().cardinality();
+        stat.nbBFChecks++;
+        toVisit.add(new Neighbour<E>(this.root, lowerBound(probe, probeCount,
+                                     this.root.value)));
+        while (!toVisit.isEmpty()) {
+            final Neighbour<E> next = toVisit.poll();
+            if (nearest.size() == k && next.distance > nearest.peek().distance) {
+                break;
+            }
+            for (int i = 0; i < next.node.children.size(); i++) {
+                final BFINode<E> child = next.node.children.get(i);
+                final double worst = nearest.size() == k ? nearest.peek().distance
+                                     : Double.POSITIVE_INFINITY;
+                stat.nbBFChecks++;
+                if (!child.isLeaf()) {
+                    final double bound = lowerBound(probe, probeCount,
+                                                    child.value);
+                    if (bound <= worst) {
+                        toVisit.add(new Neighbour<E>(child, bound));
+                    }
+                    continue;
+                }
+                final double distance = probe.computeDistance(child.value,
+                                        worst);
+                if (distance > worst) {
+                    continue;
+                }
+                nearest.add(new Neighbour<E>(child, distance));
+                if (nearest.size() > k) {
+                    nearest.poll();
+                }
+            }
+        }
+        Neighbour<?>[] sorted = nearest.toArray(new Neighbour<?>[nearest.size()]);
+        Arrays.sort(sorted);
+        for (Neighbour<?> n : sorted) {
+            ans.add(n.node.value.getID());
+        }
+        return ans;
+    }
+
+    /**
+     * Return a lower bound of the distance from the probe to the leaves
+     * below a node with the given filter (see searchNearest)
      */
-    private List<BloomFilter<E>> bulkLoad(List<BloomFilter<E>> mbfList,
-                                          InsDelUpdateStatistics stat) {
-        if(mbfList.size()>0) {
-            BloomFilter<E> base = mbfList.get(0);
-            for(BloomFilter<E> c : mbfList) {
-                if(c.h != base.h) throw new RuntimeException("You need to use the same hasher throughout!");
+    private static double lowerBound(BloomFilter<?> probe, int probeCount,
+                                     BloomFilter<?> filter) {
+        final BitSet bits = filter.getBitSet();
+        int missing;
+        if (filter.isFolded()) {
+            missing = 0;
+            final int mask = filter.getFoldMask();
+            final BitSet probeBits = probe.getBitSet();
+            for (int p = probeBits.nextSetBit(0); p >= 0; p = probeBits
+                    .nextSetBit(p + 1)) {
+                missing += bits.get(p & mask) ? 0 : 1;
             }
+        } else {
+            missing = probeCount - probe.getBitSet().andcardinality(bits);
         }
-        // "sort" the received list of Bloom filters according to some
-        // metric
-        ArrayList<BloomFilter<E>> copy = new ArrayList<BloomFilter<E>>(mbfList);
-        mbfList = sort(copy);
-
-        // keep pointer to right-most leaf
-        BFINode<E> rightmost;
-
-        // initialize the BFI with a root with an all-zero bloom filter
-        BloomFilter<E> sampleFilter = mbfList.get(0);
-        BloomFilter<E> zeroFilter = createZeroBloomFilter(sampleFilter);
-        this.root = new BFINode<E>(zeroFilter, this.order,
-                                   this.splitFull);
-        rightmost = this.root;
-
-        // insert each Bloomfilter in the rightmost leaf
-        // if needed, split
-        BFINode<E> current;
-        for (BloomFilter<E> bf : mbfList) {
-            // create a BFINode for this BloomFilter
-            current = new BFINode<E>(bf, this.order, this.splitFull);
-
-            // insert the ID - node mapping into the hashtable
-            this.idMap.put(bf.getID(), current);
-
-            // insert it into the rightmost leaf
-            rightmost = insertRight(true, rightmost, current,
-                                    rightmost, stat);
-
+        if (probe.getMetric() != 2 && probe.getMetric() != 3) {
+            return missing;
         }
-
-        return mbfList;
+        if (probeCount == 0) {
+            return 0;
+        }
+        final double kept = (double) (probeCount - missing) / probeCount;
+        return probe.getMetric() == 2 ? 1 - kept : 1 - Math.sqrt(kept);
     }
 
     /**
-     * Search for an object in the BFI and return the matching Bloom filters
-     *
-     * @param o
-     * @return
+     * A node with its distance, or a lower bound of it, ordered by distance
+     * then by ID for the leaves
      */
-    public ArrayList<BloomFilter<E>> searchBloomFilters(E o,
-            SearchStatistics stat) {
-        return findMatches(this.root, o, stat);
+    private static final class Neighbour<EL> implements
+        Comparable<Neighbour<?>> {
+        final BFINode<EL> node;
+        final double distance;
+
+        Neighbour(BFINode<EL> node, double distance) {
+            this.node = node;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Neighbour<?> other) {
+            final int c = Double.compare(this.distance, other.distance);
+            if (c != 0 || !this.node.isLeaf() || !other.node.isLeaf()) {
+                return c;
+            }
+            final int id1 = this.node.value.getID();
+            final int id2 = other.node.value.getID();
+            return id1 < id2 ? -1 : id1 == id2 ? 0 : 1;
+        }
     }
 
-    @Override
-    public List<Integer> search(E o, SearchStatistics stat) {
-        ArrayList<BloomFilter<E>> x = searchBloomFilters(o, stat);
-        ArrayList<Integer> ans = new ArrayList<Integer>(x.size());
-        for (BloomFilter<E> bf : x) {
-            ans.add( bf.getID());
+    /**
+     * Return true if the filter has all the given bits, reduced to its
+     * size if it is folded
+     */
+    private static boolean hasAll(BloomFilter<?> filter, int[] positions) {
+        final BitSet bits = filter.getBitSet();
+        final int mask = filter.getFoldMask();
+        for (int position : positions) {
+            if (!bits.get(position & mask)) {
+                return false;
+            }
         }
-        return ans;
+        return true;
     }
 
     /**
@@ -559,6 +1721,11 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
         // assert zeroFilter.getExpectedBitsPerElement() ==
         // bitsPerElement;
 
+        // a folded filter gets a folded zero filter
+        if (filter.isFolded()) {
+            zeroFilter = zeroFilter.fold(filter.size());
+        }
+
         assert filter.size() == zeroFilter.size();
         if(filter.size() != zeroFilter.size()) throw new RuntimeException("size mismatch?");
         if(zeroFilter.h != filter.h) throw new RuntimeException("different hasher?");
@@ -566,6 +1733,40 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
         return zeroFilter;
     }
 
+    /**
+     * Create the all-zero value of a new non-leaf node, a counting Bloom
+     * filter in counting mode
+     *
+     * @param filter
+     * @return
+     */
+    private BloomFilter<E> createNodeFilter(BloomFilter<E> filter) {
+        BloomFilter<E> zeroFilter = createZeroBloomFilter(filter);
+        if (this.counting) {
+            zeroFilter.setCounting(true);
+        }
+        return zeroFilter;
+    }
+
+    /**
+     * Create the all-zero value of a new node one level above the node
+     * with the given value, folded if needed
+     *
+     * @param filter
+     * @return
+     */
+    private BloomFilter<E> createParentFilter(BloomFilter<E> filter) {
+        BloomFilter<E> zeroFilter = createNodeFilter(filter);
+        if (this.foldFactor > 1) {
+            int foldedSize = Math.max(64,
+                                      Integer.highestOneBit(filter.size() / this.foldFactor));
+            if (foldedSize < filter.size()) {
+                return zeroFilter.fold(foldedSize);
+            }
+        }
+        return zeroFilter;
+    }
+
     /**
      * Sort the given list according to some distance We use Hamming
      * distance for now and sort such that first element is closest to zero,
@@ -574,19 +1775,21 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
      * @param bfList
      * @return
      */
-    private ArrayList<BloomFilter<E>> sort(List<BloomFilter<E>> bf) {
-        return sortIterative(bf);
+    private ArrayList<BloomFilter<E>> sort(List<BloomFilter<E>> bf,
+                                           ForkJoinPool pool) {
+        return sortIterative(bf, pool);
     }
 
     /**
      * Sort the input list based on Hamming distance between objects First
      * object will be the closest to "000...", then the closest to first...
+     * If pool is not null, the closest filters are looked for in parallel.
      *
      * @param c
      * @return
      */
     private  ArrayList<BloomFilter<E>> sortIterative(
-        final List<BloomFilter<E>> bf) {
+        final List<BloomFilter<E>> bf, ForkJoinPool pool) {
 
         System.out.print("| sortIterative start");
 
@@ -607,7 +1810,8 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
         // the closest filter becomes the current
         while (!bf.isEmpty()) {
             // find the bloom filter closest to the current on
-            closestIndex = current.findClosest(bf);
+            closestIndex = pool == null ? current.findClosest(bf) : pool
+                           .invoke(new FindClosest<E>(current, bf, 0, bf.size())).index;
             closest = bf.get(closestIndex);
             // add it to the sorted list
             sorted.add(closest);
@@ -625,6 +1829,59 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
         return sorted;
     }
 
+    /**
+     * Find the filter of a range of the list closest to a given filter,
+     * the first one if several are as close, as BloomFilter.findClosest
+     */
+    private static class FindClosest<EL> extends RecursiveTask<FindClosest<EL>> {
+        private static final long serialVersionUID = 1L;
+
+        // number of filters below which the range is scanned in place
+        private static final int THRESHOLD = 1024;
+
+        private final BloomFilter<EL> filter;
+        private final List<BloomFilter<EL>> bf;
+        private final int from;
+        private final int to;
+
+        // the result
+        int index = -1;
+        double distance;
+
+        FindClosest(BloomFilter<EL> filter, List<BloomFilter<EL>> bf,
+                    int from, int to) {
+            this.filter = filter;
+            this.bf = bf;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected FindClosest<EL> compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    double d = filter.computeDistance(bf.get(i));
+                    if (index < 0 || d < distance) {
+                        distance = d;
+                        index = i;
+                    }
+                }
+                return this;
+            }
+            int middle = (from + to) >>> 1;
+            FindClosest<EL> left = new FindClosest<EL>(filter, bf, from,
+                    middle);
+            FindClosest<EL> right = new FindClosest<EL>(filter, bf, middle,
+                    to);
+            invokeAll(left, right);
+            FindClosest<EL> leftClosest = left.join();
+            FindClosest<EL> rightClosest = right.join();
+            // ties go to the left, the first one in the list
+            return rightClosest.distance < leftClosest.distance ? rightClosest
+                   : leftClosest;
+        }
+    }
+
     /**
      * Insert a new child into "current" node as last (rightmost) child
      * Return the possibly new rightmost index node above the leaf level
@@ -684,21 +1941,33 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
             return node.value;// nothing to check
         }
 
-        BloomFilter<E> first = this.getBFList().get(0);
-
-        BloomFilter<E> current = createZeroBloomFilter(first);
+        BloomFilter<E> current = createZeroBloomFilter(node.value);
         if(current.h != node.value.h) throw new RuntimeException("different hasher?");
 
         for (BFINode<E> c : node.children) {
             if(current.h != c.value.h) throw new RuntimeException("different hasher?");
             BloomFilter<E> r = aggregateChildren(c);
-            current.getBitSet().or(r.getBitSet());
+            current.orBloomFilter(r);
         }
         if (!node.value.getBitSet().equals(current.getBitSet()))
             throw new RuntimeException("bug "
                                        + node.children.size() + " "
                                        + current.getBitSet().cardinality() + " "
                                        + node.value.getBitSet().cardinality());
+        if (this.counting) {
+            BitSet bs = node.value.getBitSet();
+            for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i + 1)) {
+                int count = 0;
+                for (BFINode<E> c : node.children) {
+                    if (c.value.getBitSet().get(i)) {
+                        count++;
+                    }
+                }
+                if (count != node.value.getCounter(i))
+                    throw new RuntimeException("bad counter " + count + " "
+                                               + node.value.getCounter(i));
+            }
+        }
         return node.value;
     }
 
@@ -708,6 +1977,13 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
         if(root.value.h != bf.h)
             throw new RuntimeException("different hasher?");
 
+        // the new filter is compared with many nodes on its way down, which
+        // is faster with the dense representation; the leaf is stored
+        // sparse at the end (see setSparseLeaves)
+        if (this.sparseLeaves) {
+            bf.getBitSet().decompress();
+        }
+
         // create new BFINode for this BloomFilter
         BFINode<E> newBFINode = new BFINode<E>(bf, this.order,
                                                this.splitFull);
@@ -739,6 +2015,9 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
             insert(root, newBFINode, stat);
 
         }
+        if (this.sparseLeaves) {
+            bf.compress();
+        }
     }
 
     /**
@@ -758,13 +2037,17 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
         // if node is not leaf, need to direct the search for
         if (!current.isLeaf()) {
             // update the value of the current node, since it will
-            // insert into that subtree
-            current.value.orBloomFilter(newChild.value);
-            stat.nbBFAccessed += 2; // current and new child values
+            // insert into that subtree (in counting mode, the new bits
+            // are propagated up once the leaf is attached)
+            if (!this.counting) {
+                current.value.orBloomFilter(newChild.value);
+                stat.nbBFAccessed += 2; // current and new child values
+            }
 
             // find child closest to newChild and insert there
             BFINode<E> closestChild = newChild.findClosest(
-                                          current.children, stat);
+                                          current.children, this.random, this.sketchSize,
+                                          this.nbReranked, stat);
             // insert into that subtree
             BFINode<E> newSibling = insert(closestChild, newChild,
                                            stat);
@@ -779,7 +2062,7 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
                     assert (current == root);
                     // root was split, create a new root
                     BFINode<E> newRoot = new BFINode<E>(
-                        createZeroBloomFilter(current.value),
+                        createParentFilter(current.value),
                         this.order, this.splitFull);
                     newRoot.value
                     .orBloomFilter(current.value);
@@ -838,16 +2121,226 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
         newChild.parent = node.parent;
         stat.nbBFNodesAccessed += 2; // access parent and new sibling
 
+        // in counting mode, count the bits of a new leaf (split nodes are
+        // counted by split)
+        if (this.counting && newChild.isLeaf()) {
+            int[] positions = setPositions(newChild.value.getBitSet());
+            addChildBits(node.parent, positions, positions.length, stat);
+        }
+
         // check if split is needed
         stat.nbBFNodesAccessed++;
         if (!node.parent.needSplit()) {
             return null;
         }
+        // try to reinsert some leaves first (once per insert)
+        if (this.forcedReinsert && !this.reinserting && newChild.isLeaf()) {
+            forceReinsert(node.parent, stat);
+            return null;
+        }
         // else, need to split the node
 
         return split(node.parent, stat);
     }
 
+    /**
+     * Remove from the overflowing parent of leaves the leaves with the most
+     * bits set in no other sibling (about 30% of the children, as in the
+     * R*-tree, leaving the node with more than order children), fix the
+     * values up to the root, and insert those leaves again from the root.
+     * Overflows during the reinsertion cause splits.
+     *
+     * @param current
+     */
+    private void forceReinsert(BFINode<E> current, InsDelUpdateStatistics stat) {
+        final int n = current.children.size();
+        final int nbToReinsert = Math.max(1, Math.min(n - this.order - 1,
+                                          3 * n / 10));
+        // bits of each child that no sibling has, using prefix and suffix
+        // unions
+        BitSet[] suffix = new BitSet[n + 1];
+        suffix[n] = new BitSet(current.value.size());
+        for (int i = n - 1; i >= 0; i--) {
+            suffix[i] = suffix[i + 1].clone();
+            suffix[i].or(current.children.get(i).value.getBitSet());
+        }
+        final int total = suffix[0].cardinality();
+        BitSet prefix = suffix[n].clone();
+        final int[] own = new int[n];
+        for (int i = 0; i < n; i++) {
+            BitSet others = prefix.clone();
+            others.or(suffix[i + 1]);
+            own[i] = total - others.cardinality();
+            prefix.or(current.children.get(i).value.getBitSet());
+        }
+        stat.nbBFAccessed += 2 * n;
+        // pick the children with the most bits of their own
+        ArrayList<BFINode<E>> removed = new ArrayList<BFINode<E>>();
+        boolean[] picked = new boolean[n];
+        for (int x = 0; x < nbToReinsert; x++) {
+            int best = -1;
+            for (int i = 0; i < n; i++) {
+                if (!picked[i] && (best < 0 || own[i] > own[best])) {
+                    best = i;
+                }
+            }
+            picked[best] = true;
+            removed.add(current.children.get(best));
+        }
+        current.children.removeAll(removed);
+        stat.nbBFNodesAccessed += nbToReinsert + 1;
+        recomputeValueToTheRoot(current, stat);
+        // insert them again
+        this.reinserting = true;
+        try {
+            for (BFINode<E> leaf : removed) {
+                leaf.parent = null;
+                insert(this.root, leaf, stat);
+                stat.nbReinserts++;
+            }
+        } finally {
+            this.reinserting = false;
+        }
+    }
+
+    /**
+     * Maintenance step: re-cluster the (at most) maxSubtrees subtrees of
+     * height 2 with the worst overlap, that is, where the sum of the
+     * cardinalities of the values of the parents of leaves is the largest
+     * relative to the cardinality of their union. The leaves of such a
+     * subtree are ordered by nearest neighbour (as in bulk loading) and
+     * dealt to the same parents, in the same numbers, so the shape of the
+     * tree does not change; the new grouping is kept only if it reduces the
+     * sum of the cardinalities. The work is bounded by maxSubtrees times
+     * the square of the number of leaves of a subtree.
+     *
+     * @param maxSubtrees
+     * @return the number of subtrees that were re-clustered
+     */
+    public int maintain(int maxSubtrees, InsDelUpdateStatistics stat) {
+        ArrayList<BFINode<E>> candidates = new ArrayList<BFINode<E>>();
+        collectHeightTwoNodes(this.root, candidates);
+        final double[] overlap = new double[candidates.size()];
+        for (int i = 0; i < overlap.length; i++) {
+            final BFINode<E> node = candidates.get(i);
+            final int union = node.value.getBitSet().cardinality();
+            long sum = 0;
+            for (BFINode<E> child : node.children) {
+                sum += child.value.getBitSet().cardinality();
+            }
+            overlap[i] = union == 0 ? 0 : sum / (double) union;
+            stat.nbBFAccessed += node.children.size() + 1;
+        }
+        int nbRebuilt = 0;
+        for (int x = 0; x < maxSubtrees; x++) {
+            int worst = -1;
+            for (int i = 0; i < overlap.length; i++) {
+                if (overlap[i] > 1 && (worst < 0 || overlap[i] > overlap[worst])) {
+                    worst = i;
+                }
+            }
+            if (worst < 0) {
+                break;
+            }
+            overlap[worst] = 0;
+            if (recluster(candidates.get(worst), stat)) {
+                nbRebuilt++;
+            }
+        }
+        return nbRebuilt;
+    }
+
+    /**
+     * Collect the nodes whose children are parents of leaves
+     */
+    private void collectHeightTwoNodes(BFINode<E> node,
+                                       ArrayList<BFINode<E>> result) {
+        if (node.isLeaf() || node.children.get(0).isLeaf()) {
+            return;
+        }
+        if (node.children.get(0).children.get(0).isLeaf()) {
+            if (node.children.size() > 1) {
+                result.add(node);
+            }
+            return;
+        }
+        for (BFINode<E> child : node.children) {
+            collectHeightTwoNodes(child, result);
+        }
+    }
+
+    /**
+     * Re-cluster the leaves below the given node of height 2 (see
+     * maintain)
+     *
+     * @return true if the leaves were regrouped
+     */
+    private boolean recluster(BFINode<E> node, InsDelUpdateStatistics stat) {
+        final int nbChildren = node.children.size();
+        ArrayList<ArrayList<BFINode<E>>> oldChildren = new ArrayList<ArrayList<BFINode<E>>>();
+        ArrayList<BFINode<E>> leaves = new ArrayList<BFINode<E>>();
+        long before = 0;
+        for (BFINode<E> child : node.children) {
+            oldChildren.add(child.children);
+            leaves.addAll(child.children);
+            before += child.value.getBitSet().cardinality();
+        }
+        // order the leaves, each one followed by the closest remaining one
+        ArrayList<BFINode<E>> ordered = new ArrayList<BFINode<E>>();
+        BFINode<E> current = leaves.remove(0);
+        ordered.add(current);
+        while (!leaves.isEmpty()) {
+            int closest = 0;
+            double minDistance = Double.MAX_VALUE;
+            for (int i = 0; i < leaves.size(); i++) {
+                double distance = current.value.computeDistance(leaves
+                                  .get(i).value);
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    closest = i;
+                }
+            }
+            stat.nbBFAccessed += 2 * leaves.size();
+            current = leaves.remove(closest);
+            ordered.add(current);
+        }
+        // deal them to the same parents, in the same numbers
+        long after = 0;
+        int next = 0;
+        for (int i = 0; i < nbChildren; i++) {
+            BFINode<E> child = node.children.get(i);
+            final int size = oldChildren.get(i).size();
+            child.children = new ArrayList<BFINode<E>>(ordered.subList(next,
+                             next + size));
+            next += size;
+            for (BFINode<E> leaf : child.children) {
+                leaf.parent = child;
+            }
+            child.recomputeValue(stat);
+            after += child.value.getBitSet().cardinality();
+        }
+        stat.nbBFNodesAccessed += ordered.size() + nbChildren;
+        final boolean better = after < before;
+        if (!better) {
+            // restore the old grouping
+            for (int i = 0; i < nbChildren; i++) {
+                BFINode<E> child = node.children.get(i);
+                child.children = oldChildren.get(i);
+                for (BFINode<E> leaf : child.children) {
+                    leaf.parent = child;
+                }
+                child.recomputeValue(stat);
+            }
+        } else {
+            stat.nbRebuilds++;
+        }
+        // the union does not change, but the child counts do
+        if (this.counting) {
+            node.recomputeValue(stat);
+        }
+        return better;
+    }
+
     private BFINode<E> split(BFINode<E> current, InsDelUpdateStatistics stat) {
         // sanity check: current node should have 2*d +1 children
         assert current.children != null
@@ -856,17 +2349,26 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
 
         BFINode<E> newNode;
         BFINode<E> newChild;
+        // in counting mode, keep the old value to fix the parent counters
+        BitSet before = (this.counting && current.parent != null) ? current.value
+                        .getBitSet().clone() : null;
         // initialize the new BFINode with an all-zero bloom filter
         BloomFilter<E> sampleFilter = current.value;
-        BloomFilter<E> zeroFilter = createZeroBloomFilter(sampleFilter);
+        BloomFilter<E> zeroFilter = createNodeFilter(sampleFilter);
         newNode = new BFINode<E>(zeroFilter, this.order, this.splitFull);
         newNode.children = new ArrayList<BFINode<E>>();
 
         stat.nbSplits++; // increase nb splits
 
+        // the children to keep are first in the list
+        int splitAt = this.order + 1;
+        if (this.distanceSplit) {
+            splitAt = distanceSplitOrder(current.children, stat);
+        }
+
         // insert the last half of the current children list into the
         // new node
-        for (int i = this.order + 1; i < current.children.size(); i++) {
+        for (int i = splitAt; i < current.children.size(); i++) {
             // get the new child
             newChild = current.children.get(i);
             // add the new child to the right
@@ -884,16 +2386,134 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
         // child value
 
         // remove the last half of the children for the current node
-        current.children.subList(this.order + 1,
+        current.children.subList(splitAt,
                                  current.children.size()).clear();
         stat.nbBFNodesAccessed++; // accessed current
         // update the value of current node to be the or of its reduced
         // set of children
         current.recomputeValue(stat);
 
+        // counting mode: the parent gets the new node as a child, and the
+        // current node lost some bits (the union does not change, so this
+        // never propagates further up)
+        if (before != null) {
+            int[] positions = setPositions(newNode.value.getBitSet());
+            addChildBits(current.parent, positions, positions.length, stat);
+            BitSet lost = before;
+            BitSet after = current.value.getBitSet();
+            for (int w = 0; w < lost.length() / 64; w++) {
+                lost.setWord(w, lost.getWord(w) & ~after.getWord(w));
+            }
+            positions = setPositions(lost);
+            removeChildBits(current.parent, positions, positions.length,
+                            stat);
+        }
+
         return newNode;
     }
 
+    /**
+     * Reorder the children of an overflowing node so that they form two
+     * groups of similar filters, in the style of the R-tree quadratic
+     * split: the two children furthest apart are the seeds, then the child
+     * with the largest difference in union growth between the two groups
+     * goes to the group whose union grows the least, until a group needs
+     * all the remaining children to get order children.
+     *
+     * @param children
+     * @return the number of children in the first group, which is first in
+     *         the list
+     */
+    private int distanceSplitOrder(ArrayList<BFINode<E>> children,
+                                   InsDelUpdateStatistics stat) {
+        final int n = children.size();
+        // pick the seeds
+        int seed1 = 0;
+        int seed2 = 1;
+        double maxDistance = -1;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                double distance = children.get(i).value
+                                  .computeDistance(children.get(j).value);
+                stat.nbBFAccessed += 2;
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    seed1 = i;
+                    seed2 = j;
+                }
+            }
+        }
+        ArrayList<BFINode<E>> group1 = new ArrayList<BFINode<E>>();
+        ArrayList<BFINode<E>> group2 = new ArrayList<BFINode<E>>();
+        group1.add(children.get(seed1));
+        group2.add(children.get(seed2));
+        BitSet union1 = children.get(seed1).value.getBitSet().clone();
+        BitSet union2 = children.get(seed2).value.getBitSet().clone();
+        int card1 = union1.cardinality();
+        int card2 = union2.cardinality();
+        boolean[] assigned = new boolean[n];
+        assigned[seed1] = true;
+        assigned[seed2] = true;
+        int remaining = n - 2;
+        while (remaining > 0) {
+            // a group that needs all the remaining children gets them
+            ArrayList<BFINode<E>> needy = null;
+            if (group1.size() + remaining <= this.order) {
+                needy = group1;
+            } else if (group2.size() + remaining <= this.order) {
+                needy = group2;
+            }
+            if (needy != null) {
+                for (int i = 0; i < n; i++) {
+                    if (!assigned[i]) {
+                        needy.add(children.get(i));
+                    }
+                }
+                break;
+            }
+            // pick the child for which the choice matters most
+            int best = -1;
+            int bestGrowth1 = 0;
+            int bestGrowth2 = 0;
+            for (int i = 0; i < n; i++) {
+                if (assigned[i]) {
+                    continue;
+                }
+                final BitSet bs = children.get(i).value.getBitSet();
+                final int growth1 = union1.orcardinality(bs) - card1;
+                final int growth2 = union2.orcardinality(bs) - card2;
+                stat.nbBFAccessed += 2;
+                if (best < 0
+                        || Math.abs(growth1 - growth2) > Math.abs(bestGrowth1
+                                - bestGrowth2)) {
+                    best = i;
+                    bestGrowth1 = growth1;
+                    bestGrowth2 = growth2;
+                }
+            }
+            final BFINode<E> child = children.get(best);
+            // ties go to the smallest union, then to the smallest group
+            boolean toFirst = bestGrowth1 != bestGrowth2 ? bestGrowth1 < bestGrowth2
+                              : card1 != card2 ? card1 < card2
+                              : group1.size() <= group2.size();
+            if (toFirst) {
+                group1.add(child);
+                union1.or(child.value.getBitSet());
+                card1 += bestGrowth1;
+            } else {
+                group2.add(child);
+                union2.or(child.value.getBitSet());
+                card2 += bestGrowth2;
+            }
+            assigned[best] = true;
+            remaining--;
+        }
+        children.clear();
+        children.addAll(group1);
+        children.addAll(group2);
+        return group1.size();
+    }
+
     /**
      * Update the value of the current node and its ancestors to contain the
      * new value
@@ -914,6 +2534,34 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
         }
     }
 
+    /**
+     * Update the value of the current node and its ancestors to contain the
+     * given words of the new value. Since the value of a node contains the
+     * values of its children, we can stop at the first ancestor that did
+     * not change.
+     *
+     * @param current
+     * @param newValue
+     * @param words
+     *                indexes of the words of newValue to propagate
+     */
+    private void updateWordsToTheRoot(BFINode<E> current,
+                                      BloomFilter<E> newValue, BitSet words,
+                                      InsDelUpdateStatistics stat) {
+
+        while (current != null) {
+            boolean changed = current.value.size() == newValue.size() ? current.value
+                              .getBitSet().orWords(newValue.getBitSet(), words)
+                              : current.value.getBitSet().orWordsFolded(
+                                  newValue.getBitSet(), words);
+            stat.nbBFAccessed += 2;
+            if (!changed && current.value != newValue) {
+                return;
+            }
+            current = current.parent;
+        }
+    }
+
     /**
      * Recompute all values from the current node to the root
      *
@@ -953,7 +2601,7 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
         BFINode<E> newNode;
         // initialize the new BFINode with an all-zero bloom filter
         BloomFilter<E> sampleFilter = current.value;
-        BloomFilter<E> zeroFilter = createZeroBloomFilter(sampleFilter);
+        BloomFilter<E> zeroFilter = createNodeFilter(sampleFilter);
         newNode = new BFINode<E>(zeroFilter, this.order, this.splitFull);
 
         // insert the last half of the current children list into the
@@ -994,7 +2642,7 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
             // initialize the new BFINode with an all-zero bloom
             // filter
             BloomFilter<E> sampleFilter1 = current.value;
-            BloomFilter<E> zeroFilter1 = createZeroBloomFilter(sampleFilter1);
+            BloomFilter<E> zeroFilter1 = createParentFilter(sampleFilter1);
             newRoot = new BFINode<E>(zeroFilter1, this.order,
                                      this.splitFull);
             rightmost = insertRight(false, newRoot, current,
@@ -1028,6 +2676,77 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
         return this.root.printTree();
     }
 
+    /**
+     * Return a read-only copy of this index, see compact
+     */
+    @Override
+    public CompactBloomFilterIndex<E> freeze() {
+        return compact();
+    }
+
+    /**
+     * Return a read-only copy of this index with the nodes numbered in
+     * breadth-first order and stored in arrays (see
+     * CompactBloomFilterIndex). Later changes to this index are not seen by
+     * the copy.
+     *
+     * @return
+     */
+    public CompactBloomFilterIndex<E> compact() {
+        ArrayList<BFINode<E>> nodes = new ArrayList<BFINode<E>>();
+        if (!this.idMap.isEmpty()) {
+            nodes.add(this.root);
+        }
+        // the list grows as the nodes are visited
+        for (int i = 0; i < nodes.size(); i++) {
+            BFINode<E> node = nodes.get(i);
+            if (!node.isLeaf()) {
+                nodes.addAll(node.children);
+            }
+        }
+
+        final int n = nodes.size();
+        int[] firstChild = new int[n];
+        int[] nbChildren = new int[n];
+        int[] parent = new int[n];
+        int[] ids = new int[n];
+        int[] wordOffset = new int[n];
+        int[] foldMask = new int[n];
+        int nbWords = 0;
+        int next = 1;
+        for (int i = 0; i < n; i++) {
+            BFINode<E> node = nodes.get(i);
+            if (i == 0) {
+                parent[i] = -1;
+            }
+            if (node.isLeaf()) {
+                ids[i] = node.value.getID();
+            } else {
+                ids[i] = -1;
+                firstChild[i] = next;
+                nbChildren[i] = node.children.size();
+                for (int c = 0; c < nbChildren[i]; c++) {
+                    parent[next + c] = i;
+                }
+                next += nbChildren[i];
+            }
+            wordOffset[i] = nbWords;
+            foldMask[i] = node.value.getFoldMask();
+            nbWords += node.value.getBitSet().length() / 64;
+        }
+
+        long[] words = new long[nbWords];
+        for (int i = 0; i < n; i++) {
+            BitSet bs = nodes.get(i).value.getBitSet();
+            for (int w = 0; w < bs.length() / 64; w++) {
+                words[wordOffset[i] + w] = bs.getWord(w);
+            }
+        }
+        return new CompactBloomFilterIndex<E>(firstChild, nbChildren, parent,
+                                              ids, wordOffset, foldMask, words, getBloomFilterSize(),
+                                              this.root.value.getHasher());
+    }
+
     /**
      * The node in a Bloom Filter Index
      */
@@ -1045,6 +2764,11 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
         // they are full, since the children might also be full
         boolean splitFull1 = true;
 
+        // cached sketch of the value (see getSketch), and the modification
+        // count of the bitset it was computed from
+        int[] sketch = null;
+        int sketchVersion;
+
         BFINode(BloomFilter<EL> value, int order, boolean splitFull) {
             this.value = value;
             this.order1 = order;
@@ -1169,12 +2893,20 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
          * of the closest filters, at random
          *
          * @param nodeList
+         * @param sketchSize
+         *                if positive, the nodes are ranked by their
+         *                sketches (see getSketch) first
+         * @param nbReranked
+         *                number of best ranked nodes compared exactly, the
+         *                best ranked node is returned if 1 or less
          * @return
          */
         public BFINode<EL> findClosest(ArrayList<BFINode<EL>> nodeList,
+                                       Random random, int sketchSize, int nbReranked,
                                        InsDelUpdateStatistics stat) {
 
-            int index = findClosestIndex(nodeList, stat);
+            int index = findClosestIndex(nodeList, random, sketchSize,
+                                         nbReranked, stat);
             if (index >= 0) {
                 return nodeList.get(index);
             } else {
@@ -1195,6 +2927,7 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
          * @return
          */
         private int findClosestIndex(ArrayList<BFINode<EL>> nodeList,
+                                     Random random, int sketchSize, int nbReranked,
                                      InsDelUpdateStatistics stat) {
 
             assert nodeList != null : "Empty list in BFINode findCLosest";
@@ -1205,21 +2938,42 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
 
             BFINode<EL> currentNode;
 
+            // compare with the folded value if the list holds folded
+            // filters
+            BloomFilter<EL> probe = this.value;
+            if (nodeList.get(0).value.size() < probe.size()) {
+                probe = probe.fold(nodeList.get(0).value.size());
+            }
+
+            // the indexes of the nodes to compare exactly
+            int[] candidates = null;
+            if (sketchSize > 0 && nbReranked < nodeList.size()) {
+                candidates = rankBySketch(nodeList, probe, random,
+                                          sketchSize, Math.max(1, nbReranked));
+                if (candidates.length == 1) {
+                    return candidates[0];
+                }
+            }
+            final int nbCandidates = candidates == null ? nodeList.size()
+                                     : candidates.length;
+
             // initialize min distance to be distance to first
             // element
-            currentNode = nodeList.get(0);
-            double minDistance = this.value
+            int minIndex = candidates == null ? 0 : candidates[0];
+            currentNode = nodeList.get(minIndex);
+            double minDistance = probe
                                  .computeDistance(currentNode.value);
             stat.nbBFAccessed += 2; // this value and currentNode
             // value
-            int minIndex = 0;
             double currentDistance;
 
             // loop through all elements to find the closest
-            for (int i = 1; i < nodeList.size(); i++) {
+            for (int c = 1; c < nbCandidates; c++) {
+                final int i = candidates == null ? c : candidates[c];
                 currentNode = nodeList.get(i);
-                currentDistance = this.value
-                                  .computeDistance(currentNode.value);
+                // give up on the distance once it cannot tie the minimum
+                currentDistance = probe.computeDistance(currentNode.value,
+                                                        minDistance + 0.00001);
                 stat.nbBFAccessed += 2; // this value and
                 // currentNode value
 
@@ -1230,9 +2984,8 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
                 // this.value, each node should be returned with
                 // prob 1/x
                 if (currentDistance < minDistance
-                        || (minDistance - currentDistance < 0.00001 && Math
-                            .random() < 1.0 / nodeList
-                            .size())) {
+                        || (Math.abs(minDistance - currentDistance) < 0.00001 && random
+                            .nextInt(nbCandidates) == 0)) {
                     minDistance = currentDistance;
                     minIndex = i;
                 }
@@ -1243,6 +2996,105 @@ public final class BloomFilterIndex<E> implements BloomIndex<E> {
 
         }
 
+        /**
+         * Rank the nodes by the similarity of their sketches to the sketch
+         * of the probe
+         *
+         * @return the indexes of the nbBest best ranked nodes, best first
+         */
+        private int[] rankBySketch(ArrayList<BFINode<EL>> nodeList,
+                                   BloomFilter<EL> probe, Random random, int sketchSize,
+                                   int nbBest) {
+            final int n = nodeList.size();
+            final int[] probeSketch = probe == this.value ? getSketch(sketchSize)
+                                      : computeSketch(probe.getBitSet(), probe.size(),
+                                              sketchSize);
+            final double[] estimate = new double[n];
+            for (int i = 0; i < n; i++) {
+                estimate[i] = sketchDistance(probeSketch, nodeList.get(i)
+                                             .getSketch(sketchSize));
+            }
+            final int[] best = new int[Math.min(nbBest, n)];
+            final boolean[] taken = new boolean[n];
+            for (int b = 0; b < best.length; b++) {
+                int min = -1;
+                for (int i = 0; i < n; i++) {
+                    if (taken[i]) {
+                        continue;
+                    }
+                    if (min < 0 || estimate[i] < estimate[min]
+                            || (estimate[i] == estimate[min] && random
+                                .nextInt(n) == 0)) {
+                        min = i;
+                    }
+                }
+                taken[min] = true;
+                best[b] = min;
+            }
+            return best;
+        }
+
+        /**
+         * Return the sketch of the value of this node, computed again only
+         * if the value changed since the last call
+         *
+         * @param sketchSize
+         * @return
+         */
+        int[] getSketch(int sketchSize) {
+            final BitSet bs = this.value.getBitSet();
+            if (this.sketch == null || this.sketch.length != sketchSize
+                    || this.sketchVersion != bs.getModificationCount()) {
+                this.sketch = computeSketch(bs, this.value.size(), sketchSize);
+                this.sketchVersion = bs.getModificationCount();
+            }
+            return this.sketch;
+        }
+
+        /**
+         * Compute a one-permutation MinHash sketch of the bits of a Bloom
+         * filter: the bits are cut in sketchSize ranges, and the sketch
+         * holds the first bit set in each range (-1 if none). Since the
+         * positions of the bits of a Bloom filter are hashed, they do not
+         * need to be permuted. Two filters have the same value in a range
+         * with probability about the Jaccard similarity of their bits.
+         *
+         * @param bs
+         * @param size
+         * @param sketchSize
+         * @return
+         */
+        static int[] computeSketch(BitSet bs, int size, int sketchSize) {
+            final int[] result = new int[sketchSize];
+            Arrays.fill(result, -1);
+            final int width = (size + sketchSize - 1) / sketchSize;
+            for (int p = bs.nextSetBit(0); p >= 0 && p < size;) {
+                final int range = p / width;
+                result[range] = p;
+                p = bs.nextSetBit((range + 1) * width);
+            }
+            return result;
+        }
+
+        /**
+         * Estimate the Jaccard distance from two sketches, as the fraction
+         * of the non-empty ranges where they differ
+         */
+        static double sketchDistance(int[] sketch1, int[] sketch2) {
+            int nonEmpty = 0;
+            int same = 0;
+            for (int i = 0; i < sketch1.length; i++) {
+                if (sketch1[i] < 0 && sketch2[i] < 0) {
+                    continue;
+                }
+                nonEmpty++;
+                if (sketch1[i] == sketch2[i]) {
+                    same++;
+                }
+            }
+            return nonEmpty == 0 ? 0 : 1.0 - (double) same / nonEmpty;
+        }
+
         @Override
         public String toString() {
             return this.value.toString();
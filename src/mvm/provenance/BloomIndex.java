@@ -1,5 +1,6 @@
 package mvm.provenance;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -48,8 +49,123 @@ public interface BloomIndex<E> {
      */
     public List<Integer> search(E o, SearchStatistics stat);
 
+    /**
+     * Return the ids that search would return as a bitmap, which can be
+     * combined with other results without building lists (see IdSet)
+     */
+    public IdSet searchIds(E o, SearchStatistics stat);
+
+    /**
+     * Return the number of ids that search would return, without building
+     * the list
+     */
+    public int count(E o, SearchStatistics stat);
+
+    /**
+     * Return the first ids that search would return, at most limit of them,
+     * stopping the search as soon as they are found
+     */
+    public List<Integer> searchLimit(E o, int limit, SearchStatistics stat);
+
+    /**
+     * Return the first id that search would return, or -1 if there is none
+     */
+    public int searchFirst(E o, SearchStatistics stat);
+
+    /**
+     * Return true if search would return at least one id, stopping at the
+     * first match
+     */
+    public boolean anyMatch(E o, SearchStatistics stat);
+
+    /**
+     * Same as search, considering only the Bloom filters whose ids are in
+     * allowed: the other filters are skipped without being checked when
+     * the index can locate the allowed ones
+     */
+    public List<Integer> search(E o, IdSet allowed, SearchStatistics stat);
+
+    /**
+     * Same as search, but the IDs are found as they are pulled from the
+     * iterator (a block or a leaf at a time), in the same order as search,
+     * so that the first IDs come before the search is over and no list of
+     * all the IDs is built. The statistics are updated as the iterator
+     * goes. The index must not be modified while the iterator is used.
+     */
+    public IntIterator searchIterator(E o, SearchStatistics stat);
+
+    /**
+     * Same as search, giving up once System.nanoTime() passes the deadline.
+     * The clock is read every PartialResult.CHECK_INTERVAL blocks, nodes or
+     * filters, so the search may run a little past the deadline, and always
+     * makes some progress. The result holds the IDs found so far and, if the
+     * search did not complete, a cursor: searching again from the cursor
+     * returns the next IDs, so that the successive results put together are
+     * those of search, in the same order, unless the index is modified in
+     * between (some IDs may then be missed or found twice).
+     *
+     * @param deadline
+     *                value of System.nanoTime() after which the search stops
+     * @param cursor
+     *                the cursor of the previous partial result of the same
+     *                search, or null to start the search
+     */
+    public PartialResult search(E o, long deadline, int[] cursor,
+                                SearchStatistics stat);
+
+    /**
+     * Return the ids of the Bloom filters that may contain all the given
+     * keys, in the order of search. The filters are tested against all
+     * the keys at once, so that a filter (or a subtree) is skipped as soon
+     * as one key is missing. Returns an empty list if there is no key.
+     */
+    public List<Integer> searchAll(Collection<? extends E> keys,
+                                   SearchStatistics stat);
+
+    /**
+     * Return the ids of the Bloom filters that may contain at least one of
+     * the given keys, each id once, in the order of search. Returns an
+     * empty list if there is no key.
+     */
+    public List<Integer> searchAny(Collection<? extends E> keys,
+                                   SearchStatistics stat);
+
+    /**
+     * Add an element to the Bloom filter with the given id by setting its
+     * bits directly in the index, instead of adding it to the filter and
+     * calling updateIndex. Indexes holding the BloomFilter object itself
+     * (naive, tree) also update that object, the Flat indexes only update
+     * their own copy.
+     *
+     * @return 0 on success, -1 if the id is not in the index
+     */
+    public int addElement(int id, E element, InsDelUpdateStatistics stat);
+
+    /**
+     * Batched version of addElement
+     *
+     * @return 0 on success, -1 if the id is not in the index
+     */
+    public int addElements(int id, Collection<? extends E> elements,
+                           InsDelUpdateStatistics stat);
+
+    /**
+     * Propagate the new values of a Bloom filter already in the index. If
+     * the filter tracks its dirty words, only those are propagated, and they
+     * are left for the other indexes holding the same filter (see
+     * BloomFilter.setDirtyWordTracking).
+     */
     // TODO: it is not clear why we need an id parameter here?
     public int updateIndex(BloomFilter<E> newBloomFilter,
                            InsDelUpdateStatistics stat);
 
+    /**
+     * Return an immutable copy of this index laid out for searching, for
+     * indexes that are not changed between reloads. It has no locks, and any
+     * number of threads can search it at once. Its mutators throw
+     * UnsupportedOperationException, and later changes to this index are
+     * not seen by the copy. A frozen index returns itself.
+     */
+    public BloomIndex<E> freeze();
+
 }
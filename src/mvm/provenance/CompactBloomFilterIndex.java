@@ -0,0 +1,473 @@
+package mvm.provenance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.skjegstad.utils.BloomFilter;
+
+/**
+ * A read-only copy of a Bloofi tree (see BloomFilterIndex.compact) where
+ * the nodes are numbered in breadth-first order and stored in arrays
+ * instead of BFINode objects: the topology in int arrays, and the words of
+ * all the node filters one after the other in a single long array. The
+ * children of a node have consecutive numbers, so a search goes down the
+ * tree one level at a time, reading each level from left to right.
+ *
+ * The mutators throw UnsupportedOperationException.
+ *
+ * @param <E>
+ */
+public final class CompactBloomFilterIndex<E> implements BloomIndex<E> {
+
+    // number of the first child of each node, the root is node 0
+    private final int[] firstChild;
+
+    // number of children of each node, 0 for the leaves
+    private final int[] nbChildren;
+
+    // number of the parent of each node, -1 for the root
+    private final int[] parent;
+
+    // ID of the Bloom filter of each leaf, -1 for the other nodes
+    private final int[] ids;
+
+    // offset of the words of each node filter in the words array
+    private final int[] wordOffset;
+
+    // mask applied to the hash values, -1 unless the node filter is
+    // folded (see BloomFilter.fold)
+    private final int[] foldMask;
+
+    // the words of all the node filters
+    private final long[] words;
+
+    // the largest number of nodes on a level
+    private final int maxLevelWidth;
+
+    private final int bloomFilterSize;
+
+    private final Hasher h;
+
+    private final Set<Integer> idSet;
+
+    /**
+     * Called by BloomFilterIndex.compact
+     */
+    CompactBloomFilterIndex(int[] firstChild, int[] nbChildren, int[] parent,
+                            int[] ids, int[] wordOffset, int[] foldMask, long[] words,
+                            int bloomFilterSize, Hasher h) {
+        this.firstChild = firstChild;
+        this.nbChildren = nbChildren;
+        this.parent = parent;
+        this.ids = ids;
+        this.wordOffset = wordOffset;
+        this.foldMask = foldMask;
+        this.words = words;
+        this.bloomFilterSize = bloomFilterSize;
+        this.h = h;
+
+        HashSet<Integer> set = new HashSet<Integer>();
+        for (int id : ids) {
+            if (id >= 0) {
+                set.add(id);
+            }
+        }
+        this.idSet = Collections.unmodifiableSet(set);
+
+        // the nodes of a level follow the nodes of the level above
+        int width = 0;
+        for (int first = 0, end = Math.min(1, ids.length); first < end;) {
+            width = Math.max(width, end - first);
+            int next = end;
+            for (int node = first; node < end; node++) {
+                next = Math.max(next, firstChild[node] + nbChildren[node]);
+            }
+            first = end;
+            end = next;
+        }
+        this.maxLevelWidth = width;
+    }
+
+    @Override
+    public int deleteFromIndex(int id, InsDelUpdateStatistics stat) {
+        throw new UnsupportedOperationException(
+            "CompactBloomFilterIndex is read-only");
+    }
+
+    /**
+     * Return the size - number of bits in a Bloom Filter indexed by this
+     * index
+     */
+    @Override
+    public int getBloomFilterSize() {
+        return this.bloomFilterSize;
+    }
+
+    /**
+     * Return the height of the tree, the leaves being level 0
+     */
+    @Override
+    public int getHeight() {
+        int height = 0;
+        for (int node = this.ids.length - 1; node > 0; node = this.parent[node]) {
+            height++;
+        }
+        return height;
+    }
+
+    @Override
+    public Set<Integer> getIDs() {
+        return this.idSet;
+    }
+
+    @Override
+    public boolean getIsRootAllOne() {
+        if (this.ids.length == 0) {
+            return false;
+        }
+        final int end = this.ids.length > 1 ? this.wordOffset[1]
+                        : this.words.length;
+        int cardinality = 0;
+        for (int i = this.wordOffset[0]; i < end; i++) {
+            cardinality += Long.bitCount(this.words[i]);
+        }
+        // as in BloomFilterIndex, the size is the one of the root filter
+        return cardinality == this.bloomFilterSize;
+    }
+
+    @Override
+    public int getNbChildrenRoot() {
+        return this.ids.length == 0 ? 0 : this.nbChildren[0];
+    }
+
+    /**
+     * Return the number of nodes in this index
+     */
+    @Override
+    public int getSize() {
+        return this.ids.length;
+    }
+
+    @Override
+    public void insertBloomFilter(BloomFilter<E> bf,
+                                  InsDelUpdateStatistics stat) {
+        throw new UnsupportedOperationException(
+            "CompactBloomFilterIndex is read-only");
+    }
+
+    @Override
+    public List<Integer> search(E o, SearchStatistics stat) {
+        if (this.ids.length == 0) {
+            return new ArrayList<Integer>();
+        }
+        return search(new int[][] { h.hashAll(o) }, stat);
+    }
+
+    /**
+     * A compact copy does not map the IDs to the leaves, so the matching
+     * leaves are checked against allowed after the search
+     */
+    @Override
+    public List<Integer> search(E o, IdSet allowed, SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (allowed.isEmpty()) {
+            return answer;
+        }
+        for (int id : search(o, stat)) {
+            if (allowed.contains(id)) {
+                answer.add(id);
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * The tree is searched depth first, going down to the next matching
+     * leaf as the IDs are pulled
+     */
+    @Override
+    public IntIterator searchIterator(E o, final SearchStatistics stat) {
+        final int[] positions = this.ids.length == 0 ? null : h.hashAll(o);
+        return new IntIterator() {
+            // the nodes left to check, the next one on top
+            private int[] stack = new int[] { 0 };
+            private int size = CompactBloomFilterIndex.this.ids.length == 0 ? 0
+                               : 1;
+
+            // true if id is the ID of the next matching leaf
+            private boolean found = false;
+            private int id;
+
+            @Override
+            public boolean hasNext() {
+                while (!this.found && this.size > 0) {
+                    final int node = this.stack[--this.size];
+                    stat.nbBFChecks++;
+                    if (!matches(node, positions)) {
+                        continue;
+                    }
+                    if (nbChildren[node] == 0) {
+                        this.id = ids[node];
+                        this.found = true;
+                        continue;
+                    }
+                    if (this.size + nbChildren[node] > this.stack.length) {
+                        this.stack = Arrays.copyOf(this.stack, 2 * (this.size
+                                                   + nbChildren[node]));
+                    }
+                    // the first child on top
+                    for (int child = firstChild[node] + nbChildren[node]
+                                     - 1; child >= firstChild[node]; child--) {
+                        this.stack[this.size++] = child;
+                    }
+                }
+                return this.found;
+            }
+
+            @Override
+            public int next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                this.found = false;
+                return this.id;
+            }
+        };
+    }
+
+    /**
+     * The tree is searched depth first, with a stack of the nodes left to
+     * check, which is the cursor
+     */
+    @Override
+    public PartialResult search(E o, long deadline, int[] cursor,
+                                SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (this.ids.length == 0) {
+            return new PartialResult(answer, null);
+        }
+        final int[] positions = h.hashAll(o);
+        int[] stack = cursor == null ? new int[] { 0 } : cursor.clone();
+        int size = stack.length;
+        int steps = 0;
+        while (size > 0) {
+            if (PartialResult.isLate(++steps, deadline)) {
+                return new PartialResult(answer, Arrays.copyOf(stack, size));
+            }
+            final int node = stack[--size];
+            stat.nbBFChecks++;
+            if (!matches(node, positions)) {
+                continue;
+            }
+            if (this.nbChildren[node] == 0) {
+                answer.add(this.ids[node]);
+                continue;
+            }
+            if (size + this.nbChildren[node] > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * (size + this.nbChildren[node]));
+            }
+            // the first child on top
+            for (int child = this.firstChild[node] + this.nbChildren[node]
+                             - 1; child >= this.firstChild[node]; child--) {
+                stack[size++] = child;
+            }
+        }
+        return new PartialResult(answer, null);
+    }
+
+    /**
+     * Same as search: the leaves are found one by one anyway
+     */
+    @Override
+    public IdSet searchIds(E o, SearchStatistics stat) {
+        return IdSet.of(search(o, stat));
+    }
+
+    @Override
+    public int count(E o, SearchStatistics stat) {
+        if (this.ids.length == 0) {
+            return 0;
+        }
+        return countMatches(0, h.hashAll(o), stat);
+    }
+
+    private int countMatches(int node, int[] positions, SearchStatistics stat) {
+        stat.nbBFChecks++;
+        if (!matches(node, positions)) {
+            return 0;
+        }
+        if (this.nbChildren[node] == 0) {
+            return 1;
+        }
+        int count = 0;
+        final int end = this.firstChild[node] + this.nbChildren[node];
+        for (int child = this.firstChild[node]; child < end; child++) {
+            count += countMatches(child, positions, stat);
+        }
+        return count;
+    }
+
+    /**
+     * Same as search, going down the tree depth first to stop once limit
+     * IDs are found
+     */
+    @Override
+    public List<Integer> searchLimit(E o, int limit, SearchStatistics stat) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Bad limit: " + limit);
+        }
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (this.ids.length > 0 && limit > 0) {
+            findMatches(0, h.hashAll(o), limit, answer, stat);
+        }
+        return answer;
+    }
+
+    @Override
+    public int searchFirst(E o, SearchStatistics stat) {
+        List<Integer> answer = searchLimit(o, 1, stat);
+        return answer.isEmpty() ? -1 : answer.get(0);
+    }
+
+    @Override
+    public boolean anyMatch(E o, SearchStatistics stat) {
+        return !searchLimit(o, 1, stat).isEmpty();
+    }
+
+    private void findMatches(int node, int[] positions, int limit,
+                             List<Integer> answer, SearchStatistics stat) {
+        stat.nbBFChecks++;
+        if (!matches(node, positions)) {
+            return;
+        }
+        if (this.nbChildren[node] == 0) {
+            answer.add(this.ids[node]);
+            return;
+        }
+        final int end = this.firstChild[node] + this.nbChildren[node];
+        for (int child = this.firstChild[node]; child < end
+                && answer.size() < limit; child++) {
+            findMatches(child, positions, limit, answer, stat);
+        }
+    }
+
+    @Override
+    public List<Integer> searchAll(Collection<? extends E> keys,
+                                   SearchStatistics stat) {
+        if (this.ids.length == 0 || keys.isEmpty()) {
+            return new ArrayList<Integer>();
+        }
+        // a filter has all the keys if it has the bits of all the keys
+        return search(new int[][] { h.hashAll(keys) }, stat);
+    }
+
+    @Override
+    public List<Integer> searchAny(Collection<? extends E> keys,
+                                   SearchStatistics stat) {
+        if (this.ids.length == 0 || keys.isEmpty()) {
+            return new ArrayList<Integer>();
+        }
+        return search(h.hashEach(keys), stat);
+    }
+
+    /**
+     * Return the IDs of the leaves having all the bits of at least one of
+     * the keys, the nodes matching none of the keys being skipped with
+     * their subtree
+     */
+    private List<Integer> search(int[][] keys, SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+
+        // the matching nodes of the current level, in increasing order
+        int[] level = new int[this.maxLevelWidth];
+        int[] nextLevel = new int[this.maxLevelWidth];
+        int levelSize = 1;
+        level[0] = 0;
+        while (levelSize > 0) {
+            int nextLevelSize = 0;
+            for (int i = 0; i < levelSize; i++) {
+                final int node = level[i];
+                stat.nbBFChecks++;
+                if (!matchesAny(node, keys)) {
+                    continue;
+                }
+                if (this.nbChildren[node] == 0) {
+                    answer.add(this.ids[node]);
+                    continue;
+                }
+                final int end = this.firstChild[node] + this.nbChildren[node];
+                for (int child = this.firstChild[node]; child < end; child++) {
+                    nextLevel[nextLevelSize++] = child;
+                }
+            }
+            int[] tmp = level;
+            level = nextLevel;
+            nextLevel = tmp;
+            levelSize = nextLevelSize;
+        }
+        return answer;
+    }
+
+    /**
+     * Return true if the filter of the node has all the bits of one of the
+     * keys
+     */
+    private boolean matchesAny(int node, int[][] keys) {
+        for (int[] positions : keys) {
+            if (matches(node, positions)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return true if the filter of the node has all the given bits
+     */
+    private boolean matches(int node, int[] positions) {
+        final int offset = this.wordOffset[node];
+        final int mask = this.foldMask[node];
+        for (int position : positions) {
+            final int bit = position & mask;
+            if ((this.words[offset + (bit >>> 6)] & (1l << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int addElement(int id, E element, InsDelUpdateStatistics stat) {
+        throw new UnsupportedOperationException(
+            "CompactBloomFilterIndex is read-only");
+    }
+
+    @Override
+    public int addElements(int id, Collection<? extends E> elements,
+                           InsDelUpdateStatistics stat) {
+        throw new UnsupportedOperationException(
+            "CompactBloomFilterIndex is read-only");
+    }
+
+    @Override
+    public int updateIndex(BloomFilter<E> newBloomFilter,
+                           InsDelUpdateStatistics stat) {
+        throw new UnsupportedOperationException(
+            "CompactBloomFilterIndex is read-only");
+    }
+
+    /**
+     * Already frozen, return this index
+     */
+    @Override
+    public CompactBloomFilterIndex<E> freeze() {
+        return this;
+    }
+
+}
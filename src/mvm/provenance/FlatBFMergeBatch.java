@@ -3,9 +3,11 @@ package mvm.provenance;
 import com.googlecode.javaewah.datastructure.BitSet;
 import com.skjegstad.utils.BloomFilter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 public final class FlatBFMergeBatch<E> implements BloomIndex<E> {
@@ -24,37 +26,67 @@ public final class FlatBFMergeBatch<E> implements BloomIndex<E> {
         @Override
         public int deleteFromIndex(int id, InsDelUpdateStatistics stat) {
             int index = idMap.remove(id);
-            int counter=Long.bitCount(busy.getWord(index/64))-1;
             idMap.remove(id);
             busy.unset(index);
             //得到ID并从idMap中移除，arrayb中对应的占用解除
             if (busy.getWord(index / 64) == 0) {
                 //如果删除之后当前的Flat为空
-                for (int k = index / 64 * 64; k < index / 64 * 64 + 64; ++k)
-                    fromindextoId.remove(k);
-                buffer.remove(index / 64);
-                busy.removeWord(index / 64);
-                //移除此Flat中的ID，Flat组中的此Flat，arrayb中整体解除占用
-                for (Map.Entry<Integer, Integer> me : idMap.entrySet()) {
-                    if (me.getValue().intValue() / 64 >= index / 64) {
-                        idMap.put(me.getKey(), me.getValue()
-                                .intValue() - 64);
-                    }
-                    //其后的所有BF对应的index数字减少64
-                }
+                removeEmptyBlocks();
+                //移除此Flat中的ID，Flat组中的此Flat，其后的所有BF对应的index数字减少64
             } else {
                 clearBloomAt(index);
             }
-            if(!flag&&counter<=32&&counter>0){
-                flag=true;
-                block=index/64;
-            }
-            if(flag&&counter<=32&&0>counter){
-                merge(index/64);
-            }
             return 0;
         }
         //删除指定ID的BF
+
+        /**
+         * Delete several Bloom filters at once. The slots are grouped by
+         * block: each block is cleared in a single pass with the combined
+         * mask of its deleted slots, and the blocks left empty are removed
+         * together at the end (so the ids are renumbered only once). Each
+         * block cleared or moved counts as a node accessed in stat.
+         *
+         * @param ids
+         *                ids of the Bloom filters to delete, unknown ids are
+         *                ignored
+         * @return the number of Bloom filters deleted
+         */
+        public int deleteAll(int[] ids, InsDelUpdateStatistics stat) {
+            final long[] masks = new long[buffer.size()];
+            int nbDeleted = 0;
+            for (int id : ids) {
+                Integer index = idMap.remove(id);
+                if (index == null)
+                    continue;
+                masks[index / 64] |= 1l << index;
+                busy.unset(index);
+                ++nbDeleted;
+            }
+            //按块汇总要删除的位
+            boolean hasEmptyBlock = false;
+            for (int b = 0; b < masks.length; ++b) {
+                if (masks[b] == 0)
+                    continue;
+                if (busy.getWord(b) == 0) {
+                    hasEmptyBlock = true;
+                    continue;
+                }
+                final long[] mybuffer = buffer.get(b);
+                final long keep = ~masks[b];
+                for (int k = 0; k < mybuffer.length; ++k) {
+                    mybuffer[k] &= keep;
+                }
+                stat.nbBFNodesAccessed++;
+            }
+            //每一块只扫描一次，用合并后的mask抹掉
+            if (hasEmptyBlock)
+                stat.nbBFNodesAccessed += removeEmptyBlocks();
+            //最后统一移除空的Flat
+            return nbDeleted;
+        }
+        //批量删除BF
+
         @Override
         public int getBloomFilterSize() {
             if (buffer.isEmpty())
@@ -150,6 +182,264 @@ public final class FlatBFMergeBatch<E> implements BloomIndex<E> {
         }
         //搜索object，返回结果对应的ID的集合
 
+        /**
+         * Only the blocks holding allowed filters are searched, with a mask
+         * of the allowed slots of each block computed from the allowed IDs
+         */
+        @Override
+        public List<Integer> search(E o, IdSet allowed, SearchStatistics stat) {
+            ArrayList<Integer> answer = new ArrayList<Integer>();
+            if (buffer.isEmpty())
+                return answer;
+            final long[] masks = new long[buffer.size()];
+            for (IntIterator it = allowed.iterator(); it.hasNext();) {
+                final Integer index = idMap.get(it.next());
+                if (index != null)
+                    masks[index / 64] |= 1l << index;
+            }
+            //每个块中允许的BF
+            final int[] positions = h.hashAll(o);
+            for (int i = 0; i < buffer.size(); ++i) {
+                if (masks[i] != 0)
+                    addIds(i, masks[i] & match(i, positions), answer);
+            }
+            //跳过没有允许的BF的块
+            return answer;
+        }
+
+        /**
+         * The blocks are searched one at a time, as the IDs are pulled
+         */
+        @Override
+        public IntIterator searchIterator(E o, SearchStatistics stat) {
+            final int[] positions = buffer.isEmpty() ? null : h.hashAll(o);
+            return new IntIterator() {
+                // next block to search
+                private int i = 0;
+
+                // the slots of block i - 1 not returned yet
+                private long w = 0;
+
+                @Override
+                public boolean hasNext() {
+                    while (this.w == 0 && this.i < buffer.size()) {
+                        this.w = match(this.i++, positions);
+                    }
+                    return this.w != 0;
+                }
+
+                @Override
+                public int next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    final int slot = (this.i - 1) * 64
+                                     + Long.numberOfTrailingZeros(this.w);
+                    this.w &= this.w - 1;
+                    return fromindextoId.get(slot);
+                }
+            };
+        }
+        //取结果时才搜索下一块，不生成List
+
+        /**
+         * The cursor is the number of the next block to search
+         */
+        @Override
+        public PartialResult search(E o, long deadline, int[] cursor,
+                                    SearchStatistics stat) {
+            ArrayList<Integer> answer = new ArrayList<Integer>();
+            if (buffer.isEmpty())
+                return new PartialResult(answer, null);
+            final int[] positions = h.hashAll(o);
+            int steps = 0;
+            for (int i = cursor == null ? 0 : cursor[0]; i < buffer.size(); ++i) {
+                if (PartialResult.isLate(++steps, deadline))
+                    return new PartialResult(answer, new int[] { i });
+                addIds(i, match(i, positions), answer);
+            }
+            return new PartialResult(answer, null);
+        }
+        //每CHECK_INTERVAL块看一次时间，超时就返回已找到的ID和下一块的位置
+
+        @Override
+        public IdSet searchIds(E o, SearchStatistics stat) {
+            IdSet ids = new IdSet();
+            if (buffer.isEmpty())
+                return ids;
+            final int[] positions = h.hashAll(o);
+            for (int i = 0; i < buffer.size(); ++i) {
+                for (long w = match(i, positions); w != 0; w &= w - 1) {
+                    ids.add(fromindextoId.get(i * 64
+                            + Long.numberOfTrailingZeros(w)));
+                }
+            }
+            ids.compress();
+            return ids;
+        }
+        //结果直接写入ID的位图，不生成List
+
+        @Override
+        public int count(E o, SearchStatistics stat) {
+            if (buffer.isEmpty())
+                return 0;
+            final int[] positions = h.hashAll(o);
+            int count = 0;
+            for (int i = 0; i < buffer.size(); ++i) {
+                count += Long.bitCount(match(i, positions));
+            }
+            return count;
+        }
+        //只计数，不把位转换成ID
+
+        @Override
+        public List<Integer> searchLimit(E o, int limit, SearchStatistics stat) {
+            if (limit < 0)
+                throw new IllegalArgumentException("Bad limit: " + limit);
+            ArrayList<Integer> answer = new ArrayList<Integer>();
+            if (buffer.isEmpty() || limit == 0)
+                return answer;
+            final int[] positions = h.hashAll(o);
+            for (int i = 0; i < buffer.size(); ++i) {
+                for (long w = match(i, positions); w != 0; w &= w - 1) {
+                    answer.add(fromindextoId.get(i * 64
+                            + Long.numberOfTrailingZeros(w)));
+                    if (answer.size() == limit)
+                        return answer;
+                }
+            }
+            return answer;
+        }
+        //找到limit个结果就停止
+
+        @Override
+        public int searchFirst(E o, SearchStatistics stat) {
+            final int index = firstMatch(o);
+            return index < 0 ? -1 : fromindextoId.get(index);
+        }
+
+        @Override
+        public boolean anyMatch(E o, SearchStatistics stat) {
+            return firstMatch(o) >= 0;
+        }
+
+        /**
+         * Return the first slot whose filter may contain o, or -1
+         */
+        private int firstMatch(E o) {
+            if (buffer.isEmpty())
+                return -1;
+            final int[] positions = h.hashAll(o);
+            for (int i = 0; i < buffer.size(); ++i) {
+                final long w = match(i, positions);
+                if (w != 0)
+                    return i * 64 + Long.numberOfTrailingZeros(w);
+                //第一个不为0的块就是结果
+            }
+            return -1;
+        }
+
+        /**
+         * Return the slots of block i whose filters have all the given bits
+         */
+        private long match(int i, int[] positions) {
+            final long[] mybuffer = buffer.get(i);
+            long w = ~0l;
+            for (int position : positions) {
+                w &= mybuffer[position];
+            }
+            return w;
+        }
+
+        @Override
+        public List<Integer> searchAll(Collection<? extends E> keys,
+                                       SearchStatistics stat) {
+            ArrayList<Integer> answer = new ArrayList<Integer>();
+            if (buffer.isEmpty() || keys.isEmpty())
+                return answer;
+            final int[][] positions = h.hashEach(keys);
+            for (int i = 0; i < buffer.size(); ++i) {
+                final long[] mybuffer = buffer.get(i);
+                long w = ~0l;
+                for (int[] keyPositions : positions) {
+                    for (int position : keyPositions) {
+                        w &= mybuffer[position];
+                    }
+                    if (w == 0)
+                        break;
+                }
+                //所有key的结果做与运算，全0时不再看其余的key
+                addIds(i, w, answer);
+            }
+            return answer;
+        }
+        //搜索包含所有key的BF
+
+        @Override
+        public List<Integer> searchAny(Collection<? extends E> keys,
+                                       SearchStatistics stat) {
+            ArrayList<Integer> answer = new ArrayList<Integer>();
+            if (buffer.isEmpty() || keys.isEmpty())
+                return answer;
+            final int[][] positions = h.hashEach(keys);
+            for (int i = 0; i < buffer.size(); ++i) {
+                final long[] mybuffer = buffer.get(i);
+                long w = 0;
+                for (int[] keyPositions : positions) {
+                    long keyw = ~0l;
+                    for (int position : keyPositions) {
+                        keyw &= mybuffer[position];
+                    }
+                    w |= keyw;
+                }
+                //所有key的结果做或运算，每个ID只出现一次
+                addIds(i, w, answer);
+            }
+            return answer;
+        }
+        //搜索包含任一key的BF
+
+        /**
+         * Add the IDs of the slots of block i set in w
+         */
+        private void addIds(int i, long w, List<Integer> answer) {
+            while (w != 0) {
+                answer.add(fromindextoId.get(i * 64
+                        + Long.numberOfTrailingZeros(w)));
+                w &= w - 1;
+            }
+        }
+
+        @Override
+        public int addElement(int id, E element, InsDelUpdateStatistics stat) {
+            Integer index = idMap.get(id);
+            if (index == null)
+                return -1;
+            final long[] mybuffer = buffer.get(index / 64);
+            final long mask = (1l << index);
+            for (int l = 0; l < h.getNumberOfHashFunctions(); ++l) {
+                mybuffer[h.hash(element, l)] |= mask;
+            }
+            return 0;
+        }
+        //直接在Flat中设置该BF对应列的k个位，不修改BF对象本身
+
+        @Override
+        public int addElements(int id, Collection<? extends E> elements,
+                               InsDelUpdateStatistics stat) {
+            Integer index = idMap.get(id);
+            if (index == null)
+                return -1;
+            final long[] mybuffer = buffer.get(index / 64);
+            final long mask = (1l << index);
+            for (E element : elements) {
+                for (int l = 0; l < h.getNumberOfHashFunctions(); ++l) {
+                    mybuffer[h.hash(element, l)] |= mask;
+                }
+            }
+            return 0;
+        }
+        //批量添加元素
+
         @Override
         // this assumes that the bloom filter only received new values
         public int updateIndex(BloomFilter<E> newBloomFilter,
@@ -161,8 +451,14 @@ public final class FlatBFMergeBatch<E> implements BloomIndex<E> {
             } else
                 h = newBloomFilter.getHasher();
             //替换的BF的hash函数和Flat的hash函数必须相同
-            setBloomAt(idMap.get(newBloomFilter.getID()),
-                    newBloomFilter.getBitSet());
+            final BitSet dirty = newBloomFilter.getDirtyWords();
+            if (dirty != null) {
+                setBloomWordsAt(idMap.get(newBloomFilter.getID()),
+                        newBloomFilter.getBitSet(), dirty);
+            } else
+                setBloomAt(idMap.get(newBloomFilter.getID()),
+                        newBloomFilter.getBitSet());
+            //若BF记录了改动的字，只刷入这些字
             //用BF的内容设置BF的index对应Flat位置的BF
             return 0;
         }
@@ -179,13 +475,112 @@ public final class FlatBFMergeBatch<E> implements BloomIndex<E> {
             } else
                 h = newBloomFilter.getHasher();
             //替换的BF的hash函数和Flat的hash函数必须相同
-            replaceBloomAt(idMap.get(newBloomFilter.getID()),
-                    newBloomFilter.getBitSet());
+            final BitSet dirty = newBloomFilter.getDirtyWords();
+            if (dirty != null) {
+                replaceBloomWordsAt(idMap.get(newBloomFilter.getID()),
+                        newBloomFilter.getBitSet(), dirty);
+            } else
+                replaceBloomAt(idMap.get(newBloomFilter.getID()),
+                        newBloomFilter.getBitSet());
+            //若BF记录了改动的字，只替换这些字
             //用BF的内容替换BF的index对应Flat位置的BF
             return 0;
         }
         //替换BF
 
+        /**
+         * Like replaceIndex, but for many Bloom filters at once. All the
+         * replaced slots of a block are cleared in a single pass with a
+         * combined mask before the new bits are written.
+         *
+         * @param newBloomFilters
+         *                Bloom filters already in the index, with their new
+         *                content
+         * @return the number of Bloom filters replaced
+         */
+        public int replaceAll(List<BloomFilter<E>> newBloomFilters) {
+            final long[] masks = new long[buffer.size()];
+            final int[] indexes = new int[newBloomFilters.size()];
+            for (int j = 0; j < indexes.length; ++j) {
+                BloomFilter<E> bf = newBloomFilters.get(j);
+                if (h != null) {
+                    if (bf.getHasher() != h)
+                        throw new RuntimeException(
+                                "You are using more than one hasher");
+                } else
+                    h = bf.getHasher();
+                Integer index = idMap.get(bf.getID());
+                if (index == null)
+                    throw new RuntimeException(
+                            "Could not find Bloom filter with ID " + bf.getID());
+                if (bf.getBitSet().length() != buffer.get(index / 64).length)
+                    throw new RuntimeException("BitSet has unexpected size");
+                indexes[j] = index;
+                masks[index / 64] |= 1l << index;
+            }
+            //按块汇总要替换的位
+            for (int b = 0; b < masks.length; ++b) {
+                if (masks[b] == 0)
+                    continue;
+                final long[] mybuffer = buffer.get(b);
+                final long keep = ~masks[b];
+                for (int k = 0; k < mybuffer.length; ++k) {
+                    mybuffer[k] &= keep;
+                }
+            }
+            //每一块只扫描一次，先抹掉所有要替换的BF
+            for (int j = 0; j < indexes.length; ++j) {
+                setBloomAt(indexes[j], newBloomFilters.get(j).getBitSet());
+            }
+            //再刷入新的内容
+            return indexes.length;
+        }
+        //批量替换BF
+
+        /**
+         * Remove all the blocks with no busy slot, renumbering the remaining
+         * slots in a single pass.
+         *
+         * @return the number of blocks moved
+         */
+        private int removeEmptyBlocks() {
+            final int nbBlocks = buffer.size();
+            final int[] shift = new int[nbBlocks];
+            ArrayList<long[]> newbuffer = new ArrayList<long[]>(nbBlocks);
+            ArrayList<Integer> newfromindextoId = new ArrayList<Integer>(
+                    fromindextoId.size());
+            int removed = 0;
+            int moved = 0;
+            for (int b = 0; b < nbBlocks; ++b) {
+                final long w = busy.getWord(b);
+                if (w == 0) {
+                    ++removed;
+                    continue;
+                }
+                shift[b] = removed;
+                if (removed != 0)
+                    ++moved;
+                busy.setWord(b - removed, w);
+                newbuffer.add(buffer.get(b));
+                final int end = Math.min(b * 64 + 64, fromindextoId.size());
+                for (int k = b * 64; k < end; ++k)
+                    newfromindextoId.add(fromindextoId.get(k));
+            }
+            if (removed == 0)
+                return 0;
+            busy.resize((nbBlocks - removed) * 64);
+            buffer = newbuffer;
+            fromindextoId = newfromindextoId;
+            for (Map.Entry<Integer, Integer> me : idMap.entrySet()) {
+                final int index = me.getValue().intValue();
+                if (shift[index / 64] != 0)
+                    me.setValue(index - 64 * shift[index / 64]);
+            }
+            //其后的所有BF对应的index数字减少64*前面移除的块数
+            return moved;
+        }
+        //移除所有空的Flat
+
         private void clearBloomAt(int i) {
             final long[] mybuffer = buffer.get(i / 64);
             final long mask = ~(1l << i);
@@ -225,68 +620,77 @@ public final class FlatBFMergeBatch<E> implements BloomIndex<E> {
         }
         // 用bs替换第i个BF
 
-        private void merge(int blocknum){
-            if(blocknum==block){
-                return;
-            }
-            int block1=Math.min(blocknum,block);
-            int block2=Math.max(blocknum,block);
-            long w= busy.getWord(block1);
-            ArrayList<Integer> index=new ArrayList<Integer>();
-            while(w!=0){
-                long t=w&-w;
-                index.add(block1*64+Long.bitCount(t-1));
-                w^=t;
-            }
-            int i=0;
-            long[] mybuffer=buffer.get(block1);
-            for(;i<index.size();i++){
-                int cur_index=index.get(i);
-                int cur_id=fromindextoId.get(cur_index);
-                busy.unset(cur_index);
-                busy.set(i);
-                fromindextoId.set(i,cur_id);
-                idMap.replace(cur_id,cur_index,i);
-                for (int j=0;j<mybuffer.length;j++) {
-                    String str = Long.toBinaryString(mybuffer[j]);
-                    StringBuilder stb = new StringBuilder(str);
-                    stb.setCharAt(i, str.charAt(cur_index));
-                    mybuffer[i] = Long.parseLong(stb.toString());
+        /**
+         * Like setBloomAt, but only for the bits in the given words
+         */
+        private void setBloomWordsAt(int i, BitSet bs, BitSet words) {
+            final long[] mybuffer = buffer.get(i / 64);
+            if (bs.length() != mybuffer.length)
+                throw new RuntimeException("BitSet has unexpected size");
+            final long mask = (1l << i);
+            for (int w = words.nextSetBit(0); w >= 0; w = words.nextSetBit(w + 1)) {
+                long word = bs.getWord(w);
+                while (word != 0) {
+                    mybuffer[w * 64 + Long.numberOfTrailingZeros(word)] |= mask;
+                    word &= word - 1;
                 }
             }
-            w= busy.getWord(block2);
-            while(w!=0){
-                long t=w&-w;
-                index.add(block2*64+Long.bitCount(t-1));
-                w^=t;
-            }
-            long[] mybuffer_new=buffer.get(block2);
-            for(;i<index.size();i++){
-                int cur_index=index.get(i);
-                int cur_id=fromindextoId.get(cur_index);
-                busy.unset(cur_index);
-                busy.set(i);
-                fromindextoId.set(i,cur_id);
-                idMap.replace(cur_id,cur_index,i);
-                for (int j=0;j<mybuffer.length;j++) {
-                    String str = Long.toBinaryString(mybuffer[j]);
-                    StringBuilder stb = new StringBuilder(str);
-                    stb.setCharAt(i, Long.toBinaryString(mybuffer_new[j]).charAt(cur_index));
-                    mybuffer[i] = Long.parseLong(stb.toString());
+        }
+        //只刷入改动过的字中的位
+
+        /**
+         * Like replaceBloomAt, but only for the bits in the given words
+         */
+        private void replaceBloomWordsAt(int i, BitSet bs, BitSet words) {
+            final long[] mybuffer = buffer.get(i / 64);
+            if (bs.length() != mybuffer.length)
+                throw new RuntimeException("BitSet has unexpected size");
+            final long mask = (1l << i);
+            for (int w = words.nextSetBit(0); w >= 0; w = words.nextSetBit(w + 1)) {
+                final long word = bs.getWord(w);
+                for (int j = 0; j < 64; ++j) {
+                    if ((word & (1l << j)) != 0)
+                        mybuffer[w * 64 + j] |= mask;
+                    else
+                        mybuffer[w * 64 + j] &= ~mask;
                 }
             }
-            for (int k = block2 * 64; k < block2* 64 + 64; ++k)
-                fromindextoId.remove(k);
-            buffer.remove(block2);
-            busy.removeWord(block2);
-            for (Map.Entry<Integer, Integer> me : idMap.entrySet()) {
-                if (me.getValue().intValue() / 64 >= block2) {
-                    idMap.put(me.getKey(), me.getValue()
-                            .intValue() - 64);
+        }
+        //只替换改动过的字中的位
+
+        /**
+         * Return a read-only copy of this index, with the Bloom filters packed in
+         * full blocks (see FrozenFlatBloomFilterIndex). The order of the search
+         * results does not change.
+         */
+        @Override
+        public FrozenFlatBloomFilterIndex<E> freeze() {
+            final int[] ids = new int[idMap.size()];
+            final BitSet[] bits = new BitSet[ids.length];
+            final int[] target = new int[64];
+            int j = 0;
+            for (int b = 0; b < buffer.size(); ++b) {
+                final long[] mybuffer = buffer.get(b);
+                final long w = busy.getWord(b);
+                for (long x = w; x != 0; x &= x - 1) {
+                    final int s = Long.numberOfTrailingZeros(x);
+                    target[s] = j;
+                    ids[j] = fromindextoId.get(b * 64 + s);
+                    bits[j] = new BitSet(mybuffer.length);
+                    ++j;
                 }
+                //给这一块中占用的每个位置分配紧凑后的位置
+                for (int k = 0; k < mybuffer.length; ++k) {
+                    for (long x = mybuffer[k] & w; x != 0; x &= x - 1) {
+                        bits[target[Long.numberOfTrailingZeros(x)]].set(k);
+                    }
+                }
+                //每一块只扫描一次，取出所有BF
             }
-            flag=false;
+            return new FrozenFlatBloomFilterIndex<E>(ids, bits, h);
         }
+        //冻结为只读的紧凑副本
+
         private ArrayList<Integer> fromindextoId = new ArrayList<Integer>();
         //由index查到对应falt的真实ID
 
@@ -302,11 +706,5 @@ public final class FlatBFMergeBatch<E> implements BloomIndex<E> {
         Hasher h;
         //hash函数的集合
 
-        boolean flag=false;
-        //是否有占用率低于50%的Flat块
-
-        int block;
-        //占用率低于50%Flat的块号
-
 
 }
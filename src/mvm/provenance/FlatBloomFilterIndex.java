@@ -1,10 +1,14 @@
 package mvm.provenance;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import com.googlecode.javaewah.datastructure.BitSet;
 import com.skjegstad.utils.BloomFilter;
@@ -30,28 +34,67 @@ public final class FlatBloomFilterIndex<E> implements BloomIndex<E> {
         //得到ID并从idMap中移除，arrayb中对应的占用解除
         if (busy.getWord(index / 64) == 0) {
             //如果删除之后当前的Flat为空
-            for (int k = index / 64 * 64; k < index / 64 * 64 + 64; ++k)
-                fromindextoId.remove(k);
-            buffer.remove(index / 64);
-            busy.removeWord(index / 64);
-            //移除此Flat中的ID，Flat组中的此Flat，arrayb中整体解除占用
-            for (Map.Entry<Integer, Integer> me : idMap.entrySet()) {
-                if (me.getValue().intValue() / 64 >= index / 64) {
-                    idMap.put(me.getKey(), me.getValue()
-                              .intValue() - 64);
-                }
-            //其后的所有BF对应的index数字减少64
-            }
+            removeEmptyBlocks();
+            //移除此Flat中的ID，Flat组中的此Flat，其后的所有BF对应的index数字减少64
         } else {
             clearBloomAt(index);
         }
         return 0;
     }
     //删除指定ID的BF
+
+    /**
+     * Delete several Bloom filters at once. The slots are grouped by block:
+     * each block is cleared in a single pass with the combined mask of its
+     * deleted slots, and the blocks left empty are removed together at the
+     * end (so the ids are renumbered only once). Each block cleared or moved
+     * counts as a node accessed in stat.
+     *
+     * @param ids
+     *                ids of the Bloom filters to delete, unknown ids are
+     *                ignored
+     * @return the number of Bloom filters deleted
+     */
+    public int deleteAll(int[] ids, InsDelUpdateStatistics stat) {
+        final long[] masks = new long[buffer.size()];
+        int nbDeleted = 0;
+        for (int id : ids) {
+            Integer index = idMap.remove(id);
+            if (index == null)
+                continue;
+            masks[index / 64] |= 1l << index;
+            busy.unset(index);
+            ++nbDeleted;
+        }
+        //按块汇总要删除的位
+        boolean hasEmptyBlock = false;
+        for (int b = 0; b < masks.length; ++b) {
+            if (masks[b] == 0)
+                continue;
+            if (busy.getWord(b) == 0) {
+                hasEmptyBlock = true;
+                continue;
+            }
+            final long[] mybuffer = block(b);
+            final long keep = ~masks[b];
+            for (int k = 0; k < mybuffer.length; ++k) {
+                mybuffer[k] &= keep;
+            }
+            stat.nbBFNodesAccessed++;
+        }
+        //每一块只扫描一次，用合并后的mask抹掉
+        if (hasEmptyBlock)
+            stat.nbBFNodesAccessed += removeEmptyBlocks();
+        //最后统一移除空的Flat
+        return nbDeleted;
+    }
+    //批量删除BF
     @Override
     public int getBloomFilterSize() {
         if (buffer.isEmpty())
             return 0;
+        else if (packed.get(0) != null)
+            return packed.get(0).length;
         else
             return buffer.get(0).length;
     }
@@ -98,6 +141,7 @@ public final class FlatBloomFilterIndex<E> implements BloomIndex<E> {
             i = busy.length();
             busy.resize(busy.length() + 64);
             buffer.add(new long[bf.getBitSet().length()]);
+            packed.add(null);
         }
         //没有空位的时候新建一个Flat
         if (i < fromindextoId.size()) {
@@ -117,31 +161,284 @@ public final class FlatBloomFilterIndex<E> implements BloomIndex<E> {
     @Override
     public List<Integer> search(E o, SearchStatistics stat) {
         ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (buffer.isEmpty())
+            return answer;
+        final int[] positions = h.hashAll(o);
+        //每个hash值只算一次
         for (int i = 0; i < buffer.size(); ++i) {
-            long w = ~0l;
-            //w初始值为全1
-            for (int l = 0; l < h.getNumberOfHashFunctions(); ++l) {
-                final int hashvalue = h.hash(o, l);
-                w &= buffer.get(i)[hashvalue];
-                //W分别与每一个hash值对应的位做与运算
+            addIds(i, match(i, positions, ~0l), answer);
+        }
+        return answer;
+    }
+    //搜索object，返回结果对应的ID的集合
+
+    /**
+     * Only the blocks holding allowed filters are searched, with a mask of
+     * the allowed slots of each block computed from the allowed IDs
+     */
+    @Override
+    public List<Integer> search(E o, IdSet allowed, SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (buffer.isEmpty())
+            return answer;
+        final long[] masks = new long[buffer.size()];
+        for (IntIterator it = allowed.iterator(); it.hasNext();) {
+            final Integer index = idMap.get(it.next());
+            if (index != null)
+                masks[index / 64] |= 1l << index;
+        }
+        //每个块中允许的BF
+        final int[] positions = h.hashAll(o);
+        for (int i = 0; i < buffer.size(); ++i) {
+            if (masks[i] != 0)
+                addIds(i, match(i, positions, masks[i]), answer);
+        }
+        //跳过没有允许的BF的块
+        return answer;
+    }
+
+    /**
+     * The blocks are searched one at a time, as the IDs are pulled
+     */
+    @Override
+    public IntIterator searchIterator(E o, SearchStatistics stat) {
+        final int[] positions = buffer.isEmpty() ? null : h.hashAll(o);
+        return new IntIterator() {
+            // next block to search
+            private int i = 0;
+
+            // the slots of block i - 1 not returned yet
+            private long w = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (this.w == 0 && this.i < buffer.size()) {
+                    this.w = match(this.i++, positions, ~0l);
+                }
+                return this.w != 0;
+            }
+
+            @Override
+            public int next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                final int slot = (this.i - 1) * 64
+                                 + Long.numberOfTrailingZeros(this.w);
+                this.w &= this.w - 1;
+                return fromindextoId.get(slot);
+            }
+        };
+    }
+    //取结果时才搜索下一块，不生成List
+
+    /**
+     * The cursor is the number of the next block to search
+     */
+    @Override
+    public PartialResult search(E o, long deadline, int[] cursor,
+                                SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (buffer.isEmpty())
+            return new PartialResult(answer, null);
+        final int[] positions = h.hashAll(o);
+        int steps = 0;
+        for (int i = cursor == null ? 0 : cursor[0]; i < buffer.size(); ++i) {
+            if (PartialResult.isLate(++steps, deadline))
+                return new PartialResult(answer, new int[] { i });
+            addIds(i, match(i, positions, ~0l), answer);
+        }
+        return new PartialResult(answer, null);
+    }
+    //每CHECK_INTERVAL块看一次时间，超时就返回已找到的ID和下一块的位置
+
+    @Override
+    public IdSet searchIds(E o, SearchStatistics stat) {
+        IdSet ids = new IdSet();
+        if (buffer.isEmpty())
+            return ids;
+        final int[] positions = h.hashAll(o);
+        for (int i = 0; i < buffer.size(); ++i) {
+            for (long w = match(i, positions, ~0l); w != 0; w &= w - 1) {
+                ids.add(fromindextoId.get(i * 64
+                                        + Long.numberOfTrailingZeros(w)));
             }
+        }
+        ids.compress();
+        return ids;
+    }
+    //结果直接写入ID的位图，不生成List
+
+    @Override
+    public int count(E o, SearchStatistics stat) {
+        if (buffer.isEmpty())
+            return 0;
+        final int[] positions = h.hashAll(o);
+        int count = 0;
+        for (int i = 0; i < buffer.size(); ++i) {
+            count += Long.bitCount(match(i, positions, ~0l));
+        }
+        return count;
+    }
+    //只计数，不把位转换成ID
 
-            while (w != 0) {
-                //如果有命中的结果
-                long t = w & -w;
-                //w是奇数时t值为1，w是偶数时t中只有一个1且末尾0与原数相同
-                //奇数t-1是0，计数后为0，代表最后一位是命中的。
-                //偶数t-1是把末尾的0都变成了1，计数得到第几个位是命中的。
+    @Override
+    public List<Integer> searchLimit(E o, int limit, SearchStatistics stat) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Bad limit: " + limit);
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (buffer.isEmpty() || limit == 0)
+            return answer;
+        final int[] positions = h.hashAll(o);
+        for (int i = 0; i < buffer.size(); ++i) {
+            for (long w = match(i, positions, ~0l); w != 0; w &= w - 1) {
                 answer.add(fromindextoId.get(i * 64
-                                             + Long.bitCount(t - 1)));
-                //bitCount是计数数字对应二进制中有几个1
-                w ^= t;
-                //和0异或是本身，和1异或是相反。相当于把计数过的位置零
+                                             + Long.numberOfTrailingZeros(w)));
+                if (answer.size() == limit)
+                    return answer;
             }
         }
         return answer;
     }
-    //搜索object，返回结果对应的ID的集合
+    //找到limit个结果就停止
+
+    @Override
+    public int searchFirst(E o, SearchStatistics stat) {
+        final int index = firstMatch(o);
+        return index < 0 ? -1 : fromindextoId.get(index);
+    }
+
+    @Override
+    public boolean anyMatch(E o, SearchStatistics stat) {
+        return firstMatch(o) >= 0;
+    }
+
+    /**
+     * Return the first slot whose filter may contain o, or -1
+     */
+    private int firstMatch(E o) {
+        if (buffer.isEmpty())
+            return -1;
+        final int[] positions = h.hashAll(o);
+        for (int i = 0; i < buffer.size(); ++i) {
+            final long w = match(i, positions, ~0l);
+            if (w != 0)
+                return i * 64 + Long.numberOfTrailingZeros(w);
+            //第一个不为0的块就是结果
+        }
+        return -1;
+    }
+
+    @Override
+    public List<Integer> searchAll(Collection<? extends E> keys,
+                                   SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (buffer.isEmpty() || keys.isEmpty())
+            return answer;
+        final int[][] positions = h.hashEach(keys);
+        for (int i = 0; i < buffer.size(); ++i) {
+            long w = ~0l;
+            for (int[] keyPositions : positions) {
+                w = match(i, keyPositions, w);
+                if (w == 0)
+                    break;
+            }
+            //所有key的结果做与运算，全0时不再看其余的key
+            addIds(i, w, answer);
+        }
+        return answer;
+    }
+    //搜索包含所有key的BF
+
+    @Override
+    public List<Integer> searchAny(Collection<? extends E> keys,
+                                   SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (buffer.isEmpty() || keys.isEmpty())
+            return answer;
+        final int[][] positions = h.hashEach(keys);
+        for (int i = 0; i < buffer.size(); ++i) {
+            long w = 0;
+            for (int[] keyPositions : positions) {
+                w |= match(i, keyPositions, ~0l);
+            }
+            //所有key的结果做或运算，每个ID只出现一次
+            addIds(i, w, answer);
+        }
+        return answer;
+    }
+    //搜索包含任一key的BF
+
+    /**
+     * Return the slots of block i whose filters have all the given bits,
+     * among the slots of w
+     */
+    private long match(int i, int[] positions, long w) {
+        final PackedBlock p = packed.get(i);
+        if (p == null) {
+            final long[] mybuffer = buffer.get(i);
+            for (int position : positions) {
+                w &= mybuffer[position];
+                //W分别与每一个hash值对应的位做与运算
+            }
+        } else {
+            for (int position : positions) {
+                w &= p.get(position);
+                if (w == 0)
+                    break;
+            }
+            //压缩的块：落在全0的字上就结束
+        }
+        return w;
+    }
+
+    /**
+     * Add the IDs of the slots of block i set in w
+     */
+    private void addIds(int i, long w, List<Integer> answer) {
+        while (w != 0) {
+            //如果有命中的结果
+            long t = w & -w;
+            //w是奇数时t值为1，w是偶数时t中只有一个1且末尾0与原数相同
+            //奇数t-1是0，计数后为0，代表最后一位是命中的。
+            //偶数t-1是把末尾的0都变成了1，计数得到第几个位是命中的。
+            answer.add(fromindextoId.get(i * 64
+                                         + Long.bitCount(t - 1)));
+            //bitCount是计数数字对应二进制中有几个1
+            w ^= t;
+            //和0异或是本身，和1异或是相反。相当于把计数过的位置零
+        }
+    }
+
+    @Override
+    public int addElement(int id, E element, InsDelUpdateStatistics stat) {
+        Integer index = idMap.get(id);
+        if (index == null)
+            return -1;
+        final long[] mybuffer = block(index / 64);
+        final long mask = (1l << index);
+        for (int l = 0; l < h.getNumberOfHashFunctions(); ++l) {
+            mybuffer[h.hash(element, l)] |= mask;
+        }
+        return 0;
+    }
+    //直接在Flat中设置该BF对应列的k个位，不修改BF对象本身
+
+    @Override
+    public int addElements(int id, Collection<? extends E> elements,
+                           InsDelUpdateStatistics stat) {
+        Integer index = idMap.get(id);
+        if (index == null)
+            return -1;
+        final long[] mybuffer = block(index / 64);
+        final long mask = (1l << index);
+        for (E element : elements) {
+            for (int l = 0; l < h.getNumberOfHashFunctions(); ++l) {
+                mybuffer[h.hash(element, l)] |= mask;
+            }
+        }
+        return 0;
+    }
+    //批量添加元素
 
     @Override
     // this assumes that the bloom filter only received new values
@@ -154,8 +451,14 @@ public final class FlatBloomFilterIndex<E> implements BloomIndex<E> {
         } else
             h = newBloomFilter.getHasher();
         //替换的BF的hash函数和Flat的hash函数必须相同
-        setBloomAt(idMap.get(newBloomFilter.getID()),
-                   newBloomFilter.getBitSet());
+        final BitSet dirty = newBloomFilter.getDirtyWords();
+        if (dirty != null) {
+            setBloomWordsAt(idMap.get(newBloomFilter.getID()),
+                    newBloomFilter.getBitSet(), dirty);
+        } else
+            setBloomAt(idMap.get(newBloomFilter.getID()),
+                    newBloomFilter.getBitSet());
+        //若BF记录了改动的字，只刷入这些字
         //用BF的内容设置BF的index对应Flat位置的BF
         return 0;
     }
@@ -172,15 +475,117 @@ public final class FlatBloomFilterIndex<E> implements BloomIndex<E> {
         } else
             h = newBloomFilter.getHasher();
         //替换的BF的hash函数和Flat的hash函数必须相同
-        replaceBloomAt(idMap.get(newBloomFilter.getID()),
-                       newBloomFilter.getBitSet());
+        final BitSet dirty = newBloomFilter.getDirtyWords();
+        if (dirty != null) {
+            replaceBloomWordsAt(idMap.get(newBloomFilter.getID()),
+                    newBloomFilter.getBitSet(), dirty);
+        } else
+            replaceBloomAt(idMap.get(newBloomFilter.getID()),
+                    newBloomFilter.getBitSet());
+        //若BF记录了改动的字，只替换这些字
         //用BF的内容替换BF的index对应Flat位置的BF
         return 0;
     }
     //替换BF
 
+    /**
+     * Like replaceIndex, but for many Bloom filters at once. All the replaced
+     * slots of a block are cleared in a single pass with a combined mask
+     * before the new bits are written.
+     *
+     * @param newBloomFilters
+     *                Bloom filters already in the index, with their new
+     *                content
+     * @return the number of Bloom filters replaced
+     */
+    public int replaceAll(List<BloomFilter<E>> newBloomFilters) {
+        final long[] masks = new long[buffer.size()];
+        final int[] indexes = new int[newBloomFilters.size()];
+        for (int j = 0; j < indexes.length; ++j) {
+            BloomFilter<E> bf = newBloomFilters.get(j);
+            if (h != null) {
+                if (bf.getHasher() != h)
+                    throw new RuntimeException(
+                        "You are using more than one hasher");
+            } else
+                h = bf.getHasher();
+            Integer index = idMap.get(bf.getID());
+            if (index == null)
+                throw new RuntimeException(
+                    "Could not find Bloom filter with ID " + bf.getID());
+            if (bf.getBitSet().length() != getBloomFilterSize())
+                throw new RuntimeException("BitSet has unexpected size");
+            indexes[j] = index;
+            masks[index / 64] |= 1l << index;
+        }
+        //按块汇总要替换的位
+        for (int b = 0; b < masks.length; ++b) {
+            if (masks[b] == 0)
+                continue;
+            final long[] mybuffer = block(b);
+            final long keep = ~masks[b];
+            for (int k = 0; k < mybuffer.length; ++k) {
+                mybuffer[k] &= keep;
+            }
+        }
+        //每一块只扫描一次，先抹掉所有要替换的BF
+        for (int j = 0; j < indexes.length; ++j) {
+            setBloomAt(indexes[j], newBloomFilters.get(j).getBitSet());
+        }
+        //再刷入新的内容
+        return indexes.length;
+    }
+    //批量替换BF
+
+    /**
+     * Remove all the blocks with no busy slot, renumbering the remaining
+     * slots in a single pass.
+     *
+     * @return the number of blocks moved
+     */
+    private int removeEmptyBlocks() {
+        final int nbBlocks = buffer.size();
+        final int[] shift = new int[nbBlocks];
+        ArrayList<long[]> newbuffer = new ArrayList<long[]>(nbBlocks);
+        ArrayList<PackedBlock> newpacked = new ArrayList<PackedBlock>(nbBlocks);
+        ArrayList<Integer> newfromindextoId = new ArrayList<Integer>(
+            fromindextoId.size());
+        int removed = 0;
+        int moved = 0;
+        for (int b = 0; b < nbBlocks; ++b) {
+            final long w = busy.getWord(b);
+            if (w == 0) {
+                ++removed;
+                continue;
+            }
+            shift[b] = removed;
+            if (removed != 0)
+                ++moved;
+            busy.setWord(b - removed, w);
+            newbuffer.add(buffer.get(b));
+            newpacked.add(packed.get(b));
+            final int end = Math.min(b * 64 + 64, fromindextoId.size());
+            for (int k = b * 64; k < end; ++k)
+                newfromindextoId.add(fromindextoId.get(k));
+        }
+        if (removed == 0)
+            return 0;
+        busy.resize((nbBlocks - removed) * 64);
+        buffer = newbuffer;
+        packed = newpacked;
+        fromindextoId = newfromindextoId;
+        for (Map.Entry<Integer, Integer> me : idMap.entrySet()) {
+            final int index = me.getValue().intValue();
+            if (shift[index / 64] != 0)
+                me.setValue(index - 64 * shift[index / 64]);
+        }
+        //其后的所有BF对应的index数字减少64*前面移除的块数
+        return moved;
+    }
+    //移除所有空的Flat
+
     private void clearBloomAt(int i) {
-        final long[] mybuffer = buffer.get(i / 64);
+        final long[] mybuffer = block(i / 64);
         final long mask = ~(1l << i);
         for (int k = 0; k < mybuffer.length; ++k) {
             mybuffer[k] &= mask;
@@ -190,7 +595,7 @@ public final class FlatBloomFilterIndex<E> implements BloomIndex<E> {
     //mybuffer是取出buffer对应的那一块。循环抹掉。
 
     private void setBloomAt(int i, BitSet bs) {
-        final long[] mybuffer = buffer.get(i / 64);
+        final long[] mybuffer = block(i / 64);
         if (bs.length() != mybuffer.length)
             throw new RuntimeException("BitSet has unexpected size");
         final long mask = (1l << i);
@@ -202,7 +607,7 @@ public final class FlatBloomFilterIndex<E> implements BloomIndex<E> {
     //mybuffer是取出buffer对应的那一块。循环设置。
 
     private void replaceBloomAt(int i, BitSet bs) {
-        long[] mybuffer = buffer.get(i / 64);
+        long[] mybuffer = block(i / 64);
         if (bs.length() != mybuffer.length)
             throw new RuntimeException("BitSet has unexpected size");
         final long mask = (1l << i);
@@ -218,6 +623,379 @@ public final class FlatBloomFilterIndex<E> implements BloomIndex<E> {
     }
     // 用bs替换第i个BF
 
+    /**
+     * Like setBloomAt, but only for the bits in the given words
+     */
+    private void setBloomWordsAt(int i, BitSet bs, BitSet words) {
+        final long[] mybuffer = block(i / 64);
+        if (bs.length() != mybuffer.length)
+            throw new RuntimeException("BitSet has unexpected size");
+        final long mask = (1l << i);
+        for (int w = words.nextSetBit(0); w >= 0; w = words.nextSetBit(w + 1)) {
+            long word = bs.getWord(w);
+            while (word != 0) {
+                mybuffer[w * 64 + Long.numberOfTrailingZeros(word)] |= mask;
+                word &= word - 1;
+            }
+        }
+    }
+    //只刷入改动过的字中的位
+
+    /**
+     * Like replaceBloomAt, but only for the bits in the given words
+     */
+    private void replaceBloomWordsAt(int i, BitSet bs, BitSet words) {
+        final long[] mybuffer = block(i / 64);
+        if (bs.length() != mybuffer.length)
+            throw new RuntimeException("BitSet has unexpected size");
+        final long mask = (1l << i);
+        for (int w = words.nextSetBit(0); w >= 0; w = words.nextSetBit(w + 1)) {
+            final long word = bs.getWord(w);
+            for (int j = 0; j < 64; ++j) {
+                if ((word & (1l << j)) != 0)
+                    mybuffer[w * 64 + j] |= mask;
+                else
+                    mybuffer[w * 64 + j] &= ~mask;
+            }
+        }
+    }
+    //只替换改动过的字中的位
+
+    /**
+     * Return a read-only copy of this index, with the Bloom filters packed in
+     * full blocks (see FrozenFlatBloomFilterIndex). The order of the search
+     * results does not change.
+     */
+    @Override
+    public FrozenFlatBloomFilterIndex<E> freeze() {
+        final int[] ids = new int[idMap.size()];
+        final BitSet[] bits = new BitSet[ids.length];
+        final int[] target = new int[64];
+        int j = 0;
+        for (int b = 0; b < buffer.size(); ++b) {
+            final long[] mybuffer = packed.get(b) != null ? packed.get(b)
+                                    .unpack() : buffer.get(b);
+            final long w = busy.getWord(b);
+            for (long x = w; x != 0; x &= x - 1) {
+                final int s = Long.numberOfTrailingZeros(x);
+                target[s] = j;
+                ids[j] = fromindextoId.get(b * 64 + s);
+                bits[j] = new BitSet(mybuffer.length);
+                ++j;
+            }
+            //给这一块中占用的每个位置分配紧凑后的位置
+            for (int k = 0; k < mybuffer.length; ++k) {
+                for (long x = mybuffer[k] & w; x != 0; x &= x - 1) {
+                    bits[target[Long.numberOfTrailingZeros(x)]].set(k);
+                }
+            }
+            //每一块只扫描一次，取出所有BF
+        }
+        return new FrozenFlatBloomFilterIndex<E>(ids, bits, h);
+    }
+    //冻结为只读的紧凑副本
+
+    /**
+     * Find all the pairs of distinct Bloom filters of this index at a
+     * distance of at most maxDistance, the distance being the one of
+     * BloomFilter.computeDistance for the given metric (2 for Jaccard, 3
+     * for cosine, anything else for Hamming).
+     *
+     * The distances only depend on the number of bits of each filter and
+     * on the number of bits of their AND (see BloomFilter.computeDistance).
+     * Each block is first transposed back into the 64 rows of its filters,
+     * stored one after the other, and the pairs are compared by tiles of
+     * 64 x 64, one tile per pair of blocks, whose rows fit in the L1 cache.
+     * The pairs whose numbers of bits are too far apart for the distance to
+     * be small enough are skipped without counting their AND.
+     *
+     * The rows take as much memory as the blocks while the join runs.
+     *
+     * @param metric
+     *                metric of the distance, as in BloomFilter
+     * @param maxDistance
+     *                largest distance of the pairs returned
+     * @param pool
+     *                if not null, the tiles are compared in parallel in this
+     *                pool
+     * @return the similar pairs, each pair once, the result being the same
+     *         with or without pool
+     */
+    public List<SimilarPair> similarityJoin(int metric, double maxDistance,
+                                            ForkJoinPool pool) {
+        final int nbBlocks = buffer.size();
+        final int nbWords = (getBloomFilterSize() + 63) / 64;
+        final long[][] rows = new long[nbBlocks][64 * nbWords];
+        final int[] cardinality = new int[nbBlocks * 64];
+        for (int b = 0; b < nbBlocks; ++b) {
+            final long[] mybuffer = packed.get(b) != null ? packed.get(b)
+                                    .unpack() : buffer.get(b);
+            final long w = busy.getWord(b);
+            for (int k = 0; k < mybuffer.length; ++k) {
+                for (long x = mybuffer[k] & w; x != 0; x &= x - 1) {
+                    final int s = Long.numberOfTrailingZeros(x);
+                    rows[b][s * nbWords + (k >>> 6)] |= 1l << k;
+                    ++cardinality[b * 64 + s];
+                }
+            }
+        }
+        //每一块转置回64个BF，每个BF的1的个数只算一次
+        final SimilarityJoin join = new SimilarityJoin(this, rows, nbWords,
+                cardinality, metric, maxDistance, 0, nbBlocks * (nbBlocks + 1)
+                / 2);
+        return pool == null ? join.compute() : pool.invoke(join);
+    }
+    //所有距离不超过maxDistance的BF对
+
+    /**
+     * Compare the tiles (a, b), a <= b, numbered from to to in the order
+     * (0, 0), (0, 1)... (0, n - 1), (1, 1)... where tile (a, b) holds the
+     * pairs of a filter of block a and a filter of block b
+     */
+    private static final class SimilarityJoin extends
+        RecursiveTask<List<SimilarPair>> {
+        private static final long serialVersionUID = 1L;
+
+        // number of tiles below which they are compared in place
+        private static final int THRESHOLD = 16;
+
+        private final FlatBloomFilterIndex<?> index;
+        private final long[][] rows;
+        private final int nbWords;
+        private final int[] cardinality;
+        private final int metric;
+        private final double maxDistance;
+        private final int from;
+        private final int to;
+
+        SimilarityJoin(FlatBloomFilterIndex<?> index, long[][] rows,
+                       int nbWords, int[] cardinality, int metric,
+                       double maxDistance, int from, int to) {
+            this.index = index;
+            this.rows = rows;
+            this.nbWords = nbWords;
+            this.cardinality = cardinality;
+            this.metric = metric;
+            this.maxDistance = maxDistance;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<SimilarPair> compute() {
+            if (to - from > THRESHOLD) {
+                final int middle = (from + to) >>> 1;
+                SimilarityJoin left = new SimilarityJoin(index, rows, nbWords,
+                        cardinality, metric, maxDistance, from, middle);
+                SimilarityJoin right = new SimilarityJoin(index, rows,
+                        nbWords, cardinality, metric, maxDistance, middle, to);
+                invokeAll(left, right);
+                List<SimilarPair> pairs = left.join();
+                pairs.addAll(right.join());
+                return pairs;
+            }
+            ArrayList<SimilarPair> pairs = new ArrayList<SimilarPair>();
+            int a = 0;
+            int first = 0;
+            while (first + rows.length - a <= from) {
+                first += rows.length - a;
+                ++a;
+            }
+            for (int b = a + from - first, n = from; n < to; ++n, ++b) {
+                if (b == rows.length) {
+                    ++a;
+                    b = a;
+                }
+                final long[] rowsA = rows[a];
+                final long[] rowsB = rows[b];
+                final long busyB = index.busy.getWord(b);
+                for (long x = index.busy.getWord(a); x != 0; x &= x - 1) {
+                    final int i = Long.numberOfTrailingZeros(x);
+                    final int count1 = cardinality[a * 64 + i];
+                    // in the same block, each pair once
+                    long others = a == b ? busyB & (-2l << i) : busyB;
+                    for (; others != 0; others &= others - 1) {
+                        final int j = Long.numberOfTrailingZeros(others);
+                        final int count2 = cardinality[b * 64 + j];
+                        if (lowerBound(count1, count2) > maxDistance) {
+                            continue;
+                        }
+                        int countAND = 0;
+                        for (int w = 0, w1 = i * nbWords, w2 = j * nbWords; w < nbWords; ++w) {
+                            countAND += Long.bitCount(rowsA[w1 + w]
+                                                      & rowsB[w2 + w]);
+                        }
+                        final double d = distance(countAND, count1, count2);
+                        if (d <= maxDistance) {
+                            pairs.add(new SimilarPair(index.fromindextoId
+                                                      .get(a * 64 + i), index.fromindextoId.get(b * 64 + j), d));
+                        }
+                    }
+                }
+            }
+            return pairs;
+        }
+
+        /**
+         * Return the distance of two filters from the count of their AND
+         * and their counts, computed as BloomFilter.computeDistance
+         */
+        private double distance(int countAND, int count1, int count2) {
+            if (metric == 2) {
+                final int countOR = count1 + count2 - countAND;
+                return countOR > 0 ? 1.0 - (double) countAND / countOR : 0;
+            }
+            if (metric == 3) {
+                return count1 > 0 || count2 > 0 ? 1.0 - countAND
+                       / (Math.sqrt(count1) * Math.sqrt(count2)) : 0;
+            }
+            return count1 + count2 - 2 * countAND;
+        }
+
+        /**
+         * Return a lower bound of the distance of two filters from their
+         * counts, the AND having at most min bits and the OR at least max,
+         * slightly lowered to absorb the rounding
+         */
+        private double lowerBound(int count1, int count2) {
+            final int min = Math.min(count1, count2);
+            final int max = Math.max(count1, count2);
+            if (metric == 2) {
+                return max > 0 ? 1.0 - (double) min / max - 1e-9 : 0;
+            }
+            if (metric == 3) {
+                return max > 0 ? 1.0 - Math.sqrt((double) min / max) - 1e-9 : 0;
+            }
+            return max - min;
+        }
+    }
+
+    /**
+     * Largest fraction of non-zero words of the blocks compressed by
+     * compressBlocks(). In TestAC with 10000 filters of 95851 bits, the
+     * searches of compressed blocks were 4 times faster with 8% of non-zero
+     * words, 25% faster with 36% to 74%, as fast with 83%, and 15% to 60%
+     * slower above 90%. A compressed block with 75% of non-zero words
+     * takes 77% of the memory of the dense block.
+     */
+    public static final double DEFAULT_MAX_NONZERO_RATIO = 0.75;
+
+    /**
+     * Compress the blocks where it pays off (see compressBlocks(double)),
+     * those with at most DEFAULT_MAX_NONZERO_RATIO of non-zero words
+     *
+     * @return the number of compressed blocks
+     */
+    public int compressBlocks() {
+        return compressBlocks(DEFAULT_MAX_NONZERO_RATIO);
+    }
+
+    /**
+     * Compress the blocks with at most the given fraction of non-zero
+     * words: the zero words are left out, and a bitmap with one bit per
+     * word (plus a rank per word of the bitmap) locates the others. A
+     * search probing a zero word of a compressed block reads only the
+     * small bitmap, and stops there. The compressed blocks are unpacked
+     * again when they are modified (insertion, deletion, update...) so
+     * this is meant for indexes searched much more often than modified;
+     * the search results do not change.
+     *
+     * The word of bit k is zero when none of the 64 filters of the block
+     * has bit k, so with filters of density d (fraction of the bits set),
+     * a fraction of about (1 - d)^64 of the words is zero: half of the
+     * words for d = 1%, 4% of the words for d = 5%. A compressed block
+     * takes 12 bytes per 64 words plus 8 bytes per non-zero word, and a
+     * probe costs up to three reads instead of one (see
+     * DEFAULT_MAX_NONZERO_RATIO for the crossover).
+     *
+     * @param maxNonZeroRatio
+     *                the largest fraction of non-zero words of a compressed
+     *                block, 0 to 1
+     * @return the number of compressed blocks
+     */
+    public int compressBlocks(double maxNonZeroRatio) {
+        int nbPacked = 0;
+        for (int b = 0; b < buffer.size(); ++b) {
+            if (packed.get(b) == null) {
+                final long[] mybuffer = buffer.get(b);
+                int nonZero = 0;
+                for (long w : mybuffer) {
+                    if (w != 0)
+                        ++nonZero;
+                }
+                if (nonZero > maxNonZeroRatio * mybuffer.length)
+                    continue;
+                packed.set(b, new PackedBlock(mybuffer, nonZero));
+                buffer.set(b, null);
+            }
+            ++nbPacked;
+        }
+        return nbPacked;
+    }
+    //压缩全0字多的块，修改时再解压
+
+    /**
+     * Return the words of block b, unpacking it first if it is compressed
+     */
+    private long[] block(int b) {
+        final PackedBlock p = packed.get(b);
+        if (p != null) {
+            buffer.set(b, p.unpack());
+            packed.set(b, null);
+        }
+        return buffer.get(b);
+    }
+
+    /**
+     * A block without its zero words (see compressBlocks)
+     */
+    private static final class PackedBlock {
+        // bit k % 64 of presence[k / 64] is set if word k is not zero
+        final long[] presence;
+        // number of non-zero words before word 64 * i
+        final int[] rank;
+        // the non-zero words, in order
+        final long[] words;
+        // number of words of the block
+        final int length;
+
+        PackedBlock(long[] block, int nonZero) {
+            this.length = block.length;
+            this.presence = new long[(block.length + 63) / 64];
+            this.rank = new int[this.presence.length];
+            this.words = new long[nonZero];
+            int j = 0;
+            for (int k = 0; k < block.length; ++k) {
+                if (k % 64 == 0)
+                    this.rank[k / 64] = j;
+                if (block[k] != 0) {
+                    this.presence[k / 64] |= 1l << k;
+                    this.words[j++] = block[k];
+                }
+            }
+        }
+
+        long get(int k) {
+            final long p = this.presence[k >>> 6];
+            final long bit = 1l << k;
+            if ((p & bit) == 0)
+                return 0;
+            return this.words[this.rank[k >>> 6]
+                              + Long.bitCount(p & (bit - 1))];
+        }
+
+        long[] unpack() {
+            long[] block = new long[this.length];
+            int j = 0;
+            for (int i = 0; i < this.presence.length; ++i) {
+                for (long p = this.presence[i]; p != 0; p &= p - 1) {
+                    block[i * 64 + Long.numberOfTrailingZeros(p)] = this.words[j++];
+                }
+            }
+            return block;
+        }
+    }
+
     private ArrayList<Integer> fromindextoId = new ArrayList<Integer>();
     //由index查到对应falt的真实ID
 
@@ -225,7 +1003,10 @@ public final class FlatBloomFilterIndex<E> implements BloomIndex<E> {
     //由真实ID查到对应flat的index
 
     ArrayList<long[]> buffer = new ArrayList<long[]>(0);
-    //Flat的集合
+    //Flat的集合，压缩的块为null
+
+    ArrayList<PackedBlock> packed = new ArrayList<PackedBlock>(0);
+    //压缩后的块，未压缩的块为null
 
     BitSet busy = new BitSet(0);
     //Array β，64位long型，记录那些位被占用
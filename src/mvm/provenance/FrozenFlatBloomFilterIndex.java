@@ -0,0 +1,389 @@
+package mvm.provenance;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.googlecode.javaewah.datastructure.BitSet;
+import com.skjegstad.utils.BloomFilter;
+
+/**
+ * A read-only copy of a flat index (see FlatBloomFilterIndex.freeze and
+ * NaiveBloomFilterIndex.freeze): the Bloom filters are transposed in
+ * blocks of 64 as in FlatBloomFilterIndex, but packed with no free slot,
+ * and all the blocks are stored one after the other in a single long
+ * array. Nothing changes after the construction, so any number of threads
+ * can search it at once.
+ *
+ * The mutators throw UnsupportedOperationException.
+ *
+ * @param <E>
+ */
+public final class FrozenFlatBloomFilterIndex<E> implements BloomIndex<E> {
+
+    // bit k of the filter in slot s is bit s % 64 of
+    // words[(s / 64) * nbBits + k]
+    private final long[] words;
+
+    // ID of the Bloom filter in each slot
+    private final int[] ids;
+
+    // length of the bitsets of the filters
+    private final int nbBits;
+
+    private final Hasher h;
+
+    private final Set<Integer> idSet;
+
+    /**
+     * Pack the given Bloom filters, in this order
+     *
+     * @param ids
+     *                IDs of the Bloom filters
+     * @param bits
+     *                bitsets of the Bloom filters, of the same length
+     * @param h
+     *                hasher of the Bloom filters, null if there is none
+     */
+    FrozenFlatBloomFilterIndex(int[] ids, BitSet[] bits, Hasher h) {
+        this.ids = ids;
+        this.h = h;
+        this.nbBits = bits.length == 0 ? 0 : bits[0].length();
+        this.words = new long[(ids.length + 63) / 64 * this.nbBits];
+        HashSet<Integer> set = new HashSet<Integer>();
+        for (int s = 0; s < ids.length; s++) {
+            if (bits[s].length() != this.nbBits)
+                throw new RuntimeException("BitSet has unexpected size");
+            final int offset = (s / 64) * this.nbBits;
+            final long mask = 1l << s;
+            for (int k = bits[s].nextSetBit(0); k >= 0; k = bits[s]
+                    .nextSetBit(k + 1)) {
+                this.words[offset + k] |= mask;
+            }
+            set.add(ids[s]);
+        }
+        this.idSet = Collections.unmodifiableSet(set);
+    }
+
+    @Override
+    public int deleteFromIndex(int id, InsDelUpdateStatistics stat) {
+        throw new UnsupportedOperationException(
+            "FrozenFlatBloomFilterIndex is read-only");
+    }
+
+    @Override
+    public int getBloomFilterSize() {
+        return this.nbBits;
+    }
+
+    @Override
+    public int getHeight() {
+        return 0;
+    }
+
+    @Override
+    public Set<Integer> getIDs() {
+        return this.idSet;
+    }
+
+    @Override
+    public boolean getIsRootAllOne() {
+        return false;
+    }
+
+    @Override
+    public int getNbChildrenRoot() {
+        return 0;// no root
+    }
+
+    @Override
+    public int getSize() {
+        return this.ids.length;
+    }
+
+    @Override
+    public void insertBloomFilter(BloomFilter<E> bf,
+                                  InsDelUpdateStatistics stat) {
+        throw new UnsupportedOperationException(
+            "FrozenFlatBloomFilterIndex is read-only");
+    }
+
+    @Override
+    public List<Integer> search(E o, SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (this.ids.length == 0) {
+            return answer;
+        }
+        final int[] positions = h.hashAll(o);
+        final int nbBlocks = (this.ids.length + 63) / 64;
+        for (int b = 0; b < nbBlocks; ++b) {
+            addIds(b, match(b, positions, slots(b)), answer);
+        }
+        return answer;
+    }
+
+    /**
+     * A frozen index does not map the IDs to the slots, so the matching
+     * filters are checked against allowed during the search
+     */
+    @Override
+    public List<Integer> search(E o, IdSet allowed, SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (this.ids.length == 0 || allowed.isEmpty()) {
+            return answer;
+        }
+        final int[] positions = h.hashAll(o);
+        final int nbBlocks = (this.ids.length + 63) / 64;
+        for (int b = 0; b < nbBlocks; ++b) {
+            for (long w = match(b, positions, slots(b)); w != 0; w &= w - 1) {
+                final int id = this.ids[b * 64 + Long.numberOfTrailingZeros(w)];
+                if (allowed.contains(id)) {
+                    answer.add(id);
+                }
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * The blocks are searched one at a time, as the IDs are pulled
+     */
+    @Override
+    public IntIterator searchIterator(E o, SearchStatistics stat) {
+        final int[] positions = this.ids.length == 0 ? null : h.hashAll(o);
+        final int nbBlocks = (this.ids.length + 63) / 64;
+        return new IntIterator() {
+            // next block to search
+            private int b = 0;
+
+            // the slots of block b - 1 not returned yet
+            private long w = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (this.w == 0 && this.b < nbBlocks) {
+                    this.w = match(this.b, positions, slots(this.b));
+                    this.b++;
+                }
+                return this.w != 0;
+            }
+
+            @Override
+            public int next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final int slot = (this.b - 1) * 64
+                                 + Long.numberOfTrailingZeros(this.w);
+                this.w &= this.w - 1;
+                return FrozenFlatBloomFilterIndex.this.ids[slot];
+            }
+        };
+    }
+
+    /**
+     * The cursor is the number of the next block to search
+     */
+    @Override
+    public PartialResult search(E o, long deadline, int[] cursor,
+                                SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (this.ids.length == 0) {
+            return new PartialResult(answer, null);
+        }
+        final int[] positions = h.hashAll(o);
+        final int nbBlocks = (this.ids.length + 63) / 64;
+        int steps = 0;
+        for (int b = cursor == null ? 0 : cursor[0]; b < nbBlocks; ++b) {
+            if (PartialResult.isLate(++steps, deadline)) {
+                return new PartialResult(answer, new int[] { b });
+            }
+            addIds(b, match(b, positions, slots(b)), answer);
+        }
+        return new PartialResult(answer, null);
+    }
+
+    @Override
+    public IdSet searchIds(E o, SearchStatistics stat) {
+        IdSet ids = new IdSet();
+        if (this.ids.length == 0) {
+            return ids;
+        }
+        final int[] positions = h.hashAll(o);
+        final int nbBlocks = (this.ids.length + 63) / 64;
+        for (int b = 0; b < nbBlocks; ++b) {
+            for (long w = match(b, positions, slots(b)); w != 0; w &= w - 1) {
+                ids.add(this.ids[b * 64 + Long.numberOfTrailingZeros(w)]);
+            }
+        }
+        ids.compress();
+        return ids;
+    }
+
+    @Override
+    public int count(E o, SearchStatistics stat) {
+        if (this.ids.length == 0) {
+            return 0;
+        }
+        final int[] positions = h.hashAll(o);
+        final int nbBlocks = (this.ids.length + 63) / 64;
+        int count = 0;
+        for (int b = 0; b < nbBlocks; ++b) {
+            count += Long.bitCount(match(b, positions, slots(b)));
+        }
+        return count;
+    }
+
+    @Override
+    public List<Integer> searchLimit(E o, int limit, SearchStatistics stat) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Bad limit: " + limit);
+        }
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (this.ids.length == 0 || limit == 0) {
+            return answer;
+        }
+        final int[] positions = h.hashAll(o);
+        final int nbBlocks = (this.ids.length + 63) / 64;
+        for (int b = 0; b < nbBlocks; ++b) {
+            for (long w = match(b, positions, slots(b)); w != 0; w &= w - 1) {
+                answer.add(this.ids[b * 64 + Long.numberOfTrailingZeros(w)]);
+                if (answer.size() == limit) {
+                    return answer;
+                }
+            }
+        }
+        return answer;
+    }
+
+    @Override
+    public int searchFirst(E o, SearchStatistics stat) {
+        final int slot = firstMatch(o);
+        return slot < 0 ? -1 : this.ids[slot];
+    }
+
+    @Override
+    public boolean anyMatch(E o, SearchStatistics stat) {
+        return firstMatch(o) >= 0;
+    }
+
+    /**
+     * Return the first slot whose filter may contain o, or -1
+     */
+    private int firstMatch(E o) {
+        if (this.ids.length == 0) {
+            return -1;
+        }
+        final int[] positions = h.hashAll(o);
+        final int nbBlocks = (this.ids.length + 63) / 64;
+        for (int b = 0; b < nbBlocks; ++b) {
+            final long w = match(b, positions, slots(b));
+            if (w != 0) {
+                return b * 64 + Long.numberOfTrailingZeros(w);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public List<Integer> searchAll(Collection<? extends E> keys,
+                                   SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (this.ids.length == 0 || keys.isEmpty()) {
+            return answer;
+        }
+        final int[][] positions = h.hashEach(keys);
+        final int nbBlocks = (this.ids.length + 63) / 64;
+        for (int b = 0; b < nbBlocks; ++b) {
+            long w = slots(b);
+            for (int[] keyPositions : positions) {
+                w = match(b, keyPositions, w);
+                if (w == 0) {
+                    break;
+                }
+            }
+            addIds(b, w, answer);
+        }
+        return answer;
+    }
+
+    @Override
+    public List<Integer> searchAny(Collection<? extends E> keys,
+                                   SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (this.ids.length == 0 || keys.isEmpty()) {
+            return answer;
+        }
+        final int[][] positions = h.hashEach(keys);
+        final int nbBlocks = (this.ids.length + 63) / 64;
+        for (int b = 0; b < nbBlocks; ++b) {
+            final long slots = slots(b);
+            long w = 0;
+            for (int[] keyPositions : positions) {
+                w |= match(b, keyPositions, slots);
+            }
+            addIds(b, w, answer);
+        }
+        return answer;
+    }
+
+    /**
+     * Return the slots of block b, the last block may not be full
+     */
+    private long slots(int b) {
+        return b == (this.ids.length - 1) / 64 && this.ids.length % 64 != 0 ? (1l << this.ids.length) - 1
+               : ~0l;
+    }
+
+    /**
+     * Return the slots of block b whose filters have all the given bits,
+     * among the slots of w
+     */
+    private long match(int b, int[] positions, long w) {
+        final int offset = b * this.nbBits;
+        for (int position : positions) {
+            w &= this.words[offset + position];
+        }
+        return w;
+    }
+
+    private void addIds(int b, long w, List<Integer> answer) {
+        while (w != 0) {
+            answer.add(this.ids[b * 64 + Long.numberOfTrailingZeros(w)]);
+            w &= w - 1;
+        }
+    }
+
+    @Override
+    public int addElement(int id, E element, InsDelUpdateStatistics stat) {
+        throw new UnsupportedOperationException(
+            "FrozenFlatBloomFilterIndex is read-only");
+    }
+
+    @Override
+    public int addElements(int id, Collection<? extends E> elements,
+                           InsDelUpdateStatistics stat) {
+        throw new UnsupportedOperationException(
+            "FrozenFlatBloomFilterIndex is read-only");
+    }
+
+    @Override
+    public int updateIndex(BloomFilter<E> newBloomFilter,
+                           InsDelUpdateStatistics stat) {
+        throw new UnsupportedOperationException(
+            "FrozenFlatBloomFilterIndex is read-only");
+    }
+
+    /**
+     * Already frozen, return this index
+     */
+    @Override
+    public FrozenFlatBloomFilterIndex<E> freeze() {
+        return this;
+    }
+
+}
@@ -0,0 +1,591 @@
+package mvm.provenance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.skjegstad.utils.BloomFilter;
+
+/**
+ * A read-only copy of a hybrid index (see HybridBloomFilterIndex.freeze):
+ * the nodes are numbered in breadth-first order, their union filters are
+ * stored one after the other in a single long array, and so are the leaf
+ * blocks. The children of a node have consecutive numbers, so a search goes
+ * down the tree one level at a time, reading each level from left to right.
+ * Nothing changes after the construction, so any number of threads can
+ * search it at once.
+ *
+ * The mutators throw UnsupportedOperationException.
+ *
+ * @param <E>
+ */
+public final class FrozenHybridBloomFilterIndex<E> implements BloomIndex<E> {
+
+    // number of the first child of each node, the root is node 0
+    private final int[] firstChild;
+
+    // number of children of each node, 0 for the leaf blocks
+    private final int[] nbChildren;
+
+    // number of each leaf block among the leaf blocks, -1 for the other
+    // nodes
+    private final int[] blockNumber;
+
+    // the union filter of node i is words nbWords * i to nbWords * (i + 1)
+    private final long[] unionWords;
+
+    // bit k of the filter in slot s of block b is bit s % 64 of
+    // blockWords[(b * nbBits + k) * wordsPerBlock + s / 64], its ID is
+    // ids[b * 64 * wordsPerBlock + s]
+    private final long[] blockWords;
+    private final long[] busy;
+    private final int[] ids;
+
+    private final int wordsPerBlock;
+    private final int nbBits;
+    private final int bloomFilterSize;
+    private final int height;
+    private final int maxLevelWidth;
+
+    private final Hasher h;
+
+    private final Set<Integer> idSet;
+
+    /**
+     * Called by HybridBloomFilterIndex.freeze
+     */
+    FrozenHybridBloomFilterIndex(int[] firstChild, int[] nbChildren,
+                                 int[] blockNumber, long[] unionWords, long[] blockWords,
+                                 long[] busy, int[] ids, int wordsPerBlock, int nbBits,
+                                 int bloomFilterSize, int height, Hasher h) {
+        this.firstChild = firstChild;
+        this.nbChildren = nbChildren;
+        this.blockNumber = blockNumber;
+        this.unionWords = unionWords;
+        this.blockWords = blockWords;
+        this.busy = busy;
+        this.ids = ids;
+        this.wordsPerBlock = wordsPerBlock;
+        this.nbBits = nbBits;
+        this.bloomFilterSize = bloomFilterSize;
+        this.height = height;
+        this.h = h;
+
+        HashSet<Integer> set = new HashSet<Integer>();
+        for (int w = 0; w < busy.length; w++) {
+            for (long x = busy[w]; x != 0; x &= x - 1) {
+                set.add(ids[w * 64 + Long.numberOfTrailingZeros(x)]);
+            }
+        }
+        this.idSet = Collections.unmodifiableSet(set);
+
+        // the nodes of a level follow the nodes of the level above
+        int width = 0;
+        for (int first = 0, end = Math.min(1, firstChild.length); first < end;) {
+            width = Math.max(width, end - first);
+            int next = end;
+            for (int node = first; node < end; node++) {
+                next = Math.max(next, firstChild[node] + nbChildren[node]);
+            }
+            first = end;
+            end = next;
+        }
+        this.maxLevelWidth = width;
+    }
+
+    @Override
+    public int deleteFromIndex(int id, InsDelUpdateStatistics stat) {
+        throw new UnsupportedOperationException(
+            "FrozenHybridBloomFilterIndex is read-only");
+    }
+
+    @Override
+    public int getBloomFilterSize() {
+        return this.bloomFilterSize;
+    }
+
+    /**
+     * Return the number of levels of union filters, the leaf blocks being
+     * level 1
+     */
+    @Override
+    public int getHeight() {
+        return this.height;
+    }
+
+    @Override
+    public Set<Integer> getIDs() {
+        return this.idSet;
+    }
+
+    @Override
+    public boolean getIsRootAllOne() {
+        if (this.firstChild.length == 0) {
+            return false;
+        }
+        int cardinality = 0;
+        for (int i = 0; i < this.nbBits / 64; i++) {
+            cardinality += Long.bitCount(this.unionWords[i]);
+        }
+        return cardinality == this.bloomFilterSize;
+    }
+
+    /**
+     * Return the number of children of the root, or of filters if the root
+     * is a leaf block
+     */
+    @Override
+    public int getNbChildrenRoot() {
+        if (this.firstChild.length == 0) {
+            return 0;
+        }
+        if (this.blockNumber[0] < 0) {
+            return this.nbChildren[0];
+        }
+        int count = 0;
+        for (int w = 0; w < this.wordsPerBlock; w++) {
+            count += Long.bitCount(this.busy[w]);
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of nodes (with a union filter) in this index,
+     * including the leaf blocks
+     */
+    @Override
+    public int getSize() {
+        return this.firstChild.length;
+    }
+
+    @Override
+    public void insertBloomFilter(BloomFilter<E> bf,
+                                  InsDelUpdateStatistics stat) {
+        throw new UnsupportedOperationException(
+            "FrozenHybridBloomFilterIndex is read-only");
+    }
+
+    @Override
+    public List<Integer> search(E o, SearchStatistics stat) {
+        if (this.firstChild.length == 0) {
+            return new ArrayList<Integer>();
+        }
+        return search(new int[][] { h.hashAll(o) }, stat);
+    }
+
+    /**
+     * A frozen index does not map the IDs to the slots, so the matching
+     * filters are checked against allowed after the search
+     */
+    @Override
+    public List<Integer> search(E o, IdSet allowed, SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (allowed.isEmpty()) {
+            return answer;
+        }
+        for (int id : search(o, stat)) {
+            if (allowed.contains(id)) {
+                answer.add(id);
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * The tree is searched depth first, going down to the next matching
+     * block as the IDs are pulled, and reading the block a word at a time
+     */
+    @Override
+    public IntIterator searchIterator(E o, final SearchStatistics stat) {
+        final int[] positions = this.firstChild.length == 0 ? null : h
+                                .hashAll(o);
+        final int nbWords = this.nbBits / 64;
+        return new IntIterator() {
+            // the nodes left to check, the next one on top
+            private int[] stack = new int[] { 0 };
+            private int size = firstChild.length == 0 ? 0 : 1;
+
+            // the block being read (-1 if none), its next word, and the
+            // matching slots of the word before not returned yet
+            private int block = -1;
+            private int w = 0;
+            private long word = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (this.word == 0) {
+                    if (this.block >= 0 && this.w < wordsPerBlock) {
+                        final int offset = this.block * nbBits * wordsPerBlock;
+                        this.word = busy[this.block * wordsPerBlock + this.w];
+                        for (int position : positions) {
+                            this.word &= blockWords[offset + position
+                                                    * wordsPerBlock + this.w];
+                        }
+                        this.w++;
+                        continue;
+                    }
+                    this.block = -1;
+                    if (this.size == 0) {
+                        return false;
+                    }
+                    final int node = this.stack[--this.size];
+                    stat.nbBFChecks++;
+                    if (!matches(node * nbWords, positions)) {
+                        continue;
+                    }
+                    if (blockNumber[node] >= 0) {
+                        this.block = blockNumber[node];
+                        this.w = 0;
+                        continue;
+                    }
+                    if (this.size + nbChildren[node] > this.stack.length) {
+                        this.stack = Arrays.copyOf(this.stack, 2 * (this.size
+                                                   + nbChildren[node]));
+                    }
+                    // the first child on top
+                    for (int child = firstChild[node] + nbChildren[node]
+                                     - 1; child >= firstChild[node]; child--) {
+                        this.stack[this.size++] = child;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public int next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final int slot = (this.block * wordsPerBlock + this.w - 1) * 64
+                                 + Long.numberOfTrailingZeros(this.word);
+                this.word &= this.word - 1;
+                return ids[slot];
+            }
+        };
+    }
+
+    /**
+     * The tree is searched depth first, with a stack of the nodes left to
+     * check, which is the cursor. A block is searched in one step.
+     */
+    @Override
+    public PartialResult search(E o, long deadline, int[] cursor,
+                                SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (this.firstChild.length == 0) {
+            return new PartialResult(answer, null);
+        }
+        final int[][] keys = new int[][] { h.hashAll(o) };
+        final int nbWords = this.nbBits / 64;
+        int[] stack = cursor == null ? new int[] { 0 } : cursor.clone();
+        int size = stack.length;
+        int steps = 0;
+        while (size > 0) {
+            if (PartialResult.isLate(++steps, deadline)) {
+                return new PartialResult(answer, Arrays.copyOf(stack, size));
+            }
+            final int node = stack[--size];
+            stat.nbBFChecks++;
+            if (!matches(node * nbWords, keys[0])) {
+                continue;
+            }
+            if (this.blockNumber[node] >= 0) {
+                searchBlock(node * nbWords, this.blockNumber[node], keys,
+                            answer);
+                continue;
+            }
+            if (size + this.nbChildren[node] > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * (size + this.nbChildren[node]));
+            }
+            // the first child on top
+            for (int child = this.firstChild[node] + this.nbChildren[node]
+                             - 1; child >= this.firstChild[node]; child--) {
+                stack[size++] = child;
+            }
+        }
+        return new PartialResult(answer, null);
+    }
+
+    @Override
+    public IdSet searchIds(E o, SearchStatistics stat) {
+        IdSet ids = new IdSet();
+        if (this.firstChild.length > 0) {
+            findIds(0, h.hashAll(o), ids, stat);
+        }
+        ids.compress();
+        return ids;
+    }
+
+    private void findIds(int node, int[] positions, IdSet ids,
+                         SearchStatistics stat) {
+        stat.nbBFChecks++;
+        if (!matches(node * (this.nbBits / 64), positions)) {
+            return;
+        }
+        final int block = this.blockNumber[node];
+        if (block < 0) {
+            final int end = this.firstChild[node] + this.nbChildren[node];
+            for (int child = this.firstChild[node]; child < end; child++) {
+                findIds(child, positions, ids, stat);
+            }
+            return;
+        }
+        final int offset = block * this.nbBits * this.wordsPerBlock;
+        for (int w = 0; w < this.wordsPerBlock; ++w) {
+            long word = this.busy[block * this.wordsPerBlock + w];
+            for (int position : positions) {
+                word &= this.blockWords[offset + position * this.wordsPerBlock
+                                        + w];
+            }
+            for (; word != 0; word &= word - 1) {
+                ids.add(this.ids[(block * this.wordsPerBlock + w) * 64
+                                 + Long.numberOfTrailingZeros(word)]);
+            }
+        }
+    }
+
+    @Override
+    public int count(E o, SearchStatistics stat) {
+        if (this.firstChild.length == 0) {
+            return 0;
+        }
+        return countMatches(0, h.hashAll(o), stat);
+    }
+
+    private int countMatches(int node, int[] positions, SearchStatistics stat) {
+        stat.nbBFChecks++;
+        if (!matches(node * (this.nbBits / 64), positions)) {
+            return 0;
+        }
+        final int block = this.blockNumber[node];
+        int count = 0;
+        if (block < 0) {
+            final int end = this.firstChild[node] + this.nbChildren[node];
+            for (int child = this.firstChild[node]; child < end; child++) {
+                count += countMatches(child, positions, stat);
+            }
+            return count;
+        }
+        final int offset = block * this.nbBits * this.wordsPerBlock;
+        for (int w = 0; w < this.wordsPerBlock; ++w) {
+            long word = this.busy[block * this.wordsPerBlock + w];
+            for (int position : positions) {
+                word &= this.blockWords[offset + position * this.wordsPerBlock
+                                        + w];
+            }
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Same as search, going down the tree depth first to stop once limit
+     * IDs are found
+     */
+    @Override
+    public List<Integer> searchLimit(E o, int limit, SearchStatistics stat) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Bad limit: " + limit);
+        }
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (this.firstChild.length > 0 && limit > 0) {
+            findMatches(0, h.hashAll(o), limit, answer, stat);
+        }
+        return answer;
+    }
+
+    @Override
+    public int searchFirst(E o, SearchStatistics stat) {
+        List<Integer> answer = searchLimit(o, 1, stat);
+        return answer.isEmpty() ? -1 : answer.get(0);
+    }
+
+    @Override
+    public boolean anyMatch(E o, SearchStatistics stat) {
+        return !searchLimit(o, 1, stat).isEmpty();
+    }
+
+    private void findMatches(int node, int[] positions, int limit,
+                             List<Integer> answer, SearchStatistics stat) {
+        stat.nbBFChecks++;
+        if (!matches(node * (this.nbBits / 64), positions)) {
+            return;
+        }
+        final int block = this.blockNumber[node];
+        if (block < 0) {
+            final int end = this.firstChild[node] + this.nbChildren[node];
+            for (int child = this.firstChild[node]; child < end
+                    && answer.size() < limit; child++) {
+                findMatches(child, positions, limit, answer, stat);
+            }
+            return;
+        }
+        final int offset = block * this.nbBits * this.wordsPerBlock;
+        for (int w = 0; w < this.wordsPerBlock; ++w) {
+            long word = this.busy[block * this.wordsPerBlock + w];
+            for (int position : positions) {
+                word &= this.blockWords[offset + position * this.wordsPerBlock
+                                        + w];
+            }
+            for (; word != 0; word &= word - 1) {
+                answer.add(this.ids[(block * this.wordsPerBlock + w) * 64
+                                    + Long.numberOfTrailingZeros(word)]);
+                if (answer.size() == limit) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<Integer> searchAll(Collection<? extends E> keys,
+                                   SearchStatistics stat) {
+        if (this.firstChild.length == 0 || keys.isEmpty()) {
+            return new ArrayList<Integer>();
+        }
+        // a filter has all the keys if it has the bits of all the keys
+        return search(new int[][] { h.hashAll(keys) }, stat);
+    }
+
+    @Override
+    public List<Integer> searchAny(Collection<? extends E> keys,
+                                   SearchStatistics stat) {
+        if (this.firstChild.length == 0 || keys.isEmpty()) {
+            return new ArrayList<Integer>();
+        }
+        return search(h.hashEach(keys), stat);
+    }
+
+    /**
+     * Return the IDs of the filters having all the bits of at least one of
+     * the keys, the nodes matching none of the keys being skipped with
+     * their subtree
+     */
+    private List<Integer> search(int[][] keys, SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        final int nbWords = this.nbBits / 64;
+
+        // the matching nodes of the current level, in increasing order
+        int[] level = new int[this.maxLevelWidth];
+        int[] nextLevel = new int[this.maxLevelWidth];
+        int levelSize = 1;
+        level[0] = 0;
+        while (levelSize > 0) {
+            int nextLevelSize = 0;
+            for (int i = 0; i < levelSize; i++) {
+                final int node = level[i];
+                stat.nbBFChecks++;
+                if (!matchesAny(node * nbWords, keys)) {
+                    continue;
+                }
+                if (this.blockNumber[node] >= 0) {
+                    searchBlock(node * nbWords, this.blockNumber[node], keys,
+                                answer);
+                    continue;
+                }
+                final int end = this.firstChild[node] + this.nbChildren[node];
+                for (int child = this.firstChild[node]; child < end; child++) {
+                    nextLevel[nextLevelSize++] = child;
+                }
+            }
+            int[] tmp = level;
+            level = nextLevel;
+            nextLevel = tmp;
+            levelSize = nextLevelSize;
+        }
+        return answer;
+    }
+
+    /**
+     * Return true if the union filter at the given offset has all the given
+     * bits
+     */
+    private boolean matches(int offset, int[] positions) {
+        for (int position : positions) {
+            if ((this.unionWords[offset + (position >>> 6)] & (1l << position)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return true if the union filter at the given offset has all the bits
+     * of one of the keys
+     */
+    private boolean matchesAny(int offset, int[][] keys) {
+        for (int[] positions : keys) {
+            if (matches(offset, positions)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add the IDs of the filters of the block having all the bits of one of
+     * the keys matching its union filter (at the given offset)
+     */
+    private void searchBlock(int offset, int block, int[][] keys,
+                             List<Integer> answer) {
+        final int blockOffset = block * this.nbBits * this.wordsPerBlock;
+        final int[][] matching = new int[keys.length][];
+        int nbMatching = 0;
+        for (int[] positions : keys) {
+            if (matches(offset, positions)) {
+                matching[nbMatching++] = positions;
+            }
+        }
+        for (int w = 0; w < this.wordsPerBlock; ++w) {
+            long word = 0;
+            for (int i = 0; i < nbMatching; i++) {
+                final int[] positions = matching[i];
+                long keyWord = this.busy[block * this.wordsPerBlock + w];
+                for (int position : positions) {
+                    keyWord &= this.blockWords[blockOffset + position
+                                               * this.wordsPerBlock + w];
+                }
+                word |= keyWord;
+            }
+            while (word != 0) {
+                answer.add(this.ids[(block * this.wordsPerBlock + w) * 64
+                                    + Long.numberOfTrailingZeros(word)]);
+                word &= word - 1;
+            }
+        }
+    }
+
+    @Override
+    public int addElement(int id, E element, InsDelUpdateStatistics stat) {
+        throw new UnsupportedOperationException(
+            "FrozenHybridBloomFilterIndex is read-only");
+    }
+
+    @Override
+    public int addElements(int id, Collection<? extends E> elements,
+                           InsDelUpdateStatistics stat) {
+        throw new UnsupportedOperationException(
+            "FrozenHybridBloomFilterIndex is read-only");
+    }
+
+    @Override
+    public int updateIndex(BloomFilter<E> newBloomFilter,
+                           InsDelUpdateStatistics stat) {
+        throw new UnsupportedOperationException(
+            "FrozenHybridBloomFilterIndex is read-only");
+    }
+
+    /**
+     * Already frozen, return this index
+     */
+    @Override
+    public FrozenHybridBloomFilterIndex<E> freeze() {
+        return this;
+    }
+
+}
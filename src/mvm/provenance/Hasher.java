@@ -1,5 +1,6 @@
 package mvm.provenance;
 
+import java.util.Collection;
 import java.util.Random;
 
 /**
@@ -26,6 +27,46 @@ public class Hasher {
         return (((o.hashCode() * randomkeys[whichhash])) & Integer.MAX_VALUE) % maxval;
     }
 
+    /**
+     * Return the positions of an object for all the hash functions
+     */
+    public int[] hashAll(Object o) {
+        final int[] positions = new int[randomkeys.length];
+        for (int l = 0; l < positions.length; ++l) {
+            positions[l] = hash(o, l);
+        }
+        return positions;
+    }
+
+    /**
+     * Return the positions of several objects for all the hash functions,
+     * one object after the other
+     */
+    public int[] hashAll(Collection<?> keys) {
+        final int k = randomkeys.length;
+        final int[] positions = new int[keys.size() * k];
+        int i = 0;
+        for (Object o : keys) {
+            for (int l = 0; l < k; ++l) {
+                positions[i++] = hash(o, l);
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Return the positions of several objects for all the hash functions,
+     * one array per object
+     */
+    public int[][] hashEach(Collection<?> keys) {
+        final int[][] positions = new int[keys.size()][];
+        int i = 0;
+        for (Object o : keys) {
+            positions[i++] = hashAll(o);
+        }
+        return positions;
+    }
+
     /**
      * Should be called as soon as we know how many hash functions are
      * needed. If called again with a different number of hash functions,
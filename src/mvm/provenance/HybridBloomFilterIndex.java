@@ -0,0 +1,1207 @@
+package mvm.provenance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.googlecode.javaewah.datastructure.BitSet;
+import com.skjegstad.utils.BloomFilter;
+
+/**
+ * A hybrid of Bloofi (see BloomFilterIndex) and Bloofi2 (see
+ * FlatBloomFilterIndex): the upper levels are a tree of union filters, as
+ * in Bloofi, so that searches prune whole subtrees, and the filters
+ * themselves are stored in leaf blocks of 64 * blockWords filters,
+ * transposed as in Bloofi2, so that a block is checked with a few word
+ * operations per hash function.
+ *
+ * New filters go to the block whose union is closest (Hamming distance) to
+ * them, found by going down the tree. Full blocks and nodes with more than
+ * 2 * order children are split in two by distance. Deletes merge a block
+ * holding less than a quarter of its capacity, or a node with less than
+ * order children, into a neighbour that has room for it.
+ *
+ * @param <E>
+ */
+public final class HybridBloomFilterIndex<E> implements BloomIndex<E> {
+
+    // a node has at most 2 * order children
+    private final int order;
+
+    // a leaf block holds 64 * blockWords Bloom filters
+    private final int blockWords;
+
+    // null until the first insert
+    private HNode root;
+
+    private Hashtable<Integer, HNode> idMap = new Hashtable<Integer, HNode>();
+
+    // size of the indexed Bloom filters, and length of their bitsets
+    private int filterSize;
+    private int nbBits;
+
+    Hasher h;
+
+    /**
+     * Constructs an empty index with leaf blocks of 64 Bloom filters
+     */
+    public HybridBloomFilterIndex(int order) {
+        this(order, 1);
+    }
+
+    /**
+     * Constructs an empty index with leaf blocks of 64 * blockWords Bloom
+     * filters
+     */
+    public HybridBloomFilterIndex(int order, int blockWords) {
+        if (order < 1)
+            throw new IllegalArgumentException("The order should be positive");
+        if (blockWords < 1)
+            throw new IllegalArgumentException(
+                "A block holds at least one word of filters");
+        this.order = order;
+        this.blockWords = blockWords;
+    }
+
+    /**
+     * Return the number of Bloom filters a leaf block can hold
+     */
+    public int getBlockCapacity() {
+        return 64 * this.blockWords;
+    }
+
+    @Override
+    public int deleteFromIndex(int id, InsDelUpdateStatistics stat) {
+        HNode block = idMap.remove(id);
+        if (block == null) {
+            return -1;
+        }
+        block.clearSlot(block.slotOf(id));
+        stat.nbBFNodesAccessed++;
+
+        if (block.count == 0) {
+            removeNode(block, stat);
+        } else {
+            HNode neighbour = mergeableNeighbour(block,
+                                                 getBlockCapacity() / 4, getBlockCapacity());
+            if (neighbour != null) {
+                for (int s = block.nextSlot(0); s >= 0; s = block.nextSlot(s + 1)) {
+                    neighbour.putSlot(block.ids[s], block.getColumn(s, nbBits));
+                    idMap.put(block.ids[s], neighbour);
+                }
+                stat.nbMerges++;
+                neighbour.recomputeValue(nbBits, stat);
+                removeNode(block, stat);
+            } else {
+                recomputeValueToTheRoot(block, stat);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Remove an empty node (or a node whose content moved to a neighbour)
+     * from its parent, and fix the ancestors: their values are recomputed,
+     * the nodes with too few children are merged into a neighbour, and the
+     * root is replaced by its child while it has a single child.
+     */
+    private void removeNode(HNode node, InsDelUpdateStatistics stat) {
+        HNode parent = node.parent;
+        if (parent == null) {
+            this.root = null;
+            return;
+        }
+        parent.children.remove(node);
+        stat.nbBFNodesAccessed += 2;
+        if (parent.children.isEmpty()) {
+            removeNode(parent, stat);
+            return;
+        }
+        HNode neighbour = mergeableNeighbour(parent, this.order,
+                                             2 * this.order);
+        if (neighbour != null) {
+            for (HNode child : parent.children) {
+                neighbour.children.add(child);
+                child.parent = neighbour;
+            }
+            parent.children.clear();
+            stat.nbMerges++;
+            neighbour.recomputeValue(nbBits, stat);
+            removeNode(parent, stat);
+            return;
+        }
+        recomputeValueToTheRoot(parent, stat);
+        while (!this.root.isBlock() && this.root.children.size() == 1) {
+            this.root = this.root.children.get(0);
+            this.root.parent = null;
+            stat.nbBFNodesAccessed++;
+        }
+    }
+
+    /**
+     * Return a sibling next to the given node that can absorb its content,
+     * if the node holds less than min filters or children and both hold at
+     * most max together, or null
+     */
+    private static HNode mergeableNeighbour(HNode node, int min, int max) {
+        if (node.parent == null || node.size() >= min) {
+            return null;
+        }
+        ArrayList<HNode> siblings = node.parent.children;
+        int index = siblings.indexOf(node);
+        HNode best = null;
+        if (index > 0) {
+            best = siblings.get(index - 1);
+        }
+        if (index + 1 < siblings.size()
+                && (best == null || siblings.get(index + 1).size() < best
+                    .size())) {
+            best = siblings.get(index + 1);
+        }
+        if (best == null || best.size() + node.size() > max) {
+            return null;
+        }
+        return best;
+    }
+
+    /**
+     * Return the size - number of bits in a Bloom Filter indexed by this
+     * index
+     */
+    @Override
+    public int getBloomFilterSize() {
+        return this.filterSize;
+    }
+
+    /**
+     * Return the number of levels of union filters, the leaf blocks being
+     * level 1
+     */
+    @Override
+    public int getHeight() {
+        int height = 0;
+        for (HNode node = this.root; node != null; node = node.isBlock() ? null
+                : node.children.get(0)) {
+            height++;
+        }
+        return height;
+    }
+
+    @Override
+    public Set<Integer> getIDs() {
+        return idMap.keySet();
+    }
+
+    @Override
+    public boolean getIsRootAllOne() {
+        return this.root != null
+               && this.root.value.cardinality() == this.filterSize;
+    }
+
+    /**
+     * Return the number of children of the root, or of filters if the root
+     * is a leaf block
+     */
+    @Override
+    public int getNbChildrenRoot() {
+        return this.root == null ? 0 : this.root.size();
+    }
+
+    /**
+     * Return the number of nodes (with a union filter) in this index,
+     * including the leaf blocks
+     */
+    @Override
+    public int getSize() {
+        return this.root == null ? 0 : this.root.getTreeSize();
+    }
+
+    @Override
+    public void insertBloomFilter(BloomFilter<E> bf,
+                                  InsDelUpdateStatistics stat) {
+        checkFilter(bf);
+        final BitSet bits = bf.getBitSet();
+        if (this.root == null) {
+            this.root = HNode.newBlock(this.nbBits, this.blockWords);
+        }
+        HNode block = findClosestBlock(bits, stat);
+        if (block.count == getBlockCapacity()) {
+            block = splitBlock(block, bf.getID(), bits, stat);
+        } else {
+            block.putSlot(bf.getID(), bits);
+            idMap.put(bf.getID(), block);
+        }
+        stat.nbBFNodesAccessed++;
+        orToTheRoot(block, bits, stat);
+    }
+
+    private void checkFilter(BloomFilter<E> bf) {
+        if (h != null) {
+            if (bf.getHasher() != h)
+                throw new RuntimeException(
+                    "You are using more than one hasher");
+            if (bf.getBitSet().length() != this.nbBits)
+                throw new RuntimeException("BitSet has unexpected size");
+        } else {
+            h = bf.getHasher();
+            this.filterSize = bf.size();
+            this.nbBits = bf.getBitSet().length();
+        }
+    }
+
+    /**
+     * Go down the tree to the leaf block closest to the given bits
+     */
+    private HNode findClosestBlock(BitSet bits, InsDelUpdateStatistics stat) {
+        HNode current = this.root;
+        while (!current.isBlock()) {
+            HNode closest = null;
+            int minDistance = Integer.MAX_VALUE;
+            for (HNode child : current.children) {
+                // give up on the distance once it cannot beat the minimum
+                int distance = child.value.xorcardinality(bits, minDistance);
+                stat.nbBFAccessed += 2;
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    closest = child;
+                }
+            }
+            stat.nbBFNodesAccessed++;
+            current = closest;
+        }
+        return current;
+    }
+
+    /**
+     * Split a full block in two, the new filter included, and return the
+     * block holding the new filter
+     */
+    private HNode splitBlock(HNode block, int id, BitSet bits,
+                             InsDelUpdateStatistics stat) {
+        final int n = getBlockCapacity() + 1;
+        BitSet[] columns = Arrays.copyOf(block.getColumns(nbBits), n);
+        int[] ids = Arrays.copyOf(block.ids, n);
+        columns[n - 1] = bits;
+        ids[n - 1] = id;
+        int[] sorted = splitOrder(columns, n, stat);
+
+        block.clearBlock();
+        HNode sibling = HNode.newBlock(nbBits, blockWords);
+        HNode result = null;
+        for (int i = 0; i < n; i++) {
+            HNode target = i < n / 2 ? block : sibling;
+            target.putSlot(ids[sorted[i]], columns[sorted[i]]);
+            idMap.put(ids[sorted[i]], target);
+            if (sorted[i] == n - 1) {
+                result = target;
+            }
+        }
+        block.recomputeValue(nbBits, stat);
+        sibling.recomputeValue(nbBits, stat);
+        stat.nbSplits++;
+        insertIntoParent(block, sibling, stat);
+        return result;
+    }
+
+    /**
+     * Split a node with too many children in two
+     */
+    private void splitNode(HNode node, InsDelUpdateStatistics stat) {
+        final int n = node.children.size();
+        BitSet[] values = new BitSet[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = node.children.get(i).value;
+        }
+        int[] sorted = splitOrder(values, n, stat);
+
+        ArrayList<HNode> children = node.children;
+        node.children = new ArrayList<HNode>();
+        HNode sibling = HNode.newNode(nbBits);
+        for (int i = 0; i < n; i++) {
+            HNode target = i < n / 2 ? node : sibling;
+            HNode child = children.get(sorted[i]);
+            target.children.add(child);
+            child.parent = target;
+        }
+        node.recomputeValue(nbBits, stat);
+        sibling.recomputeValue(nbBits, stat);
+        stat.nbSplits++;
+        insertIntoParent(node, sibling, stat);
+    }
+
+    /**
+     * Insert the new sibling of a node that split next to it, creating a new
+     * root if needed
+     */
+    private void insertIntoParent(HNode node, HNode sibling,
+                                  InsDelUpdateStatistics stat) {
+        HNode parent = node.parent;
+        if (parent == null) {
+            HNode newRoot = HNode.newNode(nbBits);
+            newRoot.children.add(node);
+            newRoot.children.add(sibling);
+            node.parent = newRoot;
+            sibling.parent = newRoot;
+            newRoot.recomputeValue(nbBits, stat);
+            this.root = newRoot;
+            stat.nbBFNodesAccessed += 3;
+            return;
+        }
+        parent.children.add(parent.children.indexOf(node) + 1, sibling);
+        sibling.parent = parent;
+        stat.nbBFNodesAccessed += 2;
+        if (parent.children.size() > 2 * this.order) {
+            splitNode(parent, stat);
+        }
+    }
+
+    /**
+     * Order the given values so that the first half and the second half are
+     * two groups of close values: two far apart values are picked as seeds,
+     * and the values are sorted by how much closer they are to the first
+     * seed than to the second
+     */
+    private static int[] splitOrder(BitSet[] values, int n,
+                                    InsDelUpdateStatistics stat) {
+        int seed2 = farthest(values, n, 0);
+        int seed1 = farthest(values, n, seed2);
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            long difference = values[i].xorcardinality(values[seed1])
+                              - values[i].xorcardinality(values[seed2]);
+            keys[i] = (difference << 32) | i;
+        }
+        stat.nbBFAccessed += 6 * n;
+        Arrays.sort(keys);
+        int[] sorted = new int[n];
+        for (int i = 0; i < n; i++) {
+            sorted[i] = (int) keys[i];
+        }
+        return sorted;
+    }
+
+    private static int farthest(BitSet[] values, int n, int from) {
+        int result = from;
+        int maxDistance = -1;
+        for (int i = 0; i < n; i++) {
+            int distance = values[i].xorcardinality(values[from]);
+            if (distance > maxDistance) {
+                maxDistance = distance;
+                result = i;
+            }
+        }
+        return result;
+    }
+
+    private void orToTheRoot(HNode node, BitSet bits,
+                             InsDelUpdateStatistics stat) {
+        for (; node != null; node = node.parent) {
+            node.value.or(bits);
+            stat.nbBFAccessed += 2;
+        }
+    }
+
+    private void setToTheRoot(HNode node, int position) {
+        for (; node != null; node = node.parent) {
+            node.value.set(position);
+        }
+    }
+
+    private void recomputeValueToTheRoot(HNode node,
+                                         InsDelUpdateStatistics stat) {
+        for (; node != null; node = node.parent) {
+            node.recomputeValue(nbBits, stat);
+        }
+    }
+
+    @Override
+    public List<Integer> search(E o, SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (this.root == null) {
+            return answer;
+        }
+        int[] positions = new int[h.getNumberOfHashFunctions()];
+        for (int l = 0; l < positions.length; ++l) {
+            positions[l] = h.hash(o, l);
+        }
+        findMatches(this.root, positions, answer, stat);
+        return answer;
+    }
+
+    /**
+     * Only the subtrees holding allowed filters are searched: the blocks of
+     * the allowed filters get a mask of their allowed slots, and their
+     * ancestors are marked, before going down the tree
+     */
+    @Override
+    public List<Integer> search(E o, IdSet allowed, SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (this.root == null) {
+            return answer;
+        }
+        // allowed slots of the blocks, null for the marked inner nodes
+        IdentityHashMap<HNode, long[]> marked = new IdentityHashMap<HNode, long[]>();
+        for (IntIterator it = allowed.iterator(); it.hasNext();) {
+            final int id = it.next();
+            final HNode block = idMap.get(id);
+            if (block == null) {
+                continue;
+            }
+            long[] mask = marked.get(block);
+            if (mask == null) {
+                mask = new long[blockWords];
+                marked.put(block, mask);
+                for (HNode node = block.parent; node != null
+                        && !marked.containsKey(node); node = node.parent) {
+                    marked.put(node, null);
+                }
+            }
+            final int slot = block.slotOf(id);
+            mask[slot / 64] |= 1l << slot;
+        }
+        if (!marked.isEmpty()) {
+            findMatches(this.root, h.hashAll(o), marked, answer, stat);
+        }
+        return answer;
+    }
+
+    /**
+     * The tree is searched depth first as in search, going down to the next
+     * matching block as the IDs are pulled, and reading the block a word at
+     * a time
+     */
+    @Override
+    public IntIterator searchIterator(E o, final SearchStatistics stat) {
+        final int[] positions = this.root == null ? null : h.hashAll(o);
+        // the inner nodes being visited, from the root down
+        final ArrayList<HNode> path = new ArrayList<HNode>();
+        HNode first = null;
+        if (this.root != null) {
+            stat.nbBFChecks++;
+            if (hasAll(this.root.value, positions)) {
+                if (this.root.isBlock()) {
+                    first = this.root;
+                } else {
+                    path.add(this.root);
+                }
+            }
+        }
+        final HNode firstBlock = first;
+        return new IntIterator() {
+            // the index of the next child to visit of each node of path
+            private int[] next = new int[8];
+
+            // the block being read, its next word, and the matching slots of
+            // the word before not returned yet
+            private HNode block = firstBlock;
+            private int w = 0;
+            private long word = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (this.word == 0) {
+                    if (this.block != null && this.w < blockWords) {
+                        this.word = this.block.busy[this.w];
+                        for (int position : positions) {
+                            this.word &= this.block.buffer[position * blockWords
+                                                           + this.w];
+                        }
+                        this.w++;
+                        continue;
+                    }
+                    this.block = null;
+                    if (path.isEmpty()) {
+                        return false;
+                    }
+                    final int d = path.size() - 1;
+                    final HNode node = path.get(d);
+                    if (this.next[d] >= node.children.size()) {
+                        path.remove(d);
+                        continue;
+                    }
+                    final HNode child = node.children.get(this.next[d]++);
+                    stat.nbBFChecks++;
+                    if (!hasAll(child.value, positions)) {
+                        continue;
+                    }
+                    if (child.isBlock()) {
+                        this.block = child;
+                        this.w = 0;
+                        continue;
+                    }
+                    path.add(child);
+                    if (d + 1 == this.next.length) {
+                        this.next = Arrays.copyOf(this.next, this.next.length * 2);
+                    }
+                    this.next[d + 1] = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public int next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final int slot = (this.w - 1) * 64
+                                 + Long.numberOfTrailingZeros(this.word);
+                this.word &= this.word - 1;
+                return this.block.ids[slot];
+            }
+        };
+    }
+
+    /**
+     * The tree is searched depth first as in search, keeping the inner
+     * nodes being visited from the root down; the cursor holds the index of
+     * the next child to visit of each of them, from which the nodes are
+     * found again when resuming. A block is searched in one step.
+     */
+    @Override
+    public PartialResult search(E o, long deadline, int[] cursor,
+                                SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (this.root == null) {
+            return new PartialResult(answer, null);
+        }
+        final int[] positions = h.hashAll(o);
+        if (this.root.isBlock()) {
+            findMatches(this.root, positions, answer, stat);
+            return new PartialResult(answer, null);
+        }
+        ArrayList<HNode> path = new ArrayList<HNode>();
+        int[] next;
+        if (cursor == null) {
+            stat.nbBFChecks++;
+            if (!hasAll(this.root.value, positions)) {
+                return new PartialResult(answer, null);
+            }
+            path.add(this.root);
+            next = new int[8];
+        } else {
+            next = Arrays.copyOf(cursor, Math.max(cursor.length, 8));
+            // the child being visited of each node is the one before next
+            for (HNode node = this.root; node != null;) {
+                path.add(node);
+                final int d = path.size() - 1;
+                node = d + 1 < cursor.length && !node.isBlock() && next[d] >= 1
+                       && next[d] <= node.children.size() ? node.children
+                       .get(next[d] - 1) : null;
+            }
+        }
+        int steps = 0;
+        while (!path.isEmpty()) {
+            final int d = path.size() - 1;
+            if (PartialResult.isLate(++steps, deadline)) {
+                return new PartialResult(answer, Arrays.copyOf(next, d + 1));
+            }
+            final HNode node = path.get(d);
+            if (node.isBlock() || next[d] >= node.children.size()) {
+                path.remove(d);
+                continue;
+            }
+            final HNode child = node.children.get(next[d]++);
+            if (child.isBlock()) {
+                findMatches(child, positions, answer, stat);
+                continue;
+            }
+            stat.nbBFChecks++;
+            if (!hasAll(child.value, positions)) {
+                continue;
+            }
+            path.add(child);
+            if (d + 1 == next.length) {
+                next = Arrays.copyOf(next, next.length * 2);
+            }
+            next[d + 1] = 0;
+        }
+        return new PartialResult(answer, null);
+    }
+
+    @Override
+    public IdSet searchIds(E o, SearchStatistics stat) {
+        IdSet ids = new IdSet();
+        if (this.root != null) {
+            findIds(this.root, h.hashAll(o), ids, stat);
+        }
+        ids.compress();
+        return ids;
+    }
+
+    @Override
+    public int count(E o, SearchStatistics stat) {
+        if (this.root == null) {
+            return 0;
+        }
+        return countMatches(this.root, h.hashAll(o), stat);
+    }
+
+    @Override
+    public List<Integer> searchLimit(E o, int limit, SearchStatistics stat) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Bad limit: " + limit);
+        }
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (this.root != null && limit > 0) {
+            findMatches(this.root, h.hashAll(o), limit, answer, stat);
+        }
+        return answer;
+    }
+
+    @Override
+    public int searchFirst(E o, SearchStatistics stat) {
+        List<Integer> answer = searchLimit(o, 1, stat);
+        return answer.isEmpty() ? -1 : answer.get(0);
+    }
+
+    @Override
+    public boolean anyMatch(E o, SearchStatistics stat) {
+        return !searchLimit(o, 1, stat).isEmpty();
+    }
+
+    @Override
+    public List<Integer> searchAll(Collection<? extends E> keys,
+                                   SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (this.root == null || keys.isEmpty()) {
+            return answer;
+        }
+        // a filter has all the keys if it has the bits of all the keys
+        findMatches(this.root, h.hashAll(keys), answer, stat);
+        return answer;
+    }
+
+    @Override
+    public List<Integer> searchAny(Collection<? extends E> keys,
+                                   SearchStatistics stat) {
+        ArrayList<Integer> answer = new ArrayList<Integer>();
+        if (this.root == null || keys.isEmpty()) {
+            return answer;
+        }
+        final int[][] positions = h.hashEach(keys);
+        final int[] alive = new int[positions.length];
+        for (int i = 0; i < alive.length; i++) {
+            alive[i] = i;
+        }
+        findAnyMatches(this.root, positions, alive, alive.length, answer, stat);
+        return answer;
+    }
+
+    private void findMatches(HNode node, int[] positions,
+                             List<Integer> answer, SearchStatistics stat) {
+        stat.nbBFChecks++;
+        for (int position : positions) {
+            if (!node.value.get(position)) {
+                return;
+            }
+        }
+        if (!node.isBlock()) {
+            for (HNode child : node.children) {
+                findMatches(child, positions, answer, stat);
+            }
+            return;
+        }
+        for (int w = 0; w < blockWords; ++w) {
+            long word = node.busy[w];
+            for (int position : positions) {
+                word &= node.buffer[position * blockWords + w];
+            }
+            while (word != 0) {
+                answer.add(node.ids[w * 64
+                                    + Long.numberOfTrailingZeros(word)]);
+                word &= word - 1;
+            }
+        }
+    }
+
+    /**
+     * Same as findMatches, going down only into the marked children and
+     * keeping only the allowed slots of the blocks
+     */
+    private void findMatches(HNode node, int[] positions,
+                             IdentityHashMap<HNode, long[]> marked,
+                             List<Integer> answer, SearchStatistics stat) {
+        stat.nbBFChecks++;
+        if (!hasAll(node.value, positions)) {
+            return;
+        }
+        if (!node.isBlock()) {
+            for (HNode child : node.children) {
+                if (marked.containsKey(child)) {
+                    findMatches(child, positions, marked, answer, stat);
+                }
+            }
+            return;
+        }
+        final long[] mask = marked.get(node);
+        for (int w = 0; w < blockWords; ++w) {
+            long word = mask[w];
+            for (int position : positions) {
+                word &= node.buffer[position * blockWords + w];
+            }
+            for (; word != 0; word &= word - 1) {
+                answer.add(node.ids[w * 64 + Long.numberOfTrailingZeros(word)]);
+            }
+        }
+    }
+
+    /**
+     * Same as findMatches, adding the IDs to a bitmap
+     */
+    private void findIds(HNode node, int[] positions, IdSet ids,
+                         SearchStatistics stat) {
+        stat.nbBFChecks++;
+        if (!hasAll(node.value, positions)) {
+            return;
+        }
+        if (!node.isBlock()) {
+            for (HNode child : node.children) {
+                findIds(child, positions, ids, stat);
+            }
+            return;
+        }
+        for (int w = 0; w < blockWords; ++w) {
+            long word = node.busy[w];
+            for (int position : positions) {
+                word &= node.buffer[position * blockWords + w];
+            }
+            for (; word != 0; word &= word - 1) {
+                ids.add(node.ids[w * 64 + Long.numberOfTrailingZeros(word)]);
+            }
+        }
+    }
+
+    /**
+     * Return the number of filters below the node having all the given
+     * bits
+     */
+    private int countMatches(HNode node, int[] positions,
+                             SearchStatistics stat) {
+        stat.nbBFChecks++;
+        if (!hasAll(node.value, positions)) {
+            return 0;
+        }
+        int count = 0;
+        if (!node.isBlock()) {
+            for (HNode child : node.children) {
+                count += countMatches(child, positions, stat);
+            }
+            return count;
+        }
+        for (int w = 0; w < blockWords; ++w) {
+            long word = node.busy[w];
+            for (int position : positions) {
+                word &= node.buffer[position * blockWords + w];
+            }
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Same as findMatches, stopping once answer holds limit IDs
+     */
+    private void findMatches(HNode node, int[] positions, int limit,
+                             List<Integer> answer, SearchStatistics stat) {
+        stat.nbBFChecks++;
+        if (!hasAll(node.value, positions)) {
+            return;
+        }
+        if (!node.isBlock()) {
+            for (int i = 0; i < node.children.size() && answer.size() < limit; i++) {
+                findMatches(node.children.get(i), positions, limit, answer, stat);
+            }
+            return;
+        }
+        for (int w = 0; w < blockWords; ++w) {
+            long word = node.busy[w];
+            for (int position : positions) {
+                word &= node.buffer[position * blockWords + w];
+            }
+            for (; word != 0; word &= word - 1) {
+                answer.add(node.ids[w * 64
+                                    + Long.numberOfTrailingZeros(word)]);
+                if (answer.size() == limit) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add to answer the IDs of the filters below the node matching at least
+     * one of the keys alive[0 .. nbAlive - 1]; only the keys matching a
+     * node are tested below it
+     */
+    private void findAnyMatches(HNode node, int[][] positions, int[] alive,
+                                int nbAlive, List<Integer> answer,
+                                SearchStatistics stat) {
+        stat.nbBFChecks++;
+        final int[] matching = new int[nbAlive];
+        int nbMatching = 0;
+        for (int i = 0; i < nbAlive; i++) {
+            if (hasAll(node.value, positions[alive[i]])) {
+                matching[nbMatching++] = alive[i];
+            }
+        }
+        if (nbMatching == 0) {
+            return;
+        }
+        if (!node.isBlock()) {
+            for (HNode child : node.children) {
+                findAnyMatches(child, positions, matching, nbMatching, answer,
+                               stat);
+            }
+            return;
+        }
+        for (int w = 0; w < blockWords; ++w) {
+            long word = 0;
+            for (int i = 0; i < nbMatching; i++) {
+                long keyWord = node.busy[w];
+                for (int position : positions[matching[i]]) {
+                    keyWord &= node.buffer[position * blockWords + w];
+                }
+                word |= keyWord;
+            }
+            while (word != 0) {
+                answer.add(node.ids[w * 64
+                                    + Long.numberOfTrailingZeros(word)]);
+                word &= word - 1;
+            }
+        }
+    }
+
+    private static boolean hasAll(BitSet value, int[] positions) {
+        for (int position : positions) {
+            if (!value.get(position)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int addElement(int id, E element, InsDelUpdateStatistics stat) {
+        HNode block = idMap.get(id);
+        if (block == null)
+            return -1;
+        final int slot = block.slotOf(id);
+        for (int l = 0; l < h.getNumberOfHashFunctions(); ++l) {
+            final int position = h.hash(element, l);
+            block.setBit(slot, position);
+            setToTheRoot(block, position);
+        }
+        return 0;
+    }
+
+    @Override
+    public int addElements(int id, Collection<? extends E> elements,
+                           InsDelUpdateStatistics stat) {
+        HNode block = idMap.get(id);
+        if (block == null)
+            return -1;
+        final int slot = block.slotOf(id);
+        for (E element : elements) {
+            for (int l = 0; l < h.getNumberOfHashFunctions(); ++l) {
+                final int position = h.hash(element, l);
+                block.setBit(slot, position);
+                setToTheRoot(block, position);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    // this assumes that the bloom filter only received new values
+    public int updateIndex(BloomFilter<E> newBloomFilter,
+                           InsDelUpdateStatistics stat) {
+        checkFilter(newBloomFilter);
+        HNode block = idMap.get(newBloomFilter.getID());
+        if (block == null)
+            throw new RuntimeException("Could not find Bloom filter with ID "
+                                       + newBloomFilter.getID());
+        final BitSet bits = newBloomFilter.getBitSet();
+        final int slot = block.slotOf(newBloomFilter.getID());
+        for (int k = bits.nextSetBit(0); k >= 0; k = bits.nextSetBit(k + 1)) {
+            block.setBit(slot, k);
+        }
+        stat.nbBFNodesAccessed++;
+        orToTheRoot(block, bits, stat);
+        return 0;
+    }
+
+    /**
+     * Return a read-only copy of this index with the nodes numbered in
+     * breadth-first order and stored in arrays (see
+     * FrozenHybridBloomFilterIndex)
+     */
+    @Override
+    public FrozenHybridBloomFilterIndex<E> freeze() {
+        ArrayList<HNode> nodes = new ArrayList<HNode>();
+        if (this.root != null) {
+            nodes.add(this.root);
+        }
+        // the list grows as the nodes are visited
+        int nbBlocks = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            HNode node = nodes.get(i);
+            if (node.isBlock()) {
+                nbBlocks++;
+            } else {
+                nodes.addAll(node.children);
+            }
+        }
+
+        final int n = nodes.size();
+        final int nbWords = this.nbBits / 64;
+        int[] firstChild = new int[n];
+        int[] nbChildren = new int[n];
+        int[] blockNumber = new int[n];
+        long[] unionWords = new long[n * nbWords];
+        long[] blocks = new long[nbBlocks * this.nbBits * this.blockWords];
+        long[] busy = new long[nbBlocks * this.blockWords];
+        int[] ids = new int[nbBlocks * getBlockCapacity()];
+        int next = 1;
+        int block = 0;
+        for (int i = 0; i < n; i++) {
+            HNode node = nodes.get(i);
+            for (int w = 0; w < nbWords; w++) {
+                unionWords[i * nbWords + w] = node.value.getWord(w);
+            }
+            if (node.isBlock()) {
+                blockNumber[i] = block;
+                System.arraycopy(node.buffer, 0, blocks, block
+                                 * node.buffer.length, node.buffer.length);
+                System.arraycopy(node.busy, 0, busy, block * this.blockWords,
+                                 this.blockWords);
+                System.arraycopy(node.ids, 0, ids, block * getBlockCapacity(),
+                                 getBlockCapacity());
+                block++;
+            } else {
+                blockNumber[i] = -1;
+                firstChild[i] = next;
+                nbChildren[i] = node.children.size();
+                next += nbChildren[i];
+            }
+        }
+        return new FrozenHybridBloomFilterIndex<E>(firstChild, nbChildren,
+                blockNumber, unionWords, blocks, busy, ids, this.blockWords,
+                this.nbBits, this.filterSize, getHeight(), h);
+    }
+
+    // check for bugs
+    public void validate() {
+        if (this.root != null) {
+            assert this.root.parent == null;
+            validate(this.root);
+        }
+    }
+
+    private void validate(HNode node) {
+        BitSet expected = new BitSet(nbBits);
+        if (node.isBlock()) {
+            int count = 0;
+            for (int s = node.nextSlot(0); s >= 0; s = node.nextSlot(s + 1)) {
+                assert idMap.get(node.ids[s]) == node;
+                expected.or(node.getColumn(s, nbBits));
+                count++;
+            }
+            assert count == node.count && count > 0;
+        } else {
+            assert !node.children.isEmpty()
+            && node.children.size() <= 2 * this.order;
+            for (HNode child : node.children) {
+                assert child.parent == node;
+                validate(child);
+                expected.or(child.value);
+            }
+        }
+        if (!expected.equals(node.value))
+            throw new RuntimeException("Wrong union filter in the index");
+    }
+
+    /**
+     * A node of the index: either an inner node, with children, or a leaf
+     * block holding transposed Bloom filters. In both cases the value is
+     * the union of the filters below.
+     */
+    private static final class HNode {
+        BitSet value;
+        HNode parent;
+
+        // null for a leaf block
+        ArrayList<HNode> children;
+
+        // leaf blocks: bit k of the filter in slot s is bit s % 64 of
+        // buffer[k * blockWords + s / 64]
+        long[] buffer;
+        int[] ids;
+        long[] busy;
+        int count;
+
+        static HNode newNode(int nbBits) {
+            HNode node = new HNode();
+            node.value = new BitSet(nbBits);
+            node.children = new ArrayList<HNode>();
+            return node;
+        }
+
+        static HNode newBlock(int nbBits, int blockWords) {
+            HNode node = new HNode();
+            node.value = new BitSet(nbBits);
+            node.buffer = new long[nbBits * blockWords];
+            node.ids = new int[64 * blockWords];
+            node.busy = new long[blockWords];
+            return node;
+        }
+
+        boolean isBlock() {
+            return this.children == null;
+        }
+
+        /**
+         * Number of children, or of filters in a leaf block
+         */
+        int size() {
+            return isBlock() ? this.count : this.children.size();
+        }
+
+        int getTreeSize() {
+            int size = 1;
+            if (!isBlock()) {
+                for (HNode child : this.children) {
+                    size += child.getTreeSize();
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Return the first busy slot from the given one, or -1
+         */
+        int nextSlot(int from) {
+            int w = from / 64;
+            if (w >= this.busy.length) {
+                return -1;
+            }
+            long word = this.busy[w] & (~0l << from);
+            while (true) {
+                if (word != 0) {
+                    return w * 64 + Long.numberOfTrailingZeros(word);
+                }
+                if (++w == this.busy.length) {
+                    return -1;
+                }
+                word = this.busy[w];
+            }
+        }
+
+        int slotOf(int id) {
+            for (int s = nextSlot(0); s >= 0; s = nextSlot(s + 1)) {
+                if (this.ids[s] == id) {
+                    return s;
+                }
+            }
+            throw new RuntimeException("Could not find Bloom filter with ID "
+                                       + id);
+        }
+
+        void putSlot(int id, BitSet bits) {
+            int slot = 0;
+            while (this.busy[slot / 64] == ~0l) {
+                slot += 64;
+            }
+            slot += Long.numberOfTrailingZeros(~this.busy[slot / 64]);
+            this.busy[slot / 64] |= 1l << slot;
+            this.ids[slot] = id;
+            this.count++;
+            for (int k = bits.nextSetBit(0); k >= 0; k = bits.nextSetBit(k + 1)) {
+                setBit(slot, k);
+            }
+        }
+
+        void setBit(int slot, int position) {
+            this.buffer[position * this.busy.length + slot / 64] |= 1l << slot;
+        }
+
+        void clearSlot(int slot) {
+            final int blockWords = this.busy.length;
+            final long mask = ~(1l << slot);
+            for (int k = slot / 64; k < this.buffer.length; k += blockWords) {
+                this.buffer[k] &= mask;
+            }
+            this.busy[slot / 64] &= mask;
+            this.count--;
+        }
+
+        void clearBlock() {
+            Arrays.fill(this.buffer, 0);
+            Arrays.fill(this.busy, 0);
+            this.count = 0;
+        }
+
+        /**
+         * Return the bits of the filter in the given slot
+         */
+        BitSet getColumn(int slot, int nbBits) {
+            final int blockWords = this.busy.length;
+            final long mask = 1l << slot;
+            BitSet bits = new BitSet(nbBits);
+            for (int k = 0, i = slot / 64; k < nbBits; k++, i += blockWords) {
+                if ((this.buffer[i] & mask) != 0) {
+                    bits.set(k);
+                }
+            }
+            return bits;
+        }
+
+        /**
+         * Return the bits of the filters in all the slots, in one pass
+         */
+        BitSet[] getColumns(int nbBits) {
+            final int blockWords = this.busy.length;
+            BitSet[] columns = new BitSet[64 * blockWords];
+            for (int s = 0; s < columns.length; s++) {
+                columns[s] = new BitSet(nbBits);
+            }
+            for (int k = 0; k < nbBits; k++) {
+                for (int w = 0; w < blockWords; w++) {
+                    long word = this.buffer[k * blockWords + w];
+                    while (word != 0) {
+                        columns[w * 64 + Long.numberOfTrailingZeros(word)]
+                        .set(k);
+                        word &= word - 1;
+                    }
+                }
+            }
+            return columns;
+        }
+
+        void recomputeValue(int nbBits, InsDelUpdateStatistics stat) {
+            this.value.clear();
+            if (isBlock()) {
+                final int blockWords = this.busy.length;
+                for (int k = 0; k < nbBits; k++) {
+                    for (int w = 0; w < blockWords; w++) {
+                        if (this.buffer[k * blockWords + w] != 0) {
+                            this.value.set(k);
+                            break;
+                        }
+                    }
+                }
+                stat.nbBFAccessed++;
+                return;
+            }
+            for (HNode child : this.children) {
+                this.value.or(child.value);
+                stat.nbBFAccessed++;
+            }
+            stat.nbBFAccessed++;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package mvm.provenance;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.googlecode.javaewah.datastructure.BitSet;
+
+/**
+ * A set of Bloom filter IDs (non-negative ints) stored as a bitmap, with
+ * bit i set if i is in the set. The bitmap is a BitSet, sparse (sorted
+ * positions) or dense (words) depending on how many IDs it holds, so that
+ * a search result with a few IDs stays small and one with many IDs is a
+ * plain array of words.
+ *
+ * The results of several searches, or a search result and a set of IDs
+ * built by the caller (see of), are combined in place with and, or and
+ * andNot, without building any list. The IDs are read back in increasing
+ * order with iterator(), without boxing.
+ */
+public final class IdSet {
+
+    private BitSet bits;
+
+    /**
+     * Create an empty set
+     */
+    public IdSet() {
+        this(64);
+    }
+
+    /**
+     * Create an empty set with room for the IDs below the given one
+     *
+     * @param capacity
+     *                the IDs below this one are added without resizing
+     */
+    public IdSet(int capacity) {
+        this.bits = new BitSet(capacity);
+    }
+
+    /**
+     * Return a set holding the given IDs
+     */
+    public static IdSet of(Collection<Integer> ids) {
+        IdSet set = new IdSet();
+        for (int id : ids) {
+            set.add(id);
+        }
+        set.compress();
+        return set;
+    }
+
+    /**
+     * Add an ID to this set
+     *
+     * @param id
+     *                a non-negative ID
+     */
+    public void add(int id) {
+        if (id < 0)
+            throw new IllegalArgumentException("Negative ID: " + id);
+        if (id >= this.bits.length()) {
+            this.bits.resize(Math.max(id + 1, 2 * this.bits.length()));
+        }
+        this.bits.set(id);
+    }
+
+    /**
+     * Remove an ID from this set
+     */
+    public void remove(int id) {
+        if (id >= 0 && id < this.bits.length()) {
+            this.bits.unset(id);
+        }
+    }
+
+    /**
+     * @return true if the ID is in this set
+     */
+    public boolean contains(int id) {
+        return id >= 0 && id < this.bits.length() && this.bits.get(id);
+    }
+
+    /**
+     * @return the number of IDs in this set
+     */
+    public int cardinality() {
+        return this.bits.cardinality();
+    }
+
+    public boolean isEmpty() {
+        return this.bits.nextSetBit(0) < 0;
+    }
+
+    /**
+     * Keep the IDs that are also in the other set
+     */
+    public void and(IdSet other) {
+        this.bits.and(other.bits);
+    }
+
+    /**
+     * Add the IDs of the other set
+     */
+    public void or(IdSet other) {
+        if (other.bits.length() > this.bits.length()) {
+            this.bits.resize(other.bits.length());
+        }
+        if (other.bits.length() == this.bits.length()) {
+            this.bits.or(other.bits);
+        } else if (other.bits.isSparse()) {
+            for (int id = other.bits.nextSetBit(0); id >= 0; id = other.bits
+                    .nextSetBit(id + 1)) {
+                this.bits.set(id);
+            }
+        } else {
+            for (int k = 0; k < other.bits.length() / 64; ++k) {
+                final long w = other.bits.getWord(k);
+                if (w != 0) {
+                    this.bits.setWord(k, this.bits.getWord(k) | w);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the IDs that are in the other set
+     */
+    public void andNot(IdSet other) {
+        this.bits.andNot(other.bits);
+    }
+
+    /**
+     * Switch to the sparse representation if this set has few enough IDs
+     * for the range they span (see BitSet.compress)
+     */
+    public void compress() {
+        this.bits.compress();
+    }
+
+    /**
+     * Return the IDs of this set in increasing order. The set must not be
+     * changed during the iteration.
+     */
+    public IntIterator iterator() {
+        return new IntIterator() {
+            private int next = IdSet.this.bits.nextSetBit(0);
+
+            @Override
+            public boolean hasNext() {
+                return this.next >= 0;
+            }
+
+            @Override
+            public int next() {
+                if (this.next < 0)
+                    throw new NoSuchElementException();
+                final int id = this.next;
+                this.next = IdSet.this.bits.nextSetBit(id + 1);
+                return id;
+            }
+        };
+    }
+
+    /**
+     * @return the IDs of this set in increasing order
+     */
+    public List<Integer> toList() {
+        ArrayList<Integer> list = new ArrayList<Integer>(cardinality());
+        for (IntIterator i = iterator(); i.hasNext();) {
+            list.add(i.next());
+        }
+        return list;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof IdSet))
+            return false;
+        final BitSet other = ((IdSet) o).bits;
+        final int card = cardinality();
+        if (card != other.cardinality())
+            return false;
+        for (int id = this.bits.nextSetBit(0); id >= 0; id = this.bits
+                .nextSetBit(id + 1)) {
+            if (id >= other.length() || !other.get(id))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int id = this.bits.nextSetBit(0); id >= 0; id = this.bits
+                .nextSetBit(id + 1)) {
+            hash = 31 * hash + id;
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+
+}
@@ -16,6 +16,10 @@ public class InsDelUpdateStatistics {
     public int nbSplits;
     public int nbMerges;
     public int nbRedistributes;
+    /** Number of filters removed and inserted again on overflow */
+    public int nbReinserts;
+    /** Number of subtrees re-clustered by maintenance */
+    public int nbRebuilds;
 
     public InsDelUpdateStatistics() {
         this.clear();
@@ -30,6 +34,8 @@ public class InsDelUpdateStatistics {
         nbSplits = 0;
         nbMerges = 0;
         nbRedistributes = 0;
+        nbReinserts = 0;
+        nbRebuilds = 0;
 
     }
 
@@ -38,6 +44,8 @@ public class InsDelUpdateStatistics {
                + "| nbBFNodesAccessed | "+ nbBFNodesAccessed
                + "| nbSplits |" + nbSplits
                + "| nbMerges |" + nbMerges
-               + "| nbRedistributes |" + nbRedistributes;
+               + "| nbRedistributes |" + nbRedistributes
+               + "| nbReinserts |" + nbReinserts
+               + "| nbRebuilds |" + nbRebuilds;
     }
 }
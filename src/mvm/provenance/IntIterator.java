@@ -0,0 +1,18 @@
+package mvm.provenance;
+
+/**
+ * An iterator over int values, without boxing
+ */
+public interface IntIterator {
+
+    /**
+     * @return true if there is a next value
+     */
+    public boolean hasNext();
+
+    /**
+     * @return the next value
+     */
+    public int next();
+
+}
@@ -1,10 +1,14 @@
 package mvm.provenance;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeMap;
 
+import com.googlecode.javaewah.datastructure.BitSet;
 import com.skjegstad.utils.BloomFilter;
 
 public class NaiveBloomFilterIndex<E> implements BloomIndex<E> {
@@ -61,6 +65,158 @@ public class NaiveBloomFilterIndex<E> implements BloomIndex<E> {
         return al;
     }
 
+    /**
+     * Only the allowed filters are checked, in the order of their IDs as in
+     * search
+     */
+    @Override
+    public List<Integer> search(E o, IdSet allowed, SearchStatistics stat) {
+        ArrayList<Integer> al = new ArrayList<Integer>();
+        for(IntIterator it = allowed.iterator(); it.hasNext();) {
+            BloomFilter<E> bf = idMap.get(it.next());
+            if(bf != null && bf.contains(o)) al.add(bf.getID());
+        }
+        return al;
+    }
+
+    /**
+     * The filters are checked as the IDs are pulled, in the order of their
+     * IDs as in search
+     */
+    @Override
+    public IntIterator searchIterator(final E o, SearchStatistics stat) {
+        final Iterator<BloomFilter<E>> filters = idMap.values().iterator();
+        return new IntIterator() {
+            // the next filter containing o, null if not found yet
+            private BloomFilter<E> next = null;
+
+            @Override
+            public boolean hasNext() {
+                while(this.next == null && filters.hasNext()) {
+                    BloomFilter<E> bf = filters.next();
+                    if(bf.contains(o)) this.next = bf;
+                }
+                return this.next != null;
+            }
+
+            @Override
+            public int next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                final int id = this.next.getID();
+                this.next = null;
+                return id;
+            }
+        };
+    }
+
+    /**
+     * The cursor is the ID of the next filter to check, the filters being
+     * checked in the order of their IDs as in search
+     */
+    @Override
+    public PartialResult search(E o, long deadline, int[] cursor,
+                                SearchStatistics stat) {
+        ArrayList<Integer> al = new ArrayList<Integer>();
+        int steps = 0;
+        for(BloomFilter<E> bf : cursor == null ? idMap.values() : idMap
+                .tailMap(cursor[0]).values()) {
+            if(PartialResult.isLate(++steps, deadline))
+                return new PartialResult(al, new int[] { bf.getID() });
+            if(bf.contains(o)) al.add(bf.getID());
+        }
+        return new PartialResult(al, null);
+    }
+
+    @Override
+    public IdSet searchIds(E o, SearchStatistics stat) {
+        IdSet ids = new IdSet();
+        for(BloomFilter<E> bf : idMap.values())
+            if(bf.contains(o)) ids.add(bf.getID());
+        ids.compress();
+        return ids;
+    }
+
+    @Override
+    public int count(E o, SearchStatistics stat) {
+        int count = 0;
+        for(BloomFilter<E> bf : idMap.values())
+            if(bf.contains(o)) count++;
+        return count;
+    }
+
+    @Override
+    public List<Integer> searchLimit(E o, int limit, SearchStatistics stat) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Bad limit: " + limit);
+        ArrayList<Integer> al = new ArrayList<Integer>();
+        if (limit == 0)
+            return al;
+        for(BloomFilter<E> bf : idMap.values())
+            if(bf.contains(o)) {
+                al.add(bf.getID());
+                if(al.size() == limit) break;
+            }
+        return al;
+    }
+
+    @Override
+    public int searchFirst(E o, SearchStatistics stat) {
+        for(BloomFilter<E> bf : idMap.values())
+            if(bf.contains(o)) return bf.getID();
+        return -1;
+    }
+
+    @Override
+    public boolean anyMatch(E o, SearchStatistics stat) {
+        for(BloomFilter<E> bf : idMap.values())
+            if(bf.contains(o)) return true;
+        return false;
+    }
+
+    @Override
+    public List<Integer> searchAll(Collection<? extends E> keys,
+                                   SearchStatistics stat) {
+        ArrayList<Integer> al = new ArrayList<Integer>();
+        if (keys.isEmpty())
+            return al;
+        for(BloomFilter<E> bf : idMap.values())
+            if(bf.containsAll(keys)) al.add(bf.getID());
+        return al;
+    }
+
+    @Override
+    public List<Integer> searchAny(Collection<? extends E> keys,
+                                   SearchStatistics stat) {
+        ArrayList<Integer> al = new ArrayList<Integer>();
+        for(BloomFilter<E> bf : idMap.values())
+            for(E o : keys)
+                if(bf.contains(o)) {
+                    al.add(bf.getID());
+                    break;
+                }
+        return al;
+    }
+
+    @Override
+    public int addElement(int id, E element, InsDelUpdateStatistics stat) {
+        BloomFilter<E> bf = idMap.get(id);
+        if (bf == null)
+            return -1;
+        bf.add(element);
+        return 0;
+    }
+
+    @Override
+    public int addElements(int id, Collection<? extends E> elements,
+                           InsDelUpdateStatistics stat) {
+        BloomFilter<E> bf = idMap.get(id);
+        if (bf == null)
+            return -1;
+        bf.addAll(elements);
+        return 0;
+    }
+
     @Override
     public int updateIndex(BloomFilter<E> newBloomFilter,
                            InsDelUpdateStatistics stat) {
@@ -68,4 +224,28 @@ public class NaiveBloomFilterIndex<E> implements BloomIndex<E> {
         return 0;
     }
 
+    /**
+     * Return a read-only copy of this index, with the Bloom filters
+     * transposed (see FrozenFlatBloomFilterIndex). All the filters must use
+     * the same hasher.
+     */
+    @Override
+    public FrozenFlatBloomFilterIndex<E> freeze() {
+        int[] ids = new int[idMap.size()];
+        BitSet[] bits = new BitSet[ids.length];
+        Hasher h = null;
+        int j = 0;
+        for (BloomFilter<E> bf : idMap.values()) {
+            if (h == null)
+                h = bf.getHasher();
+            else if (bf.getHasher() != h)
+                throw new RuntimeException(
+                    "You are using more than one hasher");
+            ids[j] = bf.getID();
+            bits[j] = bf.getBitSet();
+            ++j;
+        }
+        return new FrozenFlatBloomFilterIndex<E>(ids, bits, h);
+    }
+
 }
@@ -0,0 +1,65 @@
+package mvm.provenance;
+
+import java.util.List;
+
+/**
+ * The result of a search bounded by a deadline (see
+ * BloomIndex.search(E, long, int[], SearchStatistics)): the IDs found
+ * before the deadline, and where to resume the search if it did not
+ * complete
+ */
+public final class PartialResult {
+
+    /**
+     * Number of blocks, nodes or filters checked between two reads of the
+     * clock
+     */
+    public static final int CHECK_INTERVAL = 64;
+
+    private final List<Integer> ids;
+
+    // where to resume the search, null if it is complete
+    private final int[] cursor;
+
+    /**
+     * Constructor
+     *
+     * @param ids
+     *                the IDs found
+     * @param cursor
+     *                where to resume the search, null if it is complete
+     */
+    public PartialResult(List<Integer> ids, int[] cursor) {
+        this.ids = ids;
+        this.cursor = cursor;
+    }
+
+    public List<Integer> getIDs() {
+        return this.ids;
+    }
+
+    /**
+     * Return true if the search checked all the filters before the deadline
+     */
+    public boolean isComplete() {
+        return this.cursor == null;
+    }
+
+    /**
+     * Return the cursor to pass to the next search to resume this one, null
+     * if it is complete. The cursor is only meaningful to the index that
+     * returned it.
+     */
+    public int[] getCursor() {
+        return this.cursor;
+    }
+
+    /**
+     * Return true if the search must stop: called before each step, with
+     * the number of steps so far, it reads the clock every CHECK_INTERVAL
+     * steps, so that a search always makes some progress
+     */
+    static boolean isLate(int steps, long deadline) {
+        return steps % CHECK_INTERVAL == 0 && System.nanoTime() - deadline > 0;
+    }
+}
@@ -70,6 +70,17 @@ public class QuickBenchmark {
         }
         aft = System.nanoTime();
         System.out.println("delete = "+(aft-bef));
+        for(BloomFilter<Integer> R : toremove) {
+            f.insertBloomFilter(R, new InsDelUpdateStatistics());
+        }
+        int[] ids = new int[toremove.size()];
+        for(int k = 0; k < ids.length; ++k) {
+            ids[k] = toremove.get(k).getID();
+        }
+        bef = System.nanoTime();
+        f.deleteAll(ids, new InsDelUpdateStatistics());
+        aft = System.nanoTime();
+        System.out.println("deleteAll = "+(aft-bef));
 
     }
 
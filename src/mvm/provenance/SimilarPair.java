@@ -0,0 +1,60 @@
+package mvm.provenance;
+
+/**
+ * Two Bloom filters found similar by a similarity join (see
+ * FlatBloomFilterIndex.similarityJoin), with their distance
+ */
+public final class SimilarPair {
+    public final int id1;
+    public final int id2;
+    public final double distance;
+
+    /**
+     * Constructor
+     *
+     * @param id1
+     *                ID of the first filter
+     * @param id2
+     *                ID of the second filter
+     * @param distance
+     *                distance between the filters
+     */
+    public SimilarPair(int id1, int id2, double distance) {
+        this.id1 = id1;
+        this.id2 = id2;
+        this.distance = distance;
+    }
+
+    public int getID1() {
+        return this.id1;
+    }
+
+    public int getID2() {
+        return this.id2;
+    }
+
+    public double getDistance() {
+        return this.distance;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SimilarPair)) {
+            return false;
+        }
+        final SimilarPair p = (SimilarPair) o;
+        return this.id1 == p.id1 && this.id2 == p.id2
+               && Double.compare(this.distance, p.distance) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        final long bits = Double.doubleToLongBits(this.distance);
+        return (this.id1 * 31 + this.id2) * 31 + (int) (bits ^ (bits >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "(" + this.id1 + ", " + this.id2 + ": " + this.distance + ")";
+    }
+}
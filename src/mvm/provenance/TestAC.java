@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  *
@@ -27,6 +28,8 @@ public class TestAC {
 
         boolean Bloofi = false;
 
+        boolean Hybrid = false;
+
         //get input parameters
         double falsePosProb = 0.01;
         int expectedNbElemInFilter = 10000;
@@ -54,6 +57,26 @@ public class TestAC {
         //gets the integers in [(i-1)* initialNbElemInFilter,i*actualNbElemInFilter)
         //if false, each bloom filter gets initialNbElemInFilter random integers from a random range
 
+        int foldFactor = 1; //upper levels of Bloofi are folded by this factor, 1 for no folding
+
+        boolean distanceSplit = false; //split Bloofi nodes by position (default) or by distance
+
+        boolean forcedReinsert = false; //reinsert some leaves before splitting an overflowing Bloofi node
+
+        int sketchSize = 0; //if positive, Bloofi inserts route by sketches of this size
+        int sketchRerank = 0; //number of best sketch matches compared exactly during Bloofi inserts
+
+        int bulkLoadThreads = 0; //if positive, Bloofi bulk loads run in parallel on that many threads
+
+        int hybridBlockWords = 1; //the leaf blocks of the hybrid index hold 64 * hybridBlockWords filters
+
+        boolean compactSearch = false; //search a compact copy of the Bloofi tree
+        boolean freezeSearch = false; //search a frozen copy of any index
+        boolean sparseLeaves = false; //store the sparse leaf filters of the Bloofi tree sparse
+        double flatCompressBlocks = -1; //compress the Bloofi2 blocks with at most this fraction of non-zero words, negative for none
+        int searchLimit = 0; //searches stop after this number of results, 0 for all the results
+        boolean countOnly = false; //searches only count the results
+
         int nbRuns = 10; //default times to rub the experiment
         boolean collectStats = true;
 
@@ -68,6 +91,9 @@ public class TestAC {
         else if (indexType.equalsIgnoreCase("-bloofi")) {
             Bloofi = true;
         }
+        else if (indexType.equalsIgnoreCase("-hybrid")) {
+            Hybrid = true;
+        }
         else {
             System.out.println("Incorrect first parameter " + indexType + " See example usage below");
             printHelp();
@@ -103,6 +129,28 @@ public class TestAC {
             else if (paramName.equalsIgnoreCase("-nbUpdates")) nbUpdates = Integer.parseInt(args[iArgs+1]);
             else if (paramName.equalsIgnoreCase("-nonOverlappingRanges")) nonRandomRanges = Boolean.parseBoolean(args[iArgs+1]);
             else if (paramName.equalsIgnoreCase("-nbRuns")) nbRuns = Integer.parseInt(args[iArgs+1]);
+            else if (paramName.equalsIgnoreCase("-foldFactor")) foldFactor = Integer.parseInt(args[iArgs+1]);
+            else if (paramName.equalsIgnoreCase("-forcedReinsert")) forcedReinsert = Boolean.parseBoolean(args[iArgs+1]);
+            else if (paramName.equalsIgnoreCase("-sketchSize")) sketchSize = Integer.parseInt(args[iArgs+1]);
+            else if (paramName.equalsIgnoreCase("-sketchRerank")) sketchRerank = Integer.parseInt(args[iArgs+1]);
+            else if (paramName.equalsIgnoreCase("-bulkLoadThreads")) bulkLoadThreads = Integer.parseInt(args[iArgs+1]);
+            else if (paramName.equalsIgnoreCase("-hybridBlockWords")) hybridBlockWords = Integer.parseInt(args[iArgs+1]);
+            else if (paramName.equalsIgnoreCase("-compactSearch")) compactSearch = Boolean.parseBoolean(args[iArgs+1]);
+            else if (paramName.equalsIgnoreCase("-freezeSearch")) freezeSearch = Boolean.parseBoolean(args[iArgs+1]);
+            else if (paramName.equalsIgnoreCase("-sparseLeaves")) sparseLeaves = Boolean.parseBoolean(args[iArgs+1]);
+            else if (paramName.equalsIgnoreCase("-flatCompressBlocks")) flatCompressBlocks = Double.parseDouble(args[iArgs+1]);
+            else if (paramName.equalsIgnoreCase("-searchLimit")) searchLimit = Integer.parseInt(args[iArgs+1]);
+            else if (paramName.equalsIgnoreCase("-countOnly")) countOnly = Boolean.parseBoolean(args[iArgs+1]);
+            else if (paramName.equalsIgnoreCase("-splitPolicy")) {
+                String policyString = args[iArgs+1];
+                if (policyString.equalsIgnoreCase("position")) distanceSplit = false;
+                else if (policyString.equalsIgnoreCase("distance")) distanceSplit = true;
+                else {
+                    System.out.println("Wrong parameter value: " + paramName + " " + policyString);
+                    printHelp();
+                    return;
+                }
+            }
             else {
                 System.out.println("Unknown parameter " + paramName);
                 printHelp();
@@ -142,6 +190,12 @@ public class TestAC {
             return;
         }
 
+        if (foldFactor < 1 || Integer.bitCount(foldFactor) != 1) {
+            System.err.println("Fold factor should be a power of two");
+            printHelp();
+            return;
+        }
+
         if (nbUpdates >= initialNbElemInFilter) {
             System.err.println("Number updates should be lower than initial nb elem in filter");
             printHelp();
@@ -250,14 +304,20 @@ public class TestAC {
             BloomIndex<Integer> bfi;
 
 
-            if ((!Bloofi2) && (!Naive) && bulkOrIncremental.equalsIgnoreCase("b")) {
+            if ((!Bloofi2) && (!Naive) && (!Hybrid) && bulkOrIncremental.equalsIgnoreCase("b")) {
                 // Create the index by using the bulkLoad functionality
                 if (!collectStats) {
                     System.out.println("Start creating the index using the bulk load functionality. This might take a while.");
                 }
+                ForkJoinPool pool = bulkLoadThreads > 0 ? new ForkJoinPool(bulkLoadThreads) : null;
                 startTime = System.currentTimeMillis();
-                bfi = new BloomFilterIndex<Integer>(bfList, order, splitFull, insStat);
+                BloomFilterIndex<Integer> bulkLoaded = new BloomFilterIndex<Integer>(bfList, order, splitFull, false, foldFactor, pool, insStat);
+                bulkLoaded.setSparseLeaves(sparseLeaves);
+                bfi = bulkLoaded;
                 endTime = System.currentTimeMillis();
+                if (pool != null) {
+                    pool.shutdown();
+                }
             } else {
 
                 //Create the index by inserting the Bloom Filters one by one
@@ -274,9 +334,17 @@ public class TestAC {
                 } else if(Bloofi2) {
                     System.out.print("| Using Bloofi2");
                     bfi = new FlatBloomFilterIndex<Integer>();
+                } else if(Hybrid) {
+                    System.out.print("| Using hybrid Bloofi");
+                    bfi = new HybridBloomFilterIndex<Integer>(order, hybridBlockWords);
                 } else {
                     System.out.print("| Using Bloofi");
-                    bfi = new BloomFilterIndex<Integer>(order, current, splitFull);
+                    BloomFilterIndex<Integer> bloofi = new BloomFilterIndex<Integer>(order, current, splitFull, false, foldFactor);
+                    bloofi.setDistanceSplit(distanceSplit);
+                    bloofi.setForcedReinsert(forcedReinsert);
+                    bloofi.setSketchRouting(sketchSize, sketchRerank);
+                    bloofi.setSparseLeaves(sparseLeaves);
+                    bfi = bloofi;
                 }
                 for (int i = 0; i < nbBFs; i++) {
                     current = bfList.get(i);
@@ -295,6 +363,7 @@ public class TestAC {
                                  + "| Filter size| " + bfi.getBloomFilterSize()
                                  + "| IsRootAllOne| " + bfi.getIsRootAllOne()
                                  + "| Nb children of root| " + bfi.getNbChildrenRoot()
+                                 + "| Node filter bits| " + (bfi instanceof BloomFilterIndex ? ((BloomFilterIndex<Integer>) bfi).getNodeFilterBits() : 0)
                                  + "| Ins stats: nbBFAccessed| " + insStat.nbBFAccessed
                                  + "| Ins stats: nbBFNodesAccessed| " + insStat.nbBFNodesAccessed
                                  + "| Ins stats: nbSplits| " + insStat.nbSplits
@@ -377,6 +446,28 @@ public class TestAC {
             }
 
 
+            //the searches can run on a compact copy of the Bloofi tree
+            BloomIndex<Integer> searched = bfi;
+            if (compactSearch && bfi instanceof BloomFilterIndex) {
+                startTime = System.currentTimeMillis();
+                searched = ((BloomFilterIndex<Integer>) bfi).compact();
+                endTime = System.currentTimeMillis();
+                System.out.print("| Compaction time millis| " + (endTime - startTime));
+            }
+            if (freezeSearch) {
+                startTime = System.currentTimeMillis();
+                searched = bfi.freeze();
+                endTime = System.currentTimeMillis();
+                System.out.print("| Freeze time millis| " + (endTime - startTime));
+            }
+            if (flatCompressBlocks >= 0 && bfi instanceof FlatBloomFilterIndex) {
+                startTime = System.currentTimeMillis();
+                int nbPacked = ((FlatBloomFilterIndex<Integer>) bfi).compressBlocks(flatCompressBlocks);
+                endTime = System.currentTimeMillis();
+                System.out.print("| Block compression time millis| " + (endTime - startTime)
+                                 + "| Compressed blocks| " + nbPacked);
+            }
+
             System.out.print("| Nb Bloom filters |" + nbBFs
                              + "| Nb yes searches| " + nbYesSearches);
 
@@ -385,10 +476,10 @@ public class TestAC {
             int nbFound;
             if (nonRandomRanges) {
                 maxValueInserted = initialNbElemInFilter * nbBFs;
-                nbFound = searchSomeElements(bfi, 0, maxValueInserted, nbYesSearches);
+                nbFound = searchSomeElements(searched, 0, maxValueInserted, nbYesSearches, searchLimit, countOnly);
             } else {
                 maxValueInserted = Integer.MAX_VALUE / 2;
-                nbFound = searchSomeElements(bfi, insertedValues, nbYesSearches);
+                nbFound = searchSomeElements(searched, insertedValues, nbYesSearches, searchLimit, countOnly);
             }
             System.out.print("| Number searches with non-empty results | " + nbFound);
 
@@ -400,7 +491,7 @@ public class TestAC {
 
             System.out.print("| Nb no searches| " + nbNoSearches);
 
-            nbFound = searchSomeElements(bfi, maxValueInserted, Integer.MAX_VALUE, nbNoSearches);
+            nbFound = searchSomeElements(searched, maxValueInserted, Integer.MAX_VALUE, nbNoSearches, searchLimit, countOnly);
 
             System.out.print("| Number searches with non-empty results (false positives)| " + nbFound);
 
@@ -488,7 +579,7 @@ public class TestAC {
 
     private static void printHelp() {
         System.out.println("Input parameters: "
-                           + " -bloofi | -bloofi2 | -naive"
+                           + " -bloofi | -bloofi2 | -naive | -hybrid"
                            + " -falsePositiveProb falsePosProb"
                            + " -expectedNbElemInBloomFilter expectedNbElemInFilter"
                            + " -initialNbElemInBloomFilter initialNbElemInFilter"
@@ -502,7 +593,20 @@ public class TestAC {
                            + " -nbBFInsertsDeletes nbBloomFiltersInsertsOrDeletes"
                            + " -nbUpdates nbOfElementsToBeInsertedDuringUpdateInEachFilter"
                            + " -nonOverlappingRanges true | false"
-                           + " -nbRuns numberOfRunsForExperiments");
+                           + " -nbRuns numberOfRunsForExperiments"
+                           + " -foldFactor powerOfTwo (Bloofi upper levels folded, 1 for none)"
+                           + " -splitPolicy position | distance"
+                           + " -forcedReinsert true | false"
+                           + " -sketchSize nbRanges (0 for exact Bloofi insert routing)"
+                           + " -sketchRerank nbBestSketchMatchesComparedExactly"
+                           + " -bulkLoadThreads nbThreads (0 for a sequential bulk load)"
+                           + " -hybridBlockWords nbWords (hybrid leaf blocks hold 64 * nbWords filters)"
+                           + " -compactSearch true | false (search a compact copy of the Bloofi tree)"
+                           + " -freezeSearch true | false (search a frozen copy of the index)"
+                           + " -sparseLeaves true | false (store the sparse leaf filters of the Bloofi tree sparse)"
+                           + " -flatCompressBlocks maxNonZeroRatio (compress the sparse Bloofi2 blocks, negative for none)"
+                           + " -searchLimit nbResults (stop the searches after nbResults results, 0 for all)"
+                           + " -countOnly true | false (count the results of the searches instead of listing them)");
         System.out.println("Ex. -bloofi -falsePositiveProb 0.01 "
                            + " -expectedNbElemInBloomFilter 1000 "
                            + " -initialNbElemInBloomFilter 10"
@@ -557,12 +661,16 @@ public class TestAC {
      * @param startRange
      * @param endRange
      * @param nbSearches
+     * @param limit maximum number of results of each search, 0 for all
+     * @param countOnly if true, the results are only counted
      * @return number of searches that returned some result
      */
     private static int searchSomeElements(BloomIndex<Integer> bfi,
                                           int startRange,
                                           int endRange,
-                                          int nbSearchesToDo) {
+                                          int nbSearchesToDo,
+                                          int limit,
+                                          boolean countOnly) {
 
 
         int minSearchSteps = 10000000;
@@ -584,7 +692,14 @@ public class TestAC {
             stat.clear();
             long startTime = System.currentTimeMillis();
             //List<BloomFilter<Integer>> results = bfi.search(elem, stat);
-            List<Integer> results = bfi.search(elem, stat);
+            int nbMatches;
+            if (countOnly) {
+                nbMatches = bfi.count(elem, stat);
+            } else {
+                List<Integer> results = limit > 0 ? bfi.searchLimit(elem, limit, stat)
+                                        : bfi.search(elem, stat);
+                nbMatches = results.size();
+            }
             long endTime = System.currentTimeMillis();
             long diffTime = endTime - startTime;
             sumSearchTime += diffTime;
@@ -592,7 +707,7 @@ public class TestAC {
             //System.out.println("Search for " + elem + " Results in nb steps: " + stat.nbBFChecks);
             //System.out.println("Number results: " + results.size());
             //System.out.println(results);
-            if (results.size() > 0) {
+            if (nbMatches > 0) {
                 nbFound++;
             }
 
@@ -622,11 +737,15 @@ public class TestAC {
      * @param startRange
      * @param endRange
      * @param nbSearches
+     * @param limit maximum number of results of each search, 0 for all
+     * @param countOnly if true, the results are only counted
      * @return number of searches that returned some result
      */
     private static int searchSomeElements(BloomIndex<Integer> bfi,
                                           int[] values,
-                                          int nbSearchesToDo) {
+                                          int nbSearchesToDo,
+                                          int limit,
+                                          boolean countOnly) {
 
 
         int minSearchSteps = 10000000;
@@ -653,7 +772,14 @@ public class TestAC {
             stat.clear();
             long startTime = System.currentTimeMillis();
             //List<BloomFilter<Integer>> results = bfi.search(elem, stat);
-            List<Integer> results = bfi.search(elem, stat);
+            int nbMatches;
+            if (countOnly) {
+                nbMatches = bfi.count(elem, stat);
+            } else {
+                List<Integer> results = limit > 0 ? bfi.searchLimit(elem, limit, stat)
+                                        : bfi.search(elem, stat);
+                nbMatches = results.size();
+            }
 
             long endTime = System.currentTimeMillis();
             long diffTime = endTime - startTime;
@@ -662,10 +788,10 @@ public class TestAC {
             //System.out.println("Search for " + elem + " Results in nb steps: " + stat.nbBFChecks);
             //System.out.println("Number results: " + results.size());
             //System.out.println(results);
-            if (results.size() > 0) {
+            if (nbMatches > 0) {
                 nbFound++;
             }
-            nbResults += results.size();
+            nbResults += nbMatches;
 
             nbSearches++;
             if (stat.nbBFChecks < minSearchSteps) {
@@ -20,6 +20,9 @@ import java.io.UnsupportedEncodingException;
 import java.util.Random;
 import java.util.UUID;
 import java.util.ArrayList;
+import java.util.HashSet;
+
+import com.googlecode.javaewah.datastructure.BitSet;
 
 import mvm.provenance.Hasher;
 
@@ -210,10 +213,403 @@ public class BloomFilterTest {
             assertSame(instance.getBitSet().get(i), false);
     }
 
+    /**
+     * Test of the dirty word tracking of class BloomFilter.
+     */
+    @Test
+    public void testDirtyWords() {
+        System.out.println("dirtyWords");
+        Hasher h = new Hasher();
+        BloomFilter<Integer> instance = new BloomFilter<Integer>(h, 1000, 100);
+        assertNull(instance.getDirtyWords());
+        instance.add(1);
+        instance.setDirtyWordTracking(true);
+        assertEquals(0, instance.getDirtyWords().cardinality());
+        BitSet before = instance.getBitSet().clone();
+        for (int i = 2; i < 10; i++)
+            instance.add(i);
+        instance.setBit(999, true);
+        BitSet dirty = instance.getDirtyWords();
+        for (int w = 0; w < before.length() / 64; w++) {
+            boolean changed = before.getWord(w) != instance.getBitSet().getWord(w);
+            assertEquals(changed, dirty.get(w));
+        }
+        instance.clearDirtyWords();
+        assertEquals(0, instance.getDirtyWords().cardinality());
+        BloomFilter<Integer> other = new BloomFilter<Integer>(h, 1000, 100);
+        other.add(1000);
+        before = instance.getBitSet().clone();
+        instance.orBloomFilter(other);
+        for (int w = 0; w < before.length() / 64; w++) {
+            boolean changed = before.getWord(w) != instance.getBitSet().getWord(w);
+            assertEquals(changed, dirty.get(w));
+        }
+        instance.setDirtyWordTracking(false);
+        assertNull(instance.getDirtyWords());
+    }
+
+    @Test
+    public void testComputeDistance() {
+        System.out.println("computeDistance");
+        Random r = new Random(0);
+        for (int metric = 1; metric <= 3; metric++) {
+            Hasher h = new Hasher(metric);
+            for (int t = 0; t < 100; t++) {
+                BloomFilter<Integer> a = new BloomFilter<Integer>(h, 1000, 100, metric);
+                BloomFilter<Integer> b = new BloomFilter<Integer>(h, 1000, 100, metric);
+                for (int i = 1 + r.nextInt(50); i > 0; i--)
+                    a.add(r.nextInt(200));
+                for (int i = 1 + r.nextInt(50); i > 0; i--)
+                    b.add(r.nextInt(200));
+                // the cached cardinality follows the changes
+                a.setBit(r.nextInt(1000), true);
+                b.setBit(r.nextInt(1000), false);
+                BitSet x = a.getBitSet(), y = b.getBitSet();
+                int and = x.andcardinality(y), or = x.orcardinality(y);
+                double expected;
+                if (metric == 2)
+                    expected = 1.0 - (double) and / or;
+                else if (metric == 3)
+                    expected = 1.0 - and / (Math.sqrt(x.cardinality()) * Math.sqrt(y.cardinality()));
+                else
+                    expected = x.xorcardinality(y);
+                assertEquals(expected, a.computeDistance(b), 1e-9);
+                // with a bound, the distance is exact or above the bound
+                double bound = expected * r.nextDouble() * 2;
+                double bounded = a.computeDistance(b, bound);
+                if (expected <= bound)
+                    assertEquals(expected, bounded, 1e-9);
+                else
+                    assertTrue(bounded > bound);
+            }
+        }
+    }
+
+    @Test
+    public void testFold() {
+        System.out.println("fold");
+        Hasher h = new Hasher();
+        BloomFilter<Integer> instance = new BloomFilter<Integer>(h, 1000, 100);
+        for (int i = 0; i < 100; i++)
+            instance.add(i);
+        BloomFilter<Integer> folded = instance.fold(256);
+        assertTrue(folded.isFolded());
+        assertEquals(256, folded.size());
+        for (int i = 0; i < 100; i++)
+            assertTrue(folded.contains(i));
+        // folding twice is the same as folding once
+        BloomFilter<Integer> twice = folded.fold(64);
+        assertEquals(instance.fold(64).getBitSet(), twice.getBitSet());
+        // a folded filter absorbs full-size filters
+        BloomFilter<Integer> other = new BloomFilter<Integer>(h, 1000, 100);
+        other.add(1000);
+        folded.orBloomFilter(other);
+        assertTrue(folded.contains(1000));
+        folded.add(2000);
+        assertTrue(folded.contains(2000));
+        try {
+            instance.fold(100);
+            fail("the folded size must be a power of two");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testCountingRemove() {
+        System.out.println("countingRemove");
+        Hasher h = new Hasher();
+        BloomFilter<Integer> instance = new BloomFilter<Integer>(h, 1000, 100);
+        instance.setCounting(true);
+        assertTrue(instance.isCounting());
+        BloomFilter<Integer> plain = new BloomFilter<Integer>(h, 1000, 100);
+        for (int i = 0; i < 50; i++) {
+            instance.add(i);
+            if (i >= 25)
+                plain.add(i);
+        }
+        for (int i = 0; i < 25; i++)
+            assertTrue(instance.remove(i));
+        // once the removed elements are gone, we get the other filter back
+        assertEquals(plain.getBitSet(), instance.getBitSet());
+        for (int i = 25; i < 50; i++)
+            assertTrue(instance.contains(i));
+        assertEquals(25, instance.count());
+        BloomFilter<Integer> notCounting = new BloomFilter<Integer>(h, 1000, 100);
+        try {
+            notCounting.remove(1);
+            fail("remove requires the counting mode");
+        } catch (IllegalStateException e) {
+        }
+        try {
+            plain.setCounting(true);
+            fail("counting mode requires an empty filter");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testArena() {
+        System.out.println("arena");
+        Hasher h = new Hasher();
+        BloomFilter<Integer> prototype = new BloomFilter<Integer>(h, 1000, 100);
+        // small chunks, so that the arena grows while views are held
+        BloomFilterArena<Integer> arena = new BloomFilterArena<Integer>(prototype, 3);
+        ArrayList<BloomFilter<Integer>> views = new ArrayList<BloomFilter<Integer>>();
+        ArrayList<BloomFilter<Integer>> plain = new ArrayList<BloomFilter<Integer>>();
+        for (int j = 0; j < 10; j++) {
+            BloomFilter<Integer> view = arena.newBloomFilter();
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h, 1000, 100);
+            for (int i = 0; i < 20; i++) {
+                view.add(j * 100 + i);
+                bf.add(j * 100 + i);
+            }
+            views.add(view);
+            plain.add(bf);
+        }
+        assertEquals(10, arena.size());
+        for (int j = 0; j < 10; j++) {
+            BloomFilter<Integer> view = views.get(j);
+            assertEquals(plain.get(j).getBitSet(), view.getBitSet());
+            assertEquals(plain.get(j), view);
+            assertEquals(20, view.count());
+            assertTrue(view.contains(j * 100));
+            // another view of the same filter sees the same content
+            BloomFilter<Integer> again = arena.get(j);
+            assertEquals(view.getID(), again.getID());
+            assertEquals(view.getBitSet(), again.getBitSet());
+            again.add(5000);
+            assertTrue(view.contains(5000));
+            assertEquals(21, view.count());
+        }
+        views.get(0).setID(-7);
+        assertEquals(-7, arena.get(0).getID());
+        assertTrue(arena.get(0).toString().startsWith("ID:-7:"));
+        // a view does not read into the next filter of the arena
+        BitSet first = views.get(0).getBitSet();
+        try {
+            first.get(first.length());
+            fail("bit past the end of the view");
+        } catch (IndexOutOfBoundsException e) {
+        }
+        try {
+            first.getWord(first.length() / 64);
+            fail("word past the end of the view");
+        } catch (IndexOutOfBoundsException e) {
+        }
+        views.get(1).clear();
+        assertEquals(0, arena.get(1).getBitSet().cardinality());
+        assertEquals(0, arena.get(1).count());
+        assertTrue(arena.get(2).contains(200));
+
+        // copies keep the bits, the ID and the count
+        BloomFilter<Integer> copy = arena.copyOf(plain.get(3));
+        assertEquals(plain.get(3).getID(), copy.getID());
+        assertEquals(plain.get(3).count(), copy.count());
+        assertEquals(plain.get(3).getBitSet(), copy.getBitSet());
+        // a clone of the bits of a view is not a view
+        BitSet cloned = copy.getBitSet().clone();
+        assertFalse(cloned.isView());
+        final int bit = cloned.nextUnsetBit(0);
+        copy.setBit(bit, true);
+        assertTrue(arena.get(10).getBitSet().get(bit));
+        assertFalse(cloned.get(bit));
+        try {
+            copy.setCounting(true);
+            fail("a filter stored in an arena cannot be counting");
+        } catch (IllegalStateException e) {
+        }
+        try {
+            arena.get(11);
+            fail("no such filter");
+        } catch (IndexOutOfBoundsException e) {
+        }
+    }
+
+    @Test
+    public void testConcurrentIDs() throws InterruptedException {
+        System.out.println("concurrentIDs");
+        final Hasher h = new Hasher();
+        final BloomFilterArena<Integer> arena = new BloomFilterArena<Integer>(
+            new BloomFilter<Integer>(h, 1000, 100), 16);
+        final int nbThreads = 4;
+        final int nbFilters = 1000;
+        final int[][] ids = new int[nbThreads][2 * nbFilters];
+        Thread[] threads = new Thread[nbThreads];
+        for (int t = 0; t < nbThreads; t++) {
+            final int[] threadIds = ids[t];
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < nbFilters; i++) {
+                        threadIds[2 * i] = new BloomFilter<Integer>(h, 1000, 100).getID();
+                        threadIds[2 * i + 1] = arena.newBloomFilter().getID();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        HashSet<Integer> seen = new HashSet<Integer>();
+        for (int[] threadIds : ids)
+            for (int id : threadIds)
+                assertTrue("duplicate ID " + id, seen.add(id));
+        assertEquals(nbThreads * nbFilters, arena.size());
+    }
+
+    @Test
+    public void testSparseBitSet() {
+        System.out.println("sparseBitSet");
+        Random rand = new Random(1);
+        final int size = 1000;
+        for (int run = 0; run < 50; run++) {
+            // from very sparse to dense enough to switch representation
+            final int nbBits = 1 + rand.nextInt(60);
+            BitSet sparse1 = new BitSet(size, true);
+            BitSet dense1 = new BitSet(size);
+            BitSet sparse2 = new BitSet(size, true);
+            BitSet dense2 = new BitSet(size);
+            for (int i = 0; i < nbBits; i++) {
+                int b1 = rand.nextInt(size);
+                int b2 = rand.nextInt(size);
+                sparse1.set(b1);
+                dense1.set(b1);
+                sparse2.set(b2);
+                dense2.set(b2);
+            }
+            sparse1.unset(dense1.nextSetBit(0));
+            dense1.unset(dense1.nextSetBit(0));
+            assertEquals(dense1.cardinality() <= 16 * BitSet.SPARSE_RATIO,
+                         sparse1.isSparse());
+            assertEquals(dense1, sparse1);
+            assertEquals(sparse1, dense1);
+            assertEquals(dense1.hashCode(), sparse1.hashCode());
+            assertEquals(dense1.cardinality(), sparse1.cardinality());
+            for (int i = 0; i < size; i++) {
+                assertEquals(dense1.get(i), sparse1.get(i));
+                assertEquals(dense1.nextSetBit(i), sparse1.nextSetBit(i));
+                assertEquals(dense1.nextUnsetBit(i), sparse1.nextUnsetBit(i));
+            }
+            for (int w = 0; w < 16; w++)
+                assertEquals(dense1.getWord(w), sparse1.getWord(w));
+            // the distances, with any mix of representations
+            BitSet[] a = { sparse1, dense1 };
+            BitSet[] b = { sparse2, dense2 };
+            for (BitSet x : a) {
+                for (BitSet y : b) {
+                    assertEquals(dense1.andcardinality(dense2), x.andcardinality(y));
+                    assertEquals(dense1.orcardinality(dense2), x.orcardinality(y));
+                    assertEquals(dense1.xorcardinality(dense2), x.xorcardinality(y));
+                    final int bounded = x.xorcardinality(y, 3);
+                    if (bounded <= 3)
+                        assertEquals(dense1.xorcardinality(dense2), bounded);
+                    else
+                        assertTrue(dense1.xorcardinality(dense2) > 3);
+                }
+            }
+            // OR aggregation
+            BitSet expected = dense1.clone();
+            expected.or(dense2);
+            for (BitSet x : a) {
+                for (BitSet y : b) {
+                    BitSet union = x.clone();
+                    union.or(y);
+                    assertEquals(expected, union);
+                }
+            }
+            BitSet folded = new BitSet(256, true);
+            BitSet foldedDense = new BitSet(256);
+            folded.orFolded(sparse1);
+            foldedDense.orFolded(dense1);
+            assertEquals(foldedDense, folded);
+            BitSet copy = sparse1.clone();
+            copy.resize(500);
+            BitSet denseCopy = dense1.clone();
+            denseCopy.resize(500);
+            assertEquals(denseCopy, copy);
+            // compress goes back to the sparse representation
+            BitSet recompressed = dense1.clone();
+            assertEquals(sparse1.isSparse(), recompressed.compress());
+            assertEquals(dense1, recompressed);
+        }
+        // sparse filters give the same distances as dense ones
+        Hasher h = new Hasher();
+        BloomFilter<Integer> bf1 = new BloomFilter<Integer>(h, 0.01, 10000, 2);
+        BloomFilter<Integer> bf2 = new BloomFilter<Integer>(h, 0.01, 10000, 2);
+        BloomFilter<Integer> bf2sparse = new BloomFilter<Integer>(h, 0.01, 10000, 2);
+        for (int i = 0; i < 100; i++) {
+            bf1.add(i);
+            bf2.add(i + 50);
+            bf2sparse.add(i + 50);
+        }
+        assertFalse(bf1.getBitSet().isSparse());
+        assertTrue(bf1.compress());
+        assertTrue(bf2sparse.compress());
+        assertEquals(bf2, bf2sparse);
+        assertEquals(bf1.computeDistance(bf2), bf1.computeDistance(bf2sparse), 0.0);
+        for (int i = 50; i < 150; i++)
+            assertTrue(bf2sparse.contains(i));
+        BloomFilter<Integer> union = new BloomFilter<Integer>(h, 0.01, 10000, 2);
+        union.orBloomFilter(bf2);
+        union.compress();
+        union.orBloomFilter(bf1);
+        for (int i = 0; i < 150; i++)
+            assertTrue(union.contains(i));
+        // a sparse filter becomes dense by itself
+        for (int i = 100; i < 10000; i++)
+            bf1.add(i);
+        assertFalse(bf1.getBitSet().isSparse());
+    }
+
     /**
      * Test of add method, of class BloomFilter.
      * @throws Exception
      */
+    @Test
+    public void testBitSetAndAndNot() {
+        System.out.println("bitSetAndAndNot");
+        Random rand = new Random(2);
+        for (int run = 0; run < 50; run++) {
+            // different lengths, sparse and dense
+            final int size1 = 64 * (1 + rand.nextInt(16));
+            final int size2 = 64 * (1 + rand.nextInt(16));
+            final int nbBits = 1 + rand.nextInt(100);
+            java.util.BitSet ref1 = new java.util.BitSet();
+            java.util.BitSet ref2 = new java.util.BitSet();
+            BitSet[] a = { new BitSet(size1, true), new BitSet(size1) };
+            BitSet[] b = { new BitSet(size2, true), new BitSet(size2) };
+            for (int i = 0; i < nbBits; i++) {
+                int b1 = rand.nextInt(size1);
+                int b2 = rand.nextInt(size2);
+                ref1.set(b1);
+                ref2.set(b2);
+                for (BitSet x : a)
+                    x.set(b1);
+                for (BitSet y : b)
+                    y.set(b2);
+            }
+            java.util.BitSet refAnd = (java.util.BitSet) ref1.clone();
+            refAnd.and(ref2);
+            java.util.BitSet refAndNot = (java.util.BitSet) ref1.clone();
+            refAndNot.andNot(ref2);
+            for (BitSet x : a) {
+                for (BitSet y : b) {
+                    BitSet and = x.clone();
+                    and.and(y);
+                    BitSet andNot = x.clone();
+                    andNot.andNot(y);
+                    assertEquals(size1, and.length());
+                    assertEquals(refAnd.cardinality(), and.cardinality());
+                    assertEquals(refAndNot.cardinality(), andNot.cardinality());
+                    for (int i = 0; i < size1; i++) {
+                        assertEquals(refAnd.get(i), and.get(i));
+                        assertEquals(refAndNot.get(i), andNot.get(i));
+                    }
+                }
+            }
+        }
+    }
+
     @Test
     public void testAdd() throws Exception {
         System.out.println("add");
@@ -2,8 +2,12 @@ package mvm.provenance;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import junit.framework.Assert;
 import org.junit.Test;
 import com.skjegstad.utils.BloomFilter;
@@ -90,6 +94,646 @@ public class Bloofi1Test {
 
     }
 
+    @Test
+    public void updateWithDirtyWordsTest() {
+        Hasher h = new Hasher(0);
+        final int M = 1000;
+        final int N = 300;
+        BloomFilter<Integer> proto = new BloomFilter<Integer>(h, 0.01,
+                M, 1);
+        BloomFilterIndex<Integer> f = new BloomFilterIndex<Integer>(
+            2, proto, true);
+        ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+        Random r = new Random(0);
+        for (int k = 0; k < N; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                    0.01, M, 1);
+            bf.setID(k);
+            bf.setDirtyWordTracking(true);
+            for (int i = 0; i < M; i += 10) {
+                bf.add(r.nextInt(N + M));
+            }
+            allbf.add(bf);
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+            bf.clearDirtyWords();
+        }
+        for (BloomFilter<Integer> bf : allbf) {
+            for (int i = 0; i < 5; i++) {
+                bf.add(r.nextInt(N + M));
+            }
+            f.updateIndex(bf, new InsDelUpdateStatistics());
+            // the index leaves the delta to the caller
+            Assert.assertTrue(bf.getDirtyWords().cardinality() > 0);
+            bf.clearDirtyWords();
+        }
+        f.validate();
+        for (int i = 0; i < N + M; ++i) {
+            Integer target = Integer.valueOf(i);
+            List<Integer> ans = f.search(target,
+                                         new SearchStatistics());
+            Collections.sort(ans);
+            Assert.assertEquals(bruteForce(target, allbf), ans);
+        }
+    }
+
+    @Test
+    public void sharedDirtyWordsTest() {
+        Hasher h = new Hasher(0);
+        final int M = 1000;
+        BloomFilter<Integer> proto = new BloomFilter<Integer>(h, 0.01, M, 1);
+        for (int counting = 0; counting < 2; counting++) {
+            NaiveBloomFilterIndex<Integer> naive = new NaiveBloomFilterIndex<Integer>();
+            BloomFilterIndex<Integer> tree = new BloomFilterIndex<Integer>(2,
+                    proto, true, counting == 1, 1);
+            FlatBloomFilterIndex<Integer> flat = new FlatBloomFilterIndex<Integer>();
+            ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+            for (int k = 0; k < 10; k++) {
+                BloomFilter<Integer> bf = new BloomFilter<Integer>(h, 0.01, M,
+                        1);
+                bf.setID(k);
+                bf.setDirtyWordTracking(true);
+                for (int i = 0; i < 20; i++) {
+                    bf.add(k * 20 + i);
+                }
+                allbf.add(bf);
+                naive.insertBloomFilter(bf, new InsDelUpdateStatistics());
+                tree.insertBloomFilter(bf, new InsDelUpdateStatistics());
+                flat.insertBloomFilter(bf, new InsDelUpdateStatistics());
+                bf.clearDirtyWords();
+            }
+            // the same filter held by three indexes, updated one after the
+            // other: each sees the whole delta
+            BloomFilter<Integer> bf = allbf.get(3);
+            bf.add(777777);
+            naive.updateIndex(bf, new InsDelUpdateStatistics());
+            tree.updateIndex(bf, new InsDelUpdateStatistics());
+            flat.updateIndex(bf, new InsDelUpdateStatistics());
+            bf.clearDirtyWords();
+            bf.add(888888);
+            flat.updateIndex(bf, new InsDelUpdateStatistics());
+            tree.updateIndex(bf, new InsDelUpdateStatistics());
+            naive.updateIndex(bf, new InsDelUpdateStatistics());
+            bf.clearDirtyWords();
+            tree.validate();
+            List<BloomIndex<Integer>> indexes = new ArrayList<BloomIndex<Integer>>();
+            indexes.add(naive);
+            indexes.add(tree);
+            indexes.add(flat);
+            for (int target : new int[] { 777777, 888888 }) {
+                List<Integer> expected = bruteForce(target, allbf);
+                Assert.assertTrue(expected.contains(3));
+                for (BloomIndex<Integer> f : indexes) {
+                    List<Integer> ans = f.search(target, new SearchStatistics());
+                    Collections.sort(ans);
+                    Assert.assertEquals(expected, ans);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void addElementTest() {
+        Hasher h = new Hasher(0);
+        final int M = 1000;
+        final int N = 300;
+        BloomFilter<Integer> proto = new BloomFilter<Integer>(h, 0.01,
+                M, 1);
+        BloomFilterIndex<Integer> f = new BloomFilterIndex<Integer>(
+            2, proto, true);
+        ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+        Random r = new Random(0);
+        for (int k = 0; k < N; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                    0.01, M, 1);
+            bf.setID(k);
+            for (int i = 0; i < M; i += 10) {
+                bf.add(r.nextInt(N + M));
+            }
+            allbf.add(bf);
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+        }
+        for (BloomFilter<Integer> bf : allbf) {
+            // the tree holds the filter object, which gets the element too
+            int e = r.nextInt(N + M);
+            Assert.assertEquals(0, f.addElement(bf.getID(), e,
+                                                new InsDelUpdateStatistics()));
+            Assert.assertTrue(bf.contains(e));
+            ArrayList<Integer> batch = new ArrayList<Integer>();
+            for (int i = 0; i < 3; i++)
+                batch.add(r.nextInt(N + M));
+            Assert.assertEquals(0, f.addElements(bf.getID(), batch,
+                                                 new InsDelUpdateStatistics()));
+            Assert.assertTrue(bf.containsAll(batch));
+        }
+        f.validate();
+        for (int i = 0; i < N + M; ++i) {
+            Integer target = Integer.valueOf(i);
+            List<Integer> ans = f.search(target,
+                                         new SearchStatistics());
+            Collections.sort(ans);
+            Assert.assertEquals(bruteForce(target, allbf), ans);
+        }
+    }
+
+    @Test
+    public void countingTest() {
+        Hasher h = new Hasher(0);
+        final int M = 1000;
+        final int N = 300;
+        for (int order = 2; order < 5; ++order) {
+            BloomFilter<Integer> proto = new BloomFilter<Integer>(h, 0.01,
+                    M, 1);
+            BloomFilterIndex<Integer> f = new BloomFilterIndex<Integer>(
+                order, proto, true, true);
+            ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+            Random r = new Random(order);
+            for (int k = 0; k < N; k++) {
+                BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                        0.01, M, 1);
+                bf.setCounting(true);
+                bf.setID(k);
+                for (int i = 0; i < M; i += 10) {
+                    bf.add(r.nextInt(N + M));
+                }
+                allbf.add(bf);
+                f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+            }
+            f.validate();
+            // deletes, including merges and redistributions
+            for (int k = 0; k < N; k += 3) {
+                f.deleteFromIndex(k, new InsDelUpdateStatistics());
+            }
+            ArrayList<BloomFilter<Integer>> kept = new ArrayList<BloomFilter<Integer>>();
+            for (BloomFilter<Integer> bf : allbf)
+                if (bf.getID() % 3 != 0)
+                    kept.add(bf);
+            allbf = kept;
+            f.validate();
+            // element-level changes
+            for (BloomFilter<Integer> bf : allbf) {
+                Assert.assertEquals(0, f.addElement(bf.getID(),
+                                                    r.nextInt(N + M), new InsDelUpdateStatistics()));
+                Assert.assertTrue(f.removeElement(bf.getID(),
+                                                  r.nextInt(N + M), new InsDelUpdateStatistics()) >= 0);
+            }
+            for (BloomFilter<Integer> bf : allbf) {
+                bf.add(r.nextInt(N + M));
+                f.updateIndex(bf, new InsDelUpdateStatistics());
+            }
+            f.validate();
+            for (int i = 0; i < N + M; ++i) {
+                Integer target = Integer.valueOf(i);
+                List<Integer> ans = f.search(target,
+                                             new SearchStatistics());
+                Collections.sort(ans);
+                Assert.assertEquals(bruteForce(target, allbf), ans);
+            }
+            f = new BloomFilterIndex<Integer>(
+                new ArrayList<BloomFilter<Integer>>(allbf), order, true,
+                true, new InsDelUpdateStatistics());
+            f.validate();
+            for (int k = 0; k < allbf.size(); k += 2) {
+                f.removeElement(allbf.get(k).getID(), k,
+                                new InsDelUpdateStatistics());
+            }
+            f.validate();
+        }
+    }
+
+    @Test
+    public void foldingTest() {
+        Hasher h = new Hasher(0);
+        final int M = 1000;
+        final int N = 500;
+        long unfoldedBits = 0;
+        for (int foldFactor = 1; foldFactor <= 8; foldFactor *= 2) {
+            BloomFilter<Integer> proto = new BloomFilter<Integer>(h, 0.01,
+                    M, 1);
+            BloomFilterIndex<Integer> f = new BloomFilterIndex<Integer>(
+                2, proto, true, false, foldFactor);
+            ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+            Random r = new Random(0);
+            for (int k = 0; k < N; k++) {
+                BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                        0.01, M, 1);
+                bf.setID(k);
+                for (int i = 0; i < 20; i++) {
+                    bf.add(k * 20 + i);
+                }
+                allbf.add(bf);
+                f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+            }
+            f.validate();
+            // the upper levels get smaller (the shape of the tree is
+            // randomized, so we only compare with the unfolded tree)
+            if (foldFactor == 1)
+                unfoldedBits = f.getNodeFilterBits();
+            else
+                Assert.assertTrue(f.getNodeFilterBits() < unfoldedBits);
+            SearchStatistics stat = new SearchStatistics();
+            for (int i = 0; i < N * 20; ++i) {
+                Integer target = Integer.valueOf(i);
+                List<Integer> ans = f.search(target, stat);
+                Collections.sort(ans);
+                Assert.assertEquals(bruteForce(target, allbf), ans);
+            }
+            // deletes, updates and element additions
+            for (int k = 0; k < N; k += 4) {
+                f.deleteFromIndex(k, new InsDelUpdateStatistics());
+            }
+            ArrayList<BloomFilter<Integer>> kept = new ArrayList<BloomFilter<Integer>>();
+            for (BloomFilter<Integer> bf : allbf)
+                if (bf.getID() % 4 != 0)
+                    kept.add(bf);
+            allbf = kept;
+            for (BloomFilter<Integer> bf : allbf) {
+                if (bf.getID() % 2 == 0) {
+                    bf.setDirtyWordTracking(true);
+                }
+                bf.add(r.nextInt(N * 20));
+                f.updateIndex(bf, new InsDelUpdateStatistics());
+                f.addElement(bf.getID(), r.nextInt(N * 20),
+                             new InsDelUpdateStatistics());
+            }
+            f.validate();
+            for (int i = 0; i < N * 20; ++i) {
+                Integer target = Integer.valueOf(i);
+                List<Integer> ans = f.search(target, new SearchStatistics());
+                Collections.sort(ans);
+                Assert.assertEquals(bruteForce(target, allbf), ans);
+            }
+            f = new BloomFilterIndex<Integer>(
+                new ArrayList<BloomFilter<Integer>>(allbf), 2, true,
+                false, foldFactor, new InsDelUpdateStatistics());
+            f.validate();
+            for (int i = 0; i < N * 20; i += 7) {
+                Integer target = Integer.valueOf(i);
+                List<Integer> ans = f.search(target, new SearchStatistics());
+                Collections.sort(ans);
+                Assert.assertEquals(bruteForce(target, allbf), ans);
+            }
+        }
+    }
+
+    @Test
+    public void distanceSplitTest() {
+        Hasher h = new Hasher(0);
+        final int M = 1000;
+        final int N = 500;
+        for (int order = 2; order < 6; ++order) {
+            BloomFilter<Integer> proto = new BloomFilter<Integer>(h, 0.01,
+                    M, 1);
+            BloomFilterIndex<Integer> f = new BloomFilterIndex<Integer>(
+                order, proto, true);
+            f.setDistanceSplit(true);
+            ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+            Random r = new Random(order);
+            for (int k = 0; k < N; k++) {
+                BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                        0.01, M, 1);
+                bf.setID(k);
+                // random ranges, so that some filters are similar
+                int start = r.nextInt(N * 10);
+                for (int i = 0; i < 20; i++) {
+                    bf.add(start + i);
+                }
+                allbf.add(bf);
+                f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+            }
+            f.validate();
+            for (int k = 0; k < N; k += 5) {
+                f.deleteFromIndex(k, new InsDelUpdateStatistics());
+            }
+            ArrayList<BloomFilter<Integer>> kept = new ArrayList<BloomFilter<Integer>>();
+            for (BloomFilter<Integer> bf : allbf)
+                if (bf.getID() % 5 != 0)
+                    kept.add(bf);
+            allbf = kept;
+            f.validate();
+            for (int i = 0; i < N * 10; ++i) {
+                Integer target = Integer.valueOf(i);
+                List<Integer> ans = f.search(target, new SearchStatistics());
+                Collections.sort(ans);
+                Assert.assertEquals(bruteForce(target, allbf), ans);
+            }
+        }
+    }
+
+    @Test
+    public void reinsertAndMaintainTest() {
+        Hasher h = new Hasher(0);
+        final int M = 1000;
+        final int N = 500;
+        for (int order = 2; order < 5; ++order) {
+            boolean counting = order == 3;
+            BloomFilter<Integer> proto = new BloomFilter<Integer>(h, 0.01,
+                    M, 1);
+            BloomFilterIndex<Integer> f = new BloomFilterIndex<Integer>(
+                order, proto, true, counting);
+            f.setForcedReinsert(true);
+            ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+            Random r = new Random(order);
+            InsDelUpdateStatistics insStat = new InsDelUpdateStatistics();
+            for (int k = 0; k < N; k++) {
+                BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                        0.01, M, 1);
+                bf.setID(k);
+                int start = r.nextInt(N * 10);
+                for (int i = 0; i < 20; i++) {
+                    bf.add(start + i);
+                }
+                allbf.add(bf);
+                f.insertBloomFilter(bf, insStat);
+            }
+            Assert.assertTrue(insStat.nbReinserts > 0);
+            f.validate();
+            for (int k = 0; k < N; k += 5) {
+                f.deleteFromIndex(k, new InsDelUpdateStatistics());
+            }
+            ArrayList<BloomFilter<Integer>> kept = new ArrayList<BloomFilter<Integer>>();
+            for (BloomFilter<Integer> bf : allbf)
+                if (bf.getID() % 5 != 0)
+                    kept.add(bf);
+            allbf = kept;
+            f.validate();
+            SearchStatistics before = new SearchStatistics();
+            for (int i = 0; i < N * 10; ++i) {
+                f.search(Integer.valueOf(i), before);
+            }
+            InsDelUpdateStatistics maintStat = new InsDelUpdateStatistics();
+            for (int step = 0; step < 5; step++) {
+                f.maintain(4, maintStat);
+                f.validate();
+            }
+            SearchStatistics after = new SearchStatistics();
+            for (int i = 0; i < N * 10; ++i) {
+                Integer target = Integer.valueOf(i);
+                List<Integer> ans = f.search(target, after);
+                Collections.sort(ans);
+                Assert.assertEquals(bruteForce(target, allbf), ans);
+            }
+            // re-clustering does not make the searches more expensive
+            Assert.assertTrue(maintStat.nbRebuilds > 0);
+            Assert.assertTrue(after.nbBFChecks <= before.nbBFChecks);
+        }
+    }
+
+    @Test
+    public void sketchRoutingTest() {
+        Hasher h = new Hasher(0);
+        final int M = 1000;
+        final int N = 500;
+        for (int order = 2; order < 5; ++order) {
+            boolean counting = order == 3;
+            BloomFilter<Integer> proto = new BloomFilter<Integer>(h, 0.01,
+                    M, 1);
+            BloomFilterIndex<Integer> f = new BloomFilterIndex<Integer>(
+                order, proto, true, counting);
+            // order 2 routes on sketches only, the others rerank
+            f.setSketchRouting(64, order == 2 ? 1 : 2);
+            ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+            Random r = new Random(order);
+            InsDelUpdateStatistics insStat = new InsDelUpdateStatistics();
+            for (int k = 0; k < N; k++) {
+                BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                        0.01, M, 1);
+                bf.setID(k);
+                int start = r.nextInt(N * 10);
+                for (int i = 0; i < 20; i++) {
+                    bf.add(start + i);
+                }
+                allbf.add(bf);
+                f.insertBloomFilter(bf, insStat);
+            }
+            f.validate();
+            for (int k = 0; k < N; k += 3) {
+                f.deleteFromIndex(k, new InsDelUpdateStatistics());
+            }
+            ArrayList<BloomFilter<Integer>> kept = new ArrayList<BloomFilter<Integer>>();
+            for (BloomFilter<Integer> bf : allbf)
+                if (bf.getID() % 3 != 0)
+                    kept.add(bf);
+            allbf = kept;
+            f.validate();
+            for (int i = 0; i < N * 10; ++i) {
+                Integer target = Integer.valueOf(i);
+                List<Integer> ans = f.search(target, new SearchStatistics());
+                Collections.sort(ans);
+                Assert.assertEquals(bruteForce(target, allbf), ans);
+            }
+        }
+    }
+
+    @Test
+    public void sparseLeavesTest() {
+        Hasher h = new Hasher(0);
+        // 20 elements in filters sized for 1000: the leaves are sparse
+        final int M = 1000;
+        final int N = 500;
+        for (int order = 2; order < 5; ++order) {
+            boolean counting = order == 3;
+            BloomFilter<Integer> proto = new BloomFilter<Integer>(h, 0.01,
+                    M, 1);
+            BloomFilterIndex<Integer> f = new BloomFilterIndex<Integer>(
+                order, proto, true, counting);
+            BloomFilterIndex<Integer> sparse = new BloomFilterIndex<Integer>(
+                order, proto, true, counting);
+            sparse.setSparseLeaves(true);
+            ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+            ArrayList<BloomFilter<Integer>> sparsebf = new ArrayList<BloomFilter<Integer>>();
+            Random r = new Random(order);
+            for (int k = 0; k < N; k++) {
+                BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                        0.01, M, 1);
+                BloomFilter<Integer> copy = new BloomFilter<Integer>(h,
+                        0.01, M, 1);
+                bf.setID(k);
+                copy.setID(k);
+                int start = r.nextInt(N * 10);
+                for (int i = 0; i < 20; i++) {
+                    bf.add(start + i);
+                    copy.add(start + i);
+                }
+                allbf.add(bf);
+                sparsebf.add(copy);
+                f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+                sparse.insertBloomFilter(copy, new InsDelUpdateStatistics());
+                Assert.assertTrue(copy.getBitSet().isSparse());
+            }
+            for (int k = 0; k < N; k += 3) {
+                f.deleteFromIndex(k, new InsDelUpdateStatistics());
+                sparse.deleteFromIndex(k, new InsDelUpdateStatistics());
+            }
+            // enough new elements to make some leaves dense again
+            for (int k = 1; k < N; k += 7) {
+                for (int i = 0; i < 200; i++) {
+                    f.addElement(k, N * 10 + i, new InsDelUpdateStatistics());
+                    sparse.addElement(k, N * 10 + i, new InsDelUpdateStatistics());
+                }
+            }
+            Assert.assertFalse(sparsebf.get(1).getBitSet().isSparse());
+            f.validate();
+            sparse.validate();
+            // the same tree, with the same answers after the same checks
+            Assert.assertEquals(withoutNodeIDs(f.toString(), N),
+                                withoutNodeIDs(sparse.toString(), N));
+            for (int i = 0; i < N * 11; ++i) {
+                Integer target = Integer.valueOf(i);
+                SearchStatistics fs = new SearchStatistics();
+                SearchStatistics ss = new SearchStatistics();
+                Assert.assertEquals(f.search(target, fs),
+                                    sparse.search(target, ss));
+                Assert.assertEquals(fs.nbBFChecks, ss.nbBFChecks);
+            }
+            sparse.setSparseLeaves(false);
+            Assert.assertFalse(sparsebf.get(2).getBitSet().isSparse());
+        }
+    }
+
+    @Test
+    public void parallelBulkLoadTest() {
+        Hasher h = new Hasher(0);
+        final int M = 1000;
+        final int N = 3000;
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int order = 1; order < 6; ++order) {
+                boolean counting = order == 3;
+                int foldFactor = order == 4 ? 2 : 1;
+                ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+                Random r = new Random(order);
+                for (int k = 0; k < N; k++) {
+                    BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                            0.01, M, 1);
+                    bf.setID(k);
+                    int start = r.nextInt(N * 10);
+                    for (int i = 0; i < 20; i++) {
+                        bf.add(start + i);
+                    }
+                    allbf.add(bf);
+                }
+                InsDelUpdateStatistics seqStat = new InsDelUpdateStatistics();
+                BloomFilterIndex<Integer> seq = new BloomFilterIndex<Integer>(
+                    allbf, order, true, counting, foldFactor, seqStat);
+                InsDelUpdateStatistics parStat = new InsDelUpdateStatistics();
+                BloomFilterIndex<Integer> par = new BloomFilterIndex<Integer>(
+                    allbf, order, true, counting, foldFactor, pool, parStat);
+                par.validate();
+                Assert.assertEquals(seqStat.nbSplits, parStat.nbSplits);
+                Assert.assertEquals(seq.getHeight(), par.getHeight());
+                Assert.assertEquals(seq.getSize(), par.getSize());
+                Assert.assertEquals(withoutNodeIDs(seq.toString(), N),
+                                    withoutNodeIDs(par.toString(), N));
+                for (int i = 0; i < N * 10; i += 7) {
+                    Integer target = Integer.valueOf(i);
+                    List<Integer> ans = par.search(target, new SearchStatistics());
+                    Collections.sort(ans);
+                    Assert.assertEquals(bruteForce(target, allbf), ans);
+                }
+                // the parallel index can still be updated (bulk loads of
+                // order 1 leave nodes with a single child, which deletes
+                // do not handle)
+                if (order == 1) {
+                    continue;
+                }
+                for (int k = 0; k < N; k += 4) {
+                    par.deleteFromIndex(k, new InsDelUpdateStatistics());
+                }
+                par.validate();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // the IDs of the values of the non-leaf nodes depend on the order they
+    // were created in
+    private static String withoutNodeIDs(String tree, int nbLeaves) {
+        StringBuffer sb = new StringBuffer();
+        Matcher m = Pattern.compile("ID:(\\d+):").matcher(tree);
+        while (m.find()) {
+            m.appendReplacement(sb, Integer.parseInt(m.group(1)) < nbLeaves ? m.group()
+                                : "ID:node:");
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    @Test
+    public void nearestTest() {
+        Hasher h = new Hasher(0);
+        final int M = 1000;
+        final int N = 500;
+        for (int metric = 1; metric <= 3; metric++) {
+            for (int foldFactor = 1; foldFactor <= 4; foldFactor *= 4) {
+                BloomFilter<Integer> proto = new BloomFilter<Integer>(h, 0.01,
+                        M, metric);
+                BloomFilterIndex<Integer> f = new BloomFilterIndex<Integer>(
+                    3, proto, true, false, foldFactor);
+                Assert.assertTrue(f.searchNearest(proto, 3,
+                                                  new SearchStatistics()).isEmpty());
+                ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+                Random r = new Random(metric);
+                for (int k = 0; k < N; k++) {
+                    BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                            0.01, M, metric);
+                    bf.setID(k);
+                    // clusters of similar filters
+                    for (int i = 0; i < 20; i++) {
+                        bf.add((k % 25) * 100 + r.nextInt(30));
+                    }
+                    allbf.add(bf);
+                    f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+                }
+                for (int k = 0; k < N; k += 5) {
+                    f.deleteFromIndex(k, new InsDelUpdateStatistics());
+                }
+                ArrayList<BloomFilter<Integer>> kept = new ArrayList<BloomFilter<Integer>>();
+                for (BloomFilter<Integer> bf : allbf)
+                    if (bf.getID() % 5 != 0)
+                        kept.add(bf);
+                SearchStatistics stat = new SearchStatistics();
+                for (int q = 0; q < 50; q++) {
+                    BloomFilter<Integer> probe = new BloomFilter<Integer>(h,
+                            0.01, M, metric);
+                    for (int i = 0; i < 20; i++) {
+                        probe.add(r.nextInt(25) * 100 + r.nextInt(30));
+                    }
+                    for (int k = 0; k <= 10; k += 5) {
+                        Assert.assertEquals(bruteForceNearest(probe, k, kept),
+                                            f.searchNearest(probe, k, stat));
+                    }
+                }
+                // the lower bounds prune some of the 150 scans of the filters
+                Assert.assertTrue(stat.nbBFChecks < 150 * kept.size());
+            }
+        }
+    }
+
+    /**
+     * Return the IDs of the k filters closest to the probe, by increasing
+     * distance then increasing ID
+     */
+    public static List<Integer> bruteForceNearest(
+        final BloomFilter<Integer> probe, int k,
+        ArrayList<BloomFilter<Integer>> allbf) {
+        ArrayList<BloomFilter<Integer>> sorted = new ArrayList<BloomFilter<Integer>>(
+            allbf);
+        Collections.sort(sorted, new Comparator<BloomFilter<Integer>>() {
+            @Override
+            public int compare(BloomFilter<Integer> bf1, BloomFilter<Integer> bf2) {
+                final int c = Double.compare(probe.computeDistance(bf1),
+                                             probe.computeDistance(bf2));
+                return c != 0 ? c : bf1.getID() - bf2.getID();
+            }
+        });
+        List<Integer> a = new ArrayList<Integer>();
+        for (int i = 0; i < k && i < sorted.size(); ++i) {
+            a.add(sorted.get(i).getID());
+        }
+        return a;
+    }
+
     @Test
     public void basicTest() {
         for (int order = 1; order < 10; ++order) {
@@ -0,0 +1,184 @@
+package mvm.provenance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Assert;
+import org.junit.Test;
+import com.skjegstad.utils.BloomFilter;
+
+@SuppressWarnings({ "static-method" })
+public class CompactTest {
+
+    public void ctest(int order, int foldFactor) {
+        final int N = 1000;
+        BloomFilterIndex<Integer> f = newIndex(order, foldFactor, N, order);
+        for (int k = 0; k < N; k += 5) {
+            f.deleteFromIndex(k, new InsDelUpdateStatistics());
+        }
+        CompactBloomFilterIndex<Integer> c = f.compact();
+        Assert.assertEquals(f.getHeight(), c.getHeight());
+        Assert.assertEquals(f.getSize(), c.getSize());
+        Assert.assertEquals(f.getNbChildrenRoot(), c.getNbChildrenRoot());
+        Assert.assertEquals(f.getBloomFilterSize(), c.getBloomFilterSize());
+        Assert.assertEquals(f.getIsRootAllOne(), c.getIsRootAllOne());
+        Assert.assertEquals(f.getIDs(), c.getIDs());
+        for (int i = 0; i < N * 10; ++i) {
+            Integer target = Integer.valueOf(i);
+            SearchStatistics fs = new SearchStatistics();
+            SearchStatistics cs = new SearchStatistics();
+            List<Integer> ans = f.search(target, fs);
+            // same results in the same order, after checking the same nodes
+            Assert.assertEquals(ans, c.search(target, cs));
+            Assert.assertEquals(fs.nbBFChecks, cs.nbBFChecks);
+        }
+        IndexChecks.checkMultiKey(f, N * 10);
+        IndexChecks.checkMultiKey(c, N * 10);
+        IndexChecks.checkLimit(f, N * 10);
+        IndexChecks.checkRestricted(f, N * 10);
+        IndexChecks.checkDeadline(f, N * 10);
+        IndexChecks.checkLimit(c, N * 10);
+        IndexChecks.checkRestricted(c, N * 10);
+        IndexChecks.checkDeadline(c, N * 10);
+        IdSet few = new IdSet();
+        for (int id = 1; id < N; id += 50) {
+            few.add(id);
+        }
+        for (int i = 0; i < N * 10; i += 7) {
+            SearchStatistics restricted = new SearchStatistics();
+            SearchStatistics all = new SearchStatistics();
+            f.search(i, few, restricted);
+            f.search(i, all);
+            // only the subtrees of the allowed leaves are checked
+            Assert.assertTrue(restricted.nbBFChecks <= all.nbBFChecks);
+        }
+        for (int i = 0; i < N * 10; i += 7) {
+            Integer target = Integer.valueOf(i);
+            SearchStatistics fs = new SearchStatistics();
+            SearchStatistics cs = new SearchStatistics();
+            List<Integer> ans = f.searchLimit(target, 1, fs);
+            Assert.assertEquals(ans, c.searchLimit(target, 1, cs));
+            // both stop going down the tree at the first match
+            Assert.assertEquals(fs.nbBFChecks, cs.nbBFChecks);
+            SearchStatistics all = new SearchStatistics();
+            f.search(target, all);
+            Assert.assertTrue(fs.nbBFChecks <= all.nbBFChecks);
+            // count checks the same nodes as search
+            SearchStatistics counted = new SearchStatistics();
+            Assert.assertEquals(f.search(target, new SearchStatistics()).size(),
+                                c.count(target, counted));
+            Assert.assertEquals(all.nbBFChecks, counted.nbBFChecks);
+        }
+        for (int i = 0; i < N * 10; i += 7) {
+            List<Integer> keys = Arrays.asList(i, i + 1, i + 2);
+            SearchStatistics fs = new SearchStatistics();
+            SearchStatistics cs = new SearchStatistics();
+            Assert.assertEquals(f.searchAll(keys, fs), c.searchAll(keys, cs));
+            Assert.assertEquals(fs.nbBFChecks, cs.nbBFChecks);
+            Assert.assertEquals(f.searchAny(keys, fs), c.searchAny(keys, cs));
+        }
+        // the copy does not change with the index
+        f.deleteFromIndex(1, new InsDelUpdateStatistics());
+        Assert.assertTrue(c.getIDs().contains(1));
+    }
+
+    /**
+     * Return a Bloofi tree of nbFilters filters of 20 consecutive keys each
+     */
+    private static BloomFilterIndex<Integer> newIndex(int order,
+            int foldFactor, int nbFilters, long seed) {
+        Hasher h = new Hasher(0);
+        BloomFilter<Integer> proto = new BloomFilter<Integer>(h, 0.01, 1000, 1);
+        BloomFilterIndex<Integer> f = new BloomFilterIndex<Integer>(order,
+                proto, true, false, foldFactor);
+        Random r = new Random(seed);
+        for (int k = 0; k < nbFilters; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h, 0.01, 1000,
+                    1);
+            bf.setID(k);
+            int start = r.nextInt(nbFilters * 10);
+            for (int i = 0; i < 20; i++) {
+                bf.add(start + i);
+            }
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+        }
+        return f;
+    }
+
+    @Test
+    public void basicTest() {
+        for (int order = 2; order < 6; ++order) {
+            ctest(order, 1);
+        }
+        ctest(2, 4);
+    }
+
+    @Test
+    public void readOnlyTest() {
+        Hasher h = new Hasher(0);
+        BloomFilter<Integer> proto = new BloomFilter<Integer>(h, 0.01, 1000,
+                1);
+        BloomFilterIndex<Integer> f = new BloomFilterIndex<Integer>(2,
+                proto, true);
+        CompactBloomFilterIndex<Integer> c = f.compact();
+        Assert.assertEquals(0, c.getSize());
+        Assert.assertTrue(c.search(1, new SearchStatistics()).isEmpty());
+        try {
+            c.insertBloomFilter(proto, new InsDelUpdateStatistics());
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            c.deleteFromIndex(1, new InsDelUpdateStatistics());
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        ArrayList<Integer> elements = new ArrayList<Integer>();
+        elements.add(1);
+        try {
+            c.addElements(1, elements, new InsDelUpdateStatistics());
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void freezeTest() throws InterruptedException {
+        final int N = 1000;
+        BloomFilterIndex<Integer> f = newIndex(3, 1, N, 0);
+        final BloomIndex<Integer> frozen = f.freeze();
+        Assert.assertSame(frozen, frozen.freeze());
+        final List<List<Integer>> expected = new ArrayList<List<Integer>>();
+        for (int i = 0; i < N * 10; ++i) {
+            expected.add(f.search(Integer.valueOf(i), new SearchStatistics()));
+        }
+        // the threads share the frozen index with no locking
+        final AtomicInteger nbErrors = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = first; i < expected.size(); i += 2) {
+                        if (!expected.get(i).equals(frozen.search(
+                                                        Integer.valueOf(i), new SearchStatistics()))) {
+                            nbErrors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, nbErrors.get());
+    }
+
+}
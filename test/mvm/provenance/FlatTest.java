@@ -1,9 +1,12 @@
 package mvm.provenance;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import junit.framework.Assert;
 import org.junit.Test;
 import com.skjegstad.utils.BloomFilter;
@@ -59,7 +62,6 @@ public class FlatTest {
     }
 
 
-
     @Test
     public void basicTestWithDeletion() {
         FlatBloomFilterIndex<Integer> f = new FlatBloomFilterIndex<Integer>();
@@ -125,7 +127,6 @@ public class FlatTest {
             }
         }
 
-
     }
     @Test
     public void BatchTestWithDeletion() {
@@ -192,8 +193,549 @@ public class FlatTest {
             }
         }
 
+    }
+    @Test
+    public void bulkDeleteAndReplaceTest() {
+        FlatBloomFilterIndex<Integer> f = new FlatBloomFilterIndex<Integer>();
+        FlatBFMergeBatch<Integer> fm = new FlatBFMergeBatch<Integer>();
+        Hasher h = new Hasher();
+        ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+        final int M = 1000;
+        final int N = 1000;
+        Random r = new Random(0);
+        for (int k = 0; k < N; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                    0.1, M, 1);
+            bf.setID(k);
+            for (int i = 0; i < M; i += 3) {
+                bf.add(r.nextInt(N + M));
+            }
+            allbf.add(bf);
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+            fm.insertBloomFilter(bf, new InsDelUpdateStatistics());
+        }
+        // every third filter, plus two whole blocks
+        ArrayList<BloomFilter<Integer>> toremove = new ArrayList<BloomFilter<Integer>>();
+        for (int k = 0; k < N; k++) {
+            if ((k % 3 == 0) || (k >= 128 && k < 256) || (k >= 960))
+                toremove.add(allbf.get(k));
+        }
+        int[] ids = new int[toremove.size() + 1];
+        for (int k = 0; k < toremove.size(); k++)
+            ids[k] = toremove.get(k).getID();
+        ids[toremove.size()] = N + 1; // unknown ids are ignored
+        InsDelUpdateStatistics stat = new InsDelUpdateStatistics();
+        Assert.assertEquals(toremove.size(), f.deleteAll(ids, stat));
+        // 13 blocks cleared, blocks 2, 3 and 15 removed and 4 to 14 moved
+        Assert.assertEquals(13 + 11, stat.nbBFNodesAccessed);
+        stat = new InsDelUpdateStatistics();
+        Assert.assertEquals(toremove.size(), fm.deleteAll(ids, stat));
+        Assert.assertEquals(13 + 11, stat.nbBFNodesAccessed);
+        allbf.removeAll(toremove);
+        Assert.assertEquals(allbf.size(), f.getSize());
+        Assert.assertEquals(allbf.size(), fm.getSize());
+        checkAll(f, allbf, N + M);
+        checkAll(fm, allbf, N + M);
+        // single deletes emptying a block still work after the bulk delete
+        for (int k = 64; k < 128; k++) {
+            if (k % 3 != 0) {
+                f.deleteFromIndex(k, new InsDelUpdateStatistics());
+                fm.deleteFromIndex(k, new InsDelUpdateStatistics());
+                allbf.remove(findById(allbf, k));
+            }
+        }
+        checkAll(f, allbf, N + M);
+        checkAll(fm, allbf, N + M);
+        // replace half of the remaining filters with new content
+        ArrayList<BloomFilter<Integer>> replacements = new ArrayList<BloomFilter<Integer>>();
+        for (int k = 0; k < allbf.size(); k += 2) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                    0.1, M, 1);
+            bf.setID(allbf.get(k).getID());
+            for (int i = 0; i < M; i += 3) {
+                bf.add(r.nextInt(N + M));
+            }
+            replacements.add(bf);
+            allbf.set(k, bf);
+        }
+        Assert.assertEquals(replacements.size(), f.replaceAll(replacements));
+        Assert.assertEquals(replacements.size(), fm.replaceAll(replacements));
+        checkAll(f, allbf, N + M);
+        checkAll(fm, allbf, N + M);
+    }
+
+    @Test
+    public void updateWithDirtyWordsTest() {
+        FlatBloomFilterIndex<Integer> f = new FlatBloomFilterIndex<Integer>();
+        Hasher h = new Hasher();
+        ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+        final int M = 1000;
+        final int N = 200;
+        Random r = new Random(0);
+        for (int k = 0; k < N; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                    0.1, M, 1);
+            bf.setID(k);
+            bf.setDirtyWordTracking(true);
+            for (int i = 0; i < M; i += 10) {
+                bf.add(r.nextInt(N + M));
+            }
+            allbf.add(bf);
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+            bf.clearDirtyWords();
+        }
+        // additions only: updateIndex
+        for (BloomFilter<Integer> bf : allbf) {
+            for (int i = 0; i < 5; i++) {
+                bf.add(r.nextInt(N + M));
+            }
+            f.updateIndex(bf, new InsDelUpdateStatistics());
+            // the index leaves the delta to the caller
+            Assert.assertTrue(bf.getDirtyWords().cardinality() > 0);
+            bf.clearDirtyWords();
+        }
+        checkAll(f, allbf, N + M);
+        // arbitrary changes: replaceIndex
+        for (BloomFilter<Integer> bf : allbf) {
+            bf.clear();
+            bf.add(r.nextInt(N + M));
+            f.replaceIndex(bf);
+        }
+        checkAll(f, allbf, N + M);
+    }
+
+    @Test
+    public void addElementTest() {
+        FlatBloomFilterIndex<Integer> f = new FlatBloomFilterIndex<Integer>();
+        FlatBFMergeBatch<Integer> fm = new FlatBFMergeBatch<Integer>();
+        Hasher h = new Hasher();
+        ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+        final int M = 1000;
+        final int N = 200;
+        Random r = new Random(0);
+        for (int k = 0; k < N; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                    0.1, M, 1);
+            bf.setID(k);
+            for (int i = 0; i < M; i += 10) {
+                bf.add(r.nextInt(N + M));
+            }
+            allbf.add(bf);
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+            fm.insertBloomFilter(bf, new InsDelUpdateStatistics());
+        }
+        for (BloomFilter<Integer> bf : allbf) {
+            // the Flat indexes do not update the filter object
+            int e = r.nextInt(N + M);
+            bf.add(e);
+            Assert.assertEquals(0, f.addElement(bf.getID(), e,
+                                                new InsDelUpdateStatistics()));
+            Assert.assertEquals(0, fm.addElement(bf.getID(), e,
+                                                 new InsDelUpdateStatistics()));
+            ArrayList<Integer> batch = new ArrayList<Integer>();
+            for (int i = 0; i < 3; i++)
+                batch.add(r.nextInt(N + M));
+            bf.addAll(batch);
+            Assert.assertEquals(0, f.addElements(bf.getID(), batch,
+                                                 new InsDelUpdateStatistics()));
+            Assert.assertEquals(0, fm.addElements(bf.getID(), batch,
+                                                  new InsDelUpdateStatistics()));
+        }
+        Assert.assertEquals(-1, f.addElement(N + 1, 0,
+                                             new InsDelUpdateStatistics()));
+        checkAll(f, allbf, N + M);
+        checkAll(fm, allbf, N + M);
+    }
+
+    @Test
+    public void compressBlocksTest() {
+        FlatBloomFilterIndex<Integer> f = new FlatBloomFilterIndex<Integer>();
+        FlatBloomFilterIndex<Integer> c = new FlatBloomFilterIndex<Integer>();
+        Hasher h = new Hasher();
+        ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+        final int M = 1000;
+        final int N = 1000;
+        Random r = new Random(0);
+        for (int k = 0; k < N; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                    0.01, M, 1);
+            bf.setID(k);
+            // sparse filters, full ones for the last blocks
+            if (k < 640) {
+                for (int i = 0; i < 5; i++) {
+                    bf.add(r.nextInt(N + M));
+                }
+            } else {
+                for (int i = 0; i < M; i++) {
+                    bf.add(r.nextInt());
+                }
+            }
+            allbf.add(bf);
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+            c.insertBloomFilter(bf, new InsDelUpdateStatistics());
+        }
+        Assert.assertEquals(10, c.compressBlocks());
+        Assert.assertEquals(16, c.compressBlocks(1.0));
+        Assert.assertEquals(f.getBloomFilterSize(), c.getBloomFilterSize());
+        checkSame(f, c, N + M);
+        Assert.assertEquals(f.freeze().search(1, new SearchStatistics()),
+                            c.freeze().search(1, new SearchStatistics()));
+
+        // the modified blocks are unpacked
+        for (int k = 0; k < N; k += 3) {
+            f.deleteFromIndex(k, new InsDelUpdateStatistics());
+            c.deleteFromIndex(k, new InsDelUpdateStatistics());
+        }
+        checkSame(f, c, N + M);
+        c.compressBlocks(1.0);
+        for (int k = 1; k < N; k += 5) {
+            f.addElement(k, N + M + k, new InsDelUpdateStatistics());
+            c.addElement(k, N + M + k, new InsDelUpdateStatistics());
+        }
+        BloomFilter<Integer> bf = allbf.get(2);
+        bf.add(2 * (N + M));
+        f.updateIndex(bf, new InsDelUpdateStatistics());
+        c.updateIndex(bf, new InsDelUpdateStatistics());
+        checkSame(f, c, 2 * (N + M) + 1);
+        c.compressBlocks(1.0);
+        int[] ids = { 1, 2, 4, 5 };
+        f.deleteAll(ids, new InsDelUpdateStatistics());
+        c.deleteAll(ids, new InsDelUpdateStatistics());
+        BloomFilter<Integer> bf1 = new BloomFilter<Integer>(h, 0.01, M, 1);
+        bf1.setID(N);
+        f.insertBloomFilter(bf1, new InsDelUpdateStatistics());
+        c.insertBloomFilter(bf1, new InsDelUpdateStatistics());
+        checkSame(f, c, 2 * (N + M) + 1);
+    }
+
+    private static void checkSame(FlatBloomFilterIndex<Integer> f,
+                                  FlatBloomFilterIndex<Integer> c, int maxValue) {
+        for (int i = 0; i < maxValue; ++i) {
+            Integer target = Integer.valueOf(i);
+            // same results in the same order
+            Assert.assertEquals(f.search(target, new SearchStatistics()),
+                                c.search(target, new SearchStatistics()));
+        }
+    }
+
+    @Test
+    public void freezeTest() {
+        FlatBloomFilterIndex<Integer> f = new FlatBloomFilterIndex<Integer>();
+        FlatBFMergeBatch<Integer> fm = new FlatBFMergeBatch<Integer>();
+        Hasher h = new Hasher();
+        ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+        final int M = 1000;
+        final int N = 1000;
+        Random r = new Random(0);
+        for (int k = 0; k < N; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                    0.1, M, 1);
+            bf.setID(k);
+            for (int i = 0; i < M; i += 3) {
+                bf.add(r.nextInt(N + M));
+            }
+            allbf.add(bf);
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+            fm.insertBloomFilter(bf, new InsDelUpdateStatistics());
+        }
+        // leave free slots, and a whole free block
+        for (int k = 0; k < N; k++) {
+            if ((k % 3 == 0) || (k >= 64 && k < 128)) {
+                f.deleteFromIndex(k, new InsDelUpdateStatistics());
+                fm.deleteFromIndex(k, new InsDelUpdateStatistics());
+            }
+        }
+        FrozenFlatBloomFilterIndex<Integer> frozen = f.freeze();
+        FrozenFlatBloomFilterIndex<Integer> frozenm = fm.freeze();
+        Assert.assertEquals(f.getIDs(), frozen.getIDs());
+        Assert.assertEquals(fm.getIDs(), frozenm.getIDs());
+        Assert.assertEquals(f.getSize(), frozen.getSize());
+        Assert.assertEquals(f.getBloomFilterSize(),
+                            frozen.getBloomFilterSize());
+        Assert.assertSame(frozen, frozen.freeze());
+        for (int i = 0; i < N + M; ++i) {
+            Integer target = Integer.valueOf(i);
+            // same results in the same order
+            Assert.assertEquals(f.search(target, new SearchStatistics()),
+                                frozen.search(target, new SearchStatistics()));
+            Assert.assertEquals(fm.search(target, new SearchStatistics()),
+                                frozenm.search(target, new SearchStatistics()));
+        }
+        // the copy does not change with the index
+        f.deleteFromIndex(1, new InsDelUpdateStatistics());
+        Assert.assertTrue(frozen.getIDs().contains(1));
+        try {
+            frozen.insertBloomFilter(allbf.get(0),
+                                     new InsDelUpdateStatistics());
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            frozenm.updateIndex(allbf.get(1), new InsDelUpdateStatistics());
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    private static BloomFilter<Integer> findById(
+        ArrayList<BloomFilter<Integer>> allbf, int id) {
+        for (BloomFilter<Integer> bf : allbf)
+            if (bf.getID() == id)
+                return bf;
+        return null;
+    }
+
+    private static void checkAll(BloomIndex<Integer> f,
+                                 ArrayList<BloomFilter<Integer>> allbf, int maxValue) {
+        for (int i = 0; i < maxValue; ++i) {
+            Integer target = Integer.valueOf(i);
+            List<Integer> ans = f.search(target,
+                                         new SearchStatistics());
+            List<Integer> ans2 = bruteForce(target, allbf);
+            Collections.sort(ans);
+            Collections.sort(ans2);
+            Assert.assertEquals(ans, ans2);
+        }
+    }
+
+    /**
+     * Insert nbFilters filters of 20 consecutive keys each in the index,
+     * then delete every third filter
+     */
+    private static <T extends BloomIndex<Integer>> T fill(T f, int nbFilters,
+            long seed) {
+        Hasher h = new Hasher(0);
+        Random r = new Random(seed);
+        for (int k = 0; k < nbFilters; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h, 0.01, 1000,
+                    1);
+            bf.setID(k);
+            int start = r.nextInt(nbFilters * 10);
+            for (int i = 0; i < 20; i++) {
+                bf.add(start + i);
+            }
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+        }
+        for (int k = 0; k < nbFilters; k += 3) {
+            f.deleteFromIndex(k, new InsDelUpdateStatistics());
+        }
+        return f;
+    }
+
+    @Test
+    public void multiKeyTest() {
+        final int N = 1000;
+        FlatBloomFilterIndex<Integer> f = fill(
+            new FlatBloomFilterIndex<Integer>(), N, 0);
+        FlatBFMergeBatch<Integer> m = fill(new FlatBFMergeBatch<Integer>(), N,
+                                           0);
+        IndexChecks.checkMultiKey(f, N * 10);
+        IndexChecks.checkMultiKey(m, N * 10);
+        IndexChecks.checkMultiKey(f.freeze(), N * 10);
+        f.compressBlocks(1.0);
+        IndexChecks.checkMultiKey(f, N * 10);
+        Assert.assertTrue(new FlatBloomFilterIndex<Integer>().searchAny(
+                              Arrays.asList(1, 2), new SearchStatistics()).isEmpty());
+    }
+
+    @Test
+    public void similarityJoinTest() {
+        Hasher h = new Hasher(0);
+        final int M = 200;
+        final int N = 300;
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int metric = 1; metric <= 3; metric++) {
+                FlatBloomFilterIndex<Integer> f = new FlatBloomFilterIndex<Integer>();
+                ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+                Random r = new Random(metric);
+                for (int k = 0; k < N; k++) {
+                    BloomFilter<Integer> bf = new BloomFilter<Integer>(h, 0.01,
+                            M, metric);
+                    bf.setID(k);
+                    // clusters of similar filters, and a few empty ones
+                    for (int i = k % 50 == 0 ? 20 : 0; i < 20; i++) {
+                        bf.add((k % 10) * 100 + r.nextInt(25));
+                    }
+                    allbf.add(bf);
+                    f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+                }
+                for (int k = 0; k < N; k += 7) {
+                    f.deleteFromIndex(k, new InsDelUpdateStatistics());
+                }
+                ArrayList<BloomFilter<Integer>> kept = new ArrayList<BloomFilter<Integer>>();
+                for (BloomFilter<Integer> bf : allbf)
+                    if (bf.getID() % 7 != 0)
+                        kept.add(bf);
+                f.compressBlocks(1.0);
+                final double maxDistance = metric == 1 ? 20 : 0.5;
+                HashSet<String> expected = new HashSet<String>();
+                for (int i = 0; i < kept.size(); i++) {
+                    for (int j = i + 1; j < kept.size(); j++) {
+                        double d = kept.get(i).computeDistance(kept.get(j));
+                        if (d <= maxDistance)
+                            expected.add(kept.get(i).getID() + " "
+                                         + kept.get(j).getID() + " " + d);
+                    }
+                }
+                Assert.assertTrue(expected.size() > 0);
+                List<SimilarPair> pairs = f.similarityJoin(metric, maxDistance,
+                                          null);
+                Assert.assertEquals(pairs, f.similarityJoin(metric,
+                                    maxDistance, pool));
+                HashSet<String> actual = new HashSet<String>();
+                for (SimilarPair p : pairs) {
+                    actual.add(Math.min(p.id1, p.id2) + " "
+                               + Math.max(p.id1, p.id2) + " " + p.distance);
+                }
+                Assert.assertEquals(pairs.size(), actual.size());
+                Assert.assertEquals(expected, actual);
+            }
+            Assert.assertTrue(new FlatBloomFilterIndex<Integer>()
+                              .similarityJoin(1, 10, pool).isEmpty());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void deadlineTest() {
+        Hasher h = new Hasher(0);
+        // enough blocks for a search to run out of time
+        final int N = 100 * 64;
+        FlatBloomFilterIndex<Integer> f = new FlatBloomFilterIndex<Integer>();
+        Random r = new Random(0);
+        for (int k = 0; k < N; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h, 0.01, 10, 1);
+            bf.setID(k);
+            for (int i = 0; i < 5; i++) {
+                bf.add(r.nextInt(100));
+            }
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+        }
+        PartialResult late = f.search(1, System.nanoTime(), null,
+                                      new SearchStatistics());
+        Assert.assertFalse(late.isComplete());
+        Assert.assertEquals(PartialResult.CHECK_INTERVAL - 1,
+                            late.getCursor()[0]);
+        IndexChecks.checkDeadline(f, 100);
+        IndexChecks.checkDeadline(f.freeze(), 100);
+        Assert.assertTrue(new FlatBloomFilterIndex<Integer>().search(1,
+                          System.nanoTime(), null, new SearchStatistics()).isComplete());
+    }
+
+    @Test
+    public void searchIdsTest() {
+        FlatBloomFilterIndex<Integer> f = new FlatBloomFilterIndex<Integer>();
+        Hasher h = new Hasher(0);
+        final int M = 1000;
+        final int N = 3000;
+        Random r = new Random(0);
+        for (int k = 0; k < N; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h, 0.01, M,
+                    1);
+            // IDs that do not follow the slots
+            bf.setID((k * 7919) % N);
+            // hot keys 0 to 9 in about half of the filters
+            for (int i = 0; i < 10; i++) {
+                if (r.nextBoolean())
+                    bf.add(i);
+            }
+            for (int i = 0; i < 20; i++) {
+                bf.add(10 + r.nextInt(N * 10));
+            }
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+        }
+        HashSet<Integer> allowed = new HashSet<Integer>();
+        for (int id = 0; id < N; id += 3) {
+            allowed.add(id);
+        }
+        IdSet allowedIds = IdSet.of(allowed);
+        for (int i = 0; i < 10; ++i) {
+            IdSet a = f.searchIds(i, new SearchStatistics());
+            IdSet b = f.searchIds(i + 1, new SearchStatistics());
+            HashSet<Integer> ha = new HashSet<Integer>(f.search(i,
+                    new SearchStatistics()));
+            HashSet<Integer> hb = new HashSet<Integer>(f.search(i + 1,
+                    new SearchStatistics()));
+            Assert.assertEquals(ha.size(), a.cardinality());
+            Assert.assertEquals(ha, new HashSet<Integer>(a.toList()));
+            // iterated in increasing order
+            int previous = -1;
+            for (IntIterator it = a.iterator(); it.hasNext();) {
+                final int id = it.next();
+                Assert.assertTrue(id > previous && ha.contains(id));
+                Assert.assertTrue(a.contains(id));
+                previous = id;
+            }
+
+            IdSet and = f.searchIds(i, new SearchStatistics());
+            and.and(b);
+            HashSet<Integer> hand = new HashSet<Integer>(ha);
+            hand.retainAll(hb);
+            Assert.assertEquals(hand, new HashSet<Integer>(and.toList()));
+
+            IdSet or = f.searchIds(i, new SearchStatistics());
+            or.or(b);
+            HashSet<Integer> hor = new HashSet<Integer>(ha);
+            hor.addAll(hb);
+            Assert.assertEquals(hor, new HashSet<Integer>(or.toList()));
+
+            IdSet andNot = f.searchIds(i, new SearchStatistics());
+            andNot.andNot(b);
+            HashSet<Integer> handNot = new HashSet<Integer>(ha);
+            handNot.removeAll(hb);
+            Assert.assertEquals(handNot, new HashSet<Integer>(andNot.toList()));
+
+            // with a set of IDs given by the caller
+            a.and(allowedIds);
+            ha.retainAll(allowed);
+            Assert.assertEquals(ha, new HashSet<Integer>(a.toList()));
+            Assert.assertEquals(IdSet.of(ha), a);
+        }
+        // a rare key gives a sparse result
+        IdSet rare = f.searchIds(N * 5, new SearchStatistics());
+        Assert.assertEquals(new HashSet<Integer>(f.search(N * 5,
+                            new SearchStatistics())), new HashSet<Integer>(rare.toList()));
+        IdSet empty = new IdSet();
+        Assert.assertTrue(empty.isEmpty());
+        Assert.assertFalse(empty.iterator().hasNext());
+        empty.or(rare);
+        Assert.assertEquals(rare, empty);
+        try {
+            empty.add(-1);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
 
+    @Test
+    public void searchLimitTest() {
+        final int N = 1000;
+        FlatBloomFilterIndex<Integer> f = fill(
+            new FlatBloomFilterIndex<Integer>(), N, 0);
+        FlatBFMergeBatch<Integer> m = fill(new FlatBFMergeBatch<Integer>(), N,
+                                           0);
+        IndexChecks.checkLimit(f, N * 10);
+        IndexChecks.checkRestricted(f, N * 10);
+        IndexChecks.checkDeadline(f, N * 10);
+        IndexChecks.checkLimit(m, N * 10);
+        IndexChecks.checkRestricted(m, N * 10);
+        IndexChecks.checkDeadline(m, N * 10);
+        IndexChecks.checkLimit(f.freeze(), N * 10);
+        IndexChecks.checkRestricted(f.freeze(), N * 10);
+        IndexChecks.checkDeadline(f.freeze(), N * 10);
+        f.compressBlocks(1.0);
+        IndexChecks.checkLimit(f, N * 10);
+        IndexChecks.checkRestricted(f, N * 10);
+        IndexChecks.checkDeadline(f, N * 10);
+        Assert.assertFalse(new FlatBloomFilterIndex<Integer>().anyMatch(1,
+                           new SearchStatistics()));
     }
+
     public static List<Integer> bruteForce(Integer target,
                                            ArrayList<BloomFilter<Integer>> allbf) {
         List<Integer> a = new ArrayList<Integer>();
@@ -0,0 +1,250 @@
+package mvm.provenance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import junit.framework.Assert;
+import org.junit.Test;
+import com.skjegstad.utils.BloomFilter;
+
+@SuppressWarnings({ "static-method" })
+public class HybridTest {
+
+    public void htest(int order, int blockWords) {
+        HybridBloomFilterIndex<Integer> f = new HybridBloomFilterIndex<Integer>(
+            order, blockWords);
+        Hasher h = new Hasher(0);
+        ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+        final int M = 1000;
+        final int N = 2000;
+        Random r = new Random(order);
+        for (int k = 0; k < N; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h, 0.01, M,
+                    1);
+            bf.setID(k);
+            int start = r.nextInt(N * 10);
+            for (int i = 0; i < 20; i++) {
+                bf.add(start + i);
+            }
+            allbf.add(bf);
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+        }
+        f.validate();
+        Assert.assertEquals(N, f.getIDs().size());
+        Assert.assertTrue(f.getHeight() > 1);
+        check(f, allbf, N * 10);
+
+        // delete two filters out of three, then add them back
+        ArrayList<BloomFilter<Integer>> toremove = new ArrayList<BloomFilter<Integer>>();
+        ArrayList<BloomFilter<Integer>> kept = new ArrayList<BloomFilter<Integer>>();
+        for (int k = 0; k < N; k++) {
+            if (k % 3 != 0) {
+                toremove.add(allbf.get(k));
+                Assert.assertEquals(0, f.deleteFromIndex(k,
+                                    new InsDelUpdateStatistics()));
+            } else {
+                kept.add(allbf.get(k));
+            }
+        }
+        Assert.assertEquals(-1, f.deleteFromIndex(1,
+                            new InsDelUpdateStatistics()));
+        allbf = kept;
+        f.validate();
+        check(f, allbf, N * 10);
+        for (BloomFilter<Integer> bf : toremove) {
+            allbf.add(bf);
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+        }
+        f.validate();
+        check(f, allbf, N * 10);
+
+        // updates
+        for (int k = 0; k < N; k += 7) {
+            BloomFilter<Integer> bf = allbf.get(k);
+            int v = N * 10 + k;
+            bf.add(v);
+            if (k % 2 == 0) {
+                f.updateIndex(bf, new InsDelUpdateStatistics());
+            } else {
+                f.addElement(bf.getID(), v, new InsDelUpdateStatistics());
+            }
+        }
+        f.validate();
+        check(f, allbf, N * 11);
+
+        // delete everything
+        for (BloomFilter<Integer> bf : allbf) {
+            f.deleteFromIndex(bf.getID(), new InsDelUpdateStatistics());
+        }
+        Assert.assertEquals(0, f.getSize());
+        Assert.assertTrue(f.search(0, new SearchStatistics()).isEmpty());
+    }
+
+    private static void check(HybridBloomFilterIndex<Integer> f,
+                              ArrayList<BloomFilter<Integer>> allbf, int max) {
+        for (int i = 0; i < max; ++i) {
+            Integer target = Integer.valueOf(i);
+            List<Integer> ans = f.search(target, new SearchStatistics());
+            List<Integer> ans2 = bruteForce(target, allbf);
+            Collections.sort(ans);
+            Collections.sort(ans2);
+            Assert.assertEquals(ans2, ans);
+        }
+    }
+
+    @Test
+    public void basicTest() {
+        for (int order = 1; order < 5; ++order) {
+            htest(order, 1);
+        }
+        htest(2, 3);
+    }
+
+    @Test
+    public void pruningTest() {
+        // clustered filters: the tree prunes most of the blocks
+        HybridBloomFilterIndex<Integer> f = new HybridBloomFilterIndex<Integer>(
+            4);
+        Hasher h = new Hasher(0);
+        final int N = 4096;
+        for (int k = 0; k < N; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h, 0.01,
+                    10000, 1);
+            bf.setID(k);
+            for (int i = 0; i < 20; i++) {
+                bf.add(k * 20 + i);
+            }
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+        }
+        SearchStatistics stat = new SearchStatistics();
+        for (int i = 0; i < N * 20; i += 97) {
+            Assert.assertTrue(f.search(Integer.valueOf(i), stat).contains(
+                                  i / 20));
+        }
+        int nbSearches = (N * 20 + 96) / 97;
+        Assert.assertTrue(stat.nbBFChecks < nbSearches * f.getSize() / 2);
+    }
+
+    /**
+     * Return an index of nbFilters filters of 20 consecutive keys each,
+     * from which every third filter was deleted
+     */
+    private static HybridBloomFilterIndex<Integer> newIndex(int order,
+            int blockWords, int nbFilters, long seed) {
+        HybridBloomFilterIndex<Integer> f = new HybridBloomFilterIndex<Integer>(
+            order, blockWords);
+        Hasher h = new Hasher(0);
+        Random r = new Random(seed);
+        for (int k = 0; k < nbFilters; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h, 0.01, 1000,
+                    1);
+            bf.setID(k);
+            int start = r.nextInt(nbFilters * 10);
+            for (int i = 0; i < 20; i++) {
+                bf.add(start + i);
+            }
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+        }
+        for (int k = 0; k < nbFilters; k += 3) {
+            f.deleteFromIndex(k, new InsDelUpdateStatistics());
+        }
+        return f;
+    }
+
+    @Test
+    public void freezeTest() {
+        final int N = 2000;
+        HybridBloomFilterIndex<Integer> f = newIndex(3, 2, N, 0);
+        FrozenHybridBloomFilterIndex<Integer> frozen = f.freeze();
+        Assert.assertEquals(f.getIDs(), frozen.getIDs());
+        Assert.assertEquals(f.getSize(), frozen.getSize());
+        Assert.assertEquals(f.getHeight(), frozen.getHeight());
+        Assert.assertEquals(f.getNbChildrenRoot(), frozen.getNbChildrenRoot());
+        Assert.assertEquals(f.getIsRootAllOne(), frozen.getIsRootAllOne());
+        Assert.assertSame(frozen, frozen.freeze());
+        for (int i = 0; i < N * 10; ++i) {
+            Integer target = Integer.valueOf(i);
+            SearchStatistics fs = new SearchStatistics();
+            SearchStatistics cs = new SearchStatistics();
+            List<Integer> ans = f.search(target, fs);
+            List<Integer> ans2 = frozen.search(target, cs);
+            Collections.sort(ans);
+            Collections.sort(ans2);
+            Assert.assertEquals(ans, ans2);
+            Assert.assertEquals(fs.nbBFChecks, cs.nbBFChecks);
+        }
+        Assert.assertEquals(0, new HybridBloomFilterIndex<Integer>(2).freeze()
+                            .getSize());
+        try {
+            frozen.addElement(1, 1, new InsDelUpdateStatistics());
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void multiKeyTest() {
+        final int N = 2000;
+        HybridBloomFilterIndex<Integer> f = newIndex(3, 2, N, 0);
+        IndexChecks.checkMultiKey(f, N * 10);
+        IndexChecks.checkMultiKey(f.freeze(), N * 10);
+        Assert.assertTrue(new HybridBloomFilterIndex<Integer>(2).searchAll(
+                              Arrays.asList(1, 2), new SearchStatistics()).isEmpty());
+    }
+
+    @Test
+    public void deadlineTest() {
+        HybridBloomFilterIndex<Integer> f = new HybridBloomFilterIndex<Integer>(
+            2, 1);
+        Hasher h = new Hasher(0);
+        // enough nodes for a search to run out of time
+        final int N = 200 * 64;
+        Random r = new Random(0);
+        for (int k = 0; k < N; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h, 0.01, 10, 1);
+            bf.setID(k);
+            // 0 is in every filter, so all the nodes are visited
+            bf.add(0);
+            for (int i = 0; i < 5; i++) {
+                bf.add(r.nextInt(100));
+            }
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+        }
+        PartialResult late = f.search(0, System.nanoTime(), null,
+                                      new SearchStatistics());
+        Assert.assertFalse(late.isComplete());
+        Assert.assertFalse(f.freeze().search(0, System.nanoTime(), null,
+                                             new SearchStatistics()).isComplete());
+        IndexChecks.checkDeadline(f, 100);
+        IndexChecks.checkDeadline(f.freeze(), 100);
+    }
+
+    @Test
+    public void searchLimitTest() {
+        final int N = 2000;
+        HybridBloomFilterIndex<Integer> f = newIndex(3, 2, N, 1);
+        IndexChecks.checkLimit(f, N * 10);
+        IndexChecks.checkRestricted(f, N * 10);
+        IndexChecks.checkDeadline(f, N * 10);
+        IndexChecks.checkLimit(f.freeze(), N * 10);
+        IndexChecks.checkRestricted(f.freeze(), N * 10);
+        IndexChecks.checkDeadline(f.freeze(), N * 10);
+        Assert.assertEquals(-1, new HybridBloomFilterIndex<Integer>(2)
+                            .searchFirst(1, new SearchStatistics()));
+    }
+
+    public static List<Integer> bruteForce(Integer target,
+                                           ArrayList<BloomFilter<Integer>> allbf) {
+        List<Integer> a = new ArrayList<Integer>();
+        for (int k = 0; k < allbf.size(); ++k) {
+            if (allbf.get(k).contains(target)) {
+                a.add(allbf.get(k).getID());
+            }
+        }
+        return a;
+    }
+
+}
@@ -0,0 +1,151 @@
+package mvm.provenance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import junit.framework.Assert;
+
+/**
+ * Checks shared by the tests of the BloomIndex implementations: each derived
+ * search must agree with search on the same index
+ */
+final class IndexChecks {
+    private IndexChecks() {
+    }
+
+    /**
+     * Compare count, searchIds, searchIterator, searchLimit, searchFirst and
+     * anyMatch with search
+     */
+    static void checkLimit(BloomIndex<Integer> f, int maxValue) {
+        for (int i = 0; i < maxValue; ++i) {
+            Integer target = Integer.valueOf(i);
+            SearchStatistics searchStat = new SearchStatistics();
+            List<Integer> ans = f.search(target, searchStat);
+            // same IDs in the same order, after checking the same nodes
+            SearchStatistics iteratorStat = new SearchStatistics();
+            IntIterator it = f.searchIterator(target, iteratorStat);
+            List<Integer> pulled = new ArrayList<Integer>();
+            while (it.hasNext()) {
+                pulled.add(it.next());
+            }
+            Assert.assertEquals(ans, pulled);
+            Assert.assertEquals(searchStat.nbBFChecks, iteratorStat.nbBFChecks);
+            try {
+                it.next();
+                Assert.fail();
+            } catch (NoSuchElementException e) {
+                // expected
+            }
+            Assert.assertEquals(ans.size(), f.count(target, new SearchStatistics()));
+            List<Integer> sorted = new ArrayList<Integer>(ans);
+            Collections.sort(sorted);
+            Assert.assertEquals(sorted,
+                                f.searchIds(target, new SearchStatistics()).toList());
+            for (int limit = 0; limit < 4; ++limit) {
+                Assert.assertEquals(ans.subList(0, Math.min(limit, ans.size())),
+                                    f.searchLimit(target, limit, new SearchStatistics()));
+            }
+            Assert.assertEquals(ans.isEmpty() ? -1 : ans.get(0).intValue(),
+                                f.searchFirst(target, new SearchStatistics()));
+            Assert.assertEquals(!ans.isEmpty(),
+                                f.anyMatch(target, new SearchStatistics()));
+        }
+        try {
+            f.searchLimit(1, -1, new SearchStatistics());
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Compare the searches restricted to some IDs with search
+     */
+    static void checkRestricted(BloomIndex<Integer> f, int maxValue) {
+        IdSet none = new IdSet();
+        IdSet some = new IdSet();
+        for (int id = 0; id < 2 * f.getIDs().size(); id += 7) {
+            some.add(id);
+        }
+        for (int i = 0; i < maxValue; ++i) {
+            Integer target = Integer.valueOf(i);
+            List<Integer> expected = new ArrayList<Integer>();
+            for (int id : f.search(target, new SearchStatistics())) {
+                if (some.contains(id)) {
+                    expected.add(id);
+                }
+            }
+            // same order as search
+            Assert.assertEquals(expected,
+                                f.search(target, some, new SearchStatistics()));
+            Assert.assertTrue(f.search(target, none, new SearchStatistics())
+                              .isEmpty());
+        }
+    }
+
+    /**
+     * Compare the searches bounded by a deadline with search, resuming
+     * them until they complete
+     */
+    static void checkDeadline(BloomIndex<Integer> f, int maxValue) {
+        for (int i = 0; i < maxValue; ++i) {
+            Integer target = Integer.valueOf(i);
+            List<Integer> ans = f.search(target, new SearchStatistics());
+            PartialResult all = f.search(target, System.nanoTime() + 3600000000000l,
+                                         null, new SearchStatistics());
+            Assert.assertTrue(all.isComplete());
+            Assert.assertEquals(ans, all.getIDs());
+            // past deadline: CHECK_INTERVAL - 1 steps per search
+            List<Integer> resumed = new ArrayList<Integer>();
+            PartialResult r = f.search(target, System.nanoTime(), null,
+                                       new SearchStatistics());
+            resumed.addAll(r.getIDs());
+            while (!r.isComplete()) {
+                r = f.search(target, System.nanoTime(), r.getCursor(),
+                             new SearchStatistics());
+                resumed.addAll(r.getIDs());
+            }
+            Assert.assertEquals(ans, resumed);
+        }
+    }
+
+    /**
+     * Compare searchAll and searchAny with the searches of each key
+     */
+    static void checkMultiKey(BloomIndex<Integer> f, int maxValue) {
+        Assert.assertTrue(f.searchAll(new ArrayList<Integer>(),
+                                      new SearchStatistics()).isEmpty());
+        Assert.assertTrue(f.searchAny(new ArrayList<Integer>(),
+                                      new SearchStatistics()).isEmpty());
+        for (int i = 0; i < maxValue; i += 3) {
+            checkMultiKey(f, Arrays.asList(i, i + 1, i + 2));
+            checkMultiKey(f, Arrays.asList(i, i + maxValue / 2));
+        }
+    }
+
+    private static void checkMultiKey(BloomIndex<Integer> f,
+                                              List<Integer> keys) {
+        List<Integer> all = f.search(keys.get(0), new SearchStatistics());
+        HashSet<Integer> any = new HashSet<Integer>(all);
+        for (Integer key : keys) {
+            List<Integer> ans = f.search(key, new SearchStatistics());
+            all.retainAll(ans);
+            any.addAll(ans);
+        }
+        Assert.assertEquals(all, f.searchAll(keys, new SearchStatistics()));
+        List<Integer> anyAns = f.searchAny(keys, new SearchStatistics());
+        Assert.assertEquals(any, new HashSet<Integer>(anyAns));
+        Assert.assertEquals(any.size(), anyAns.size());
+        // in the order of search
+        for (Integer key : keys) {
+            List<Integer> ans = f.search(key, new SearchStatistics());
+            List<Integer> sub = new ArrayList<Integer>(anyAns);
+            sub.retainAll(ans);
+            Assert.assertEquals(ans, sub);
+        }
+    }
+}
@@ -125,6 +125,81 @@ public class NaiveTest {
         }
     }
 
+    @Test
+    public void freezeTest() {
+        NaiveBloomFilterIndex<Integer> f = new NaiveBloomFilterIndex<Integer>();
+        Hasher h = new Hasher();
+        ArrayList<BloomFilter<Integer>> allbf = new ArrayList<BloomFilter<Integer>>();
+        final int M = 1000;
+        final int N = 300;
+        Random r = new Random(0);
+        for (int k = 0; k < N; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h,
+                    0.1, M, 1);
+            bf.setID(k);
+            for (int i = 0; i < M; i += 3) {
+                bf.add(r.nextInt(N + M));
+            }
+            allbf.add(bf);
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+        }
+        for (int k = 0; k < N; k += 4) {
+            f.deleteFromIndex(k, new InsDelUpdateStatistics());
+        }
+        FrozenFlatBloomFilterIndex<Integer> frozen = f.freeze();
+        Assert.assertEquals(f.getIDs(), frozen.getIDs());
+        Assert.assertEquals(f.getSize(), frozen.getSize());
+        for (int i = 0; i < N + M; ++i) {
+            Integer target = Integer.valueOf(i);
+            Assert.assertEquals(f.search(target, new SearchStatistics()),
+                                frozen.search(target, new SearchStatistics()));
+        }
+        Assert.assertTrue(new NaiveBloomFilterIndex<Integer>().freeze()
+                          .search(1, new SearchStatistics()).isEmpty());
+        try {
+            frozen.deleteFromIndex(1, new InsDelUpdateStatistics());
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Return an index of nbFilters filters of 20 consecutive keys each
+     */
+    private static NaiveBloomFilterIndex<Integer> newIndex(int nbFilters,
+            long seed) {
+        NaiveBloomFilterIndex<Integer> f = new NaiveBloomFilterIndex<Integer>();
+        Hasher h = new Hasher(0);
+        Random r = new Random(seed);
+        for (int k = 0; k < nbFilters; k++) {
+            BloomFilter<Integer> bf = new BloomFilter<Integer>(h, 0.01, 1000,
+                    1);
+            bf.setID(k);
+            int start = r.nextInt(nbFilters * 10);
+            for (int i = 0; i < 20; i++) {
+                bf.add(start + i);
+            }
+            f.insertBloomFilter(bf, new InsDelUpdateStatistics());
+        }
+        return f;
+    }
+
+    @Test
+    public void multiKeyTest() {
+        final int N = 300;
+        NaiveBloomFilterIndex<Integer> f = newIndex(N, 0);
+        IndexChecks.checkMultiKey(f, N * 10);
+    }
+
+    @Test
+    public void searchLimitTest() {
+        final int N = 300;
+        NaiveBloomFilterIndex<Integer> f = newIndex(N, 1);
+        IndexChecks.checkLimit(f, N * 10);
+        IndexChecks.checkRestricted(f, N * 10);
+        IndexChecks.checkDeadline(f, N * 10);
+    }
 
     public static List<Integer> bruteForce(Integer target,
                                            ArrayList<BloomFilter<Integer>> allbf) {